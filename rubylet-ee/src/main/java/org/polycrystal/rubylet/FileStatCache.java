@@ -0,0 +1,200 @@
+package org.polycrystal.rubylet;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches whether request paths name regular files under a base
+ * directory, so that a dynamic request need not stat the filesystem
+ * to learn that it is not for a static file.
+ *
+ * <p>Both positive and negative results are kept, up to a max number
+ * of paths, least recently used first out.  Results older than the
+ * TTL are checked again.  Where the JVM has a {@code WatchService}
+ * (Java 7), changes under the base directory invalidate results at
+ * once; the TTL covers filesystems that do not report changes.
+ *
+ * <p>Paths are normalized before lookup: empty and {@code .} segments
+ * are dropped, and paths with {@code ..} segments (or backslashes or
+ * NULs) are rejected outright.  With no base directory, paths are
+ * taken as absolute filesystem paths already checked by the caller,
+ * and are neither normalized nor watched.
+ *
+ * <p>Threadsafe.
+ */
+public final class FileStatCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    public static final long DEFAULT_TTL_MILLIS = 5000;
+
+    private static final class Entry {
+
+        final boolean isFile;
+
+        final long checkedAt;
+
+        Entry(boolean isFile, long checkedAt) {
+            this.isFile = isFile;
+            this.checkedAt = checkedAt;
+        }
+
+    }
+
+    private final File base;
+
+    private final long ttlNanos;
+
+    /**
+     * Guarded by itself.  In access order, for LRU eviction.
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Count of invalidations, so that a stat that raced with one is not
+     * cached.  Guarded by {@link #entries}.
+     */
+    private long generation;
+
+    private final FileStatWatcher watcher;
+
+    /**
+     * @param base the directory request paths are relative to, or
+     *        null if paths are absolute
+     * @param maxEntries max number of paths to remember
+     * @param ttlMillis max age of a result; 0 to stat every time
+     */
+    public FileStatCache(File base, final int maxEntries, long ttlMillis) {
+        this.base = base;
+        this.ttlNanos = ttlMillis * 1000000L;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.watcher = (ttlMillis > 0 && base != null) ? startWatcher(base) : null;
+    }
+
+    /**
+     * @return a watcher, or null if there is no {@code WatchService}
+     *         (before Java 7) or it could not watch {@code base}
+     */
+    private FileStatWatcher startWatcher(File base) {
+        try {
+            Class.forName("java.nio.file.WatchService");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+        try {
+            return FileStatWatcher.start(base, this);
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Normalize a request path: collapse repeated slashes and drop
+     * {@code .} segments.
+     *
+     * @return the normalized path, starting with {@code /}, or null if
+     *         {@code path} is null or would escape its base directory
+     */
+    public static String normalize(String path) {
+        if (path == null || path.indexOf('\\') >= 0 || path.indexOf('\0') >= 0) {
+            return null;
+        }
+
+        final StringBuilder normal = new StringBuilder(path.length() + 1);
+        int start = 0;
+        final int len = path.length();
+        while (start <= len) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = len;
+            }
+            final int segment = end - start;
+            if (segment == 2 && path.charAt(start) == '.' && path.charAt(start + 1) == '.') {
+                return null;
+            } else if (segment > 0 && !(segment == 1 && path.charAt(start) == '.')) {
+                normal.append('/').append(path, start, end);
+            }
+            start = end + 1;
+        }
+        return (normal.length() == 0) ? "/" : normal.toString();
+    }
+
+    /**
+     * @param path a request path within the base directory
+     * @return true if {@code path} names a regular file
+     */
+    public boolean isFile(String path) {
+        final String normal = (base == null) ? path : normalize(path);
+        if (normal == null) {
+            return false;
+        }
+        if (ttlNanos <= 0) {
+            return new File(base, normal).isFile();
+        }
+
+        final long now = System.nanoTime();
+        final long gen;
+        synchronized (entries) {
+            final Entry entry = entries.get(normal);
+            if (entry != null && now - entry.checkedAt < ttlNanos) {
+                return entry.isFile;
+            }
+            gen = generation;
+        }
+
+        final boolean isFile = new File(base, normal).isFile();
+        synchronized (entries) {
+            if (gen == generation) {
+                entries.put(normal, new Entry(isFile, now));
+            }
+        }
+        return isFile;
+    }
+
+    /**
+     * Forget the result for {@code path} and any paths beneath it.
+     *
+     * @param path a normalized path within the base directory
+     */
+    void invalidate(String path) {
+        final String prefix = path + "/";
+        synchronized (entries) {
+            ++generation;
+            for (Iterator<String> it = entries.keySet().iterator(); it.hasNext(); ) {
+                final String key = it.next();
+                if (key.equals(path) || key.startsWith(prefix)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget every result.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            ++generation;
+            entries.clear();
+        }
+    }
+
+    /**
+     * Stop watching for changes.
+     */
+    public void close() {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+}
@@ -13,6 +13,28 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Sends files under the {@code docBase} init parameter (or context
+ * parameter) itself (see {@link StaticAssets}), and passes other
+ * requests down the chain.  Requests for files with methods other than
+ * {@code GET} and {@code HEAD} are forwarded to the container's default
+ * servlet.  Without a {@code docBase}, the request's translated path is
+ * checked instead.
+ *
+ * <p>Whether a path is a file is cached (see {@link FileStatCache}),
+ * configured by init parameters {@code statCacheSize} (max number of
+ * paths, default 10000) and {@code statCacheTtl} (milliseconds before a
+ * path is checked again, default 5000; 0 to disable the cache).
+ *
+ * <p>File serving is configured by init parameters {@code serveFiles}
+ * (false to always use the default servlet, default true),
+ * {@code fileCacheSize} (max bytes of file contents in memory, default
+ * 32MiB), {@code fileCacheMaxFileSize} (larger files are streamed from disk,
+ * default 1MiB), and {@code precompressed} (false to ignore {@code .gz}
+ * siblings, default true).
+ *
+ * @author Patrick Mahoney <pat@polycrystal.org>
+ */
 public final class StaticFileFilter implements Filter {
     
     private RequestDispatcher defaultDispatcher;
@@ -21,6 +43,10 @@ public final class StaticFileFilter implements Filter {
     
     private boolean haveDocBase = false;
 
+    private FileStatCache statCache;
+
+    private StaticAssets assets;
+
     public void init(FilterConfig config) throws ServletException {
         defaultDispatcher = config.getServletContext().getNamedDispatcher("default");
         
@@ -29,32 +55,72 @@ public final class StaticFileFilter implements Filter {
             docBase = config.getServletContext().getInitParameter("docBase");
         }
         haveDocBase = (docBase != null);
+
+        final long ttl = getLong(config, "statCacheTtl", FileStatCache.DEFAULT_TTL_MILLIS);
+        statCache = new FileStatCache(haveDocBase ? new File(docBase) : null,
+                                      getInt(config, "statCacheSize", FileStatCache.DEFAULT_MAX_ENTRIES),
+                                      ttl);
+        if (getBoolean(config, "serveFiles", true)) {
+            assets = new StaticAssets(config.getServletContext(),
+                                      getLong(config, "fileCacheSize", StaticAssets.DEFAULT_MAX_SIZE),
+                                      getInt(config, "fileCacheMaxFileSize", StaticAssets.DEFAULT_MAX_FILE_SIZE),
+                                      ttl,
+                                      getBoolean(config, "precompressed", true));
+        }
+    }
+
+    private static boolean getBoolean(FilterConfig config, String name, boolean defaultValue) {
+        final String value = config.getInitParameter(name);
+        return (value == null) ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    private static int getInt(FilterConfig config, String name, int defaultValue) {
+        final String value = config.getInitParameter(name);
+        return (value == null) ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static long getLong(FilterConfig config, String name, long defaultValue) {
+        final String value = config.getInitParameter(name);
+        return (value == null) ? defaultValue : Long.parseLong(value.trim());
     }
 
     public void destroy() {
         defaultDispatcher = null;
         docBase = null;
         haveDocBase = false;
+        if (statCache != null) {
+            statCache.close();
+            statCache = null;
+        }
+        assets = null;
     }
     
     private RequestDispatcher getDefaultDispatcher() {
         return Util.assertNotNull(defaultDispatcher);
     }
     
-    private String getDocBase() {
-        return Util.assertNotNull(docBase);
-    }
-    
     private boolean haveDocBase() {
         return Util.assertNotNull(haveDocBase);
     }
     
+    /**
+     * @return the file for {@code req}, assuming
+     *         {@link #canServeStaticFile}
+     */
+    private File getStaticFile(HttpServletRequest req) {
+        if (haveDocBase()) {
+            return new File(docBase, FileStatCache.normalize(req.getPathInfo()));
+        } else {
+            return new File(req.getPathTranslated());
+        }
+    }
+
     private boolean canServeStaticFile(HttpServletRequest req) {
         if (haveDocBase()) {
-            final File file = new File(getDocBase(), req.getPathInfo());
-            return (file.isFile());
+            return statCache.isFile(req.getPathInfo());
         } else {
-            if (req.getPathTranslated() == null) {
+            if (req.getPathTranslated() == null ||
+                    FileStatCache.normalize(req.getPathInfo()) == null) {
                 return false;
             } else {
                 // Glassfish fills getPathTranslated with actual path to file
@@ -65,8 +131,7 @@ public final class StaticFileFilter implements Filter {
                 // from exploded war (?) or configured resourceBase.
                 //
                 // TODO: what about other servlet containers?
-                final File file = new File(req.getPathTranslated());
-                return (file.isFile());
+                return statCache.isFile(req.getPathTranslated());
             }
         }
     }
@@ -79,7 +144,9 @@ public final class StaticFileFilter implements Filter {
         final HttpServletResponse resp = (HttpServletResponse) resp0;
         
         if (canServeStaticFile(req)) {
-            getDefaultDispatcher().forward(req, resp);
+            if (assets == null || !assets.serve(req, resp, getStaticFile(req))) {
+                getDefaultDispatcher().forward(req, resp);
+            }
         } else {
             chain.doFilter(req, resp);
         }
@@ -0,0 +1,96 @@
+package org.polycrystal.rubylet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class StaticAssetsTest {
+
+    private static final long[] UNSATISFIABLE = StaticAssets.parseRange("bytes=100-", 10);
+
+    private static void assertRange(long first, long last, String range, long length) {
+        assertArrayEquals(range, new long[] { first, last }, StaticAssets.parseRange(range, length));
+    }
+
+    private static void assertWhole(String range, long length) {
+        assertNull(range, StaticAssets.parseRange(range, length));
+    }
+
+    private static void assertUnsatisfiable(String range, long length) {
+        assertSame(range, UNSATISFIABLE, StaticAssets.parseRange(range, length));
+    }
+
+    @Test
+    public void parsesByteRanges() {
+        assertRange(0, 0, "bytes=0-0", 100);
+        assertRange(0, 99, "bytes=0-99", 100);
+        assertRange(10, 19, "bytes=10-19", 100);
+        assertRange(10, 19, " Bytes=10-19 ", 100);
+    }
+
+    @Test
+    public void parsesOpenAndSuffixRanges() {
+        assertRange(90, 99, "bytes=90-", 100);
+        assertRange(90, 99, "bytes=-10", 100);
+        assertRange(0, 99, "bytes=-1000", 100);
+    }
+
+    @Test
+    public void clampsRangesToTheLength() {
+        assertRange(50, 99, "bytes=50-1000", 100);
+        assertRange(0, 99, "bytes=0-" + Long.MAX_VALUE, 100);
+    }
+
+    @Test
+    public void rejectsRangesOutsideTheEntity() {
+        assertUnsatisfiable("bytes=100-", 100);
+        assertUnsatisfiable("bytes=100-200", 100);
+        assertUnsatisfiable("bytes=-0", 100);
+        assertUnsatisfiable("bytes=0-", 0);
+    }
+
+    @Test
+    public void sendsTheWholeEntityForOtherRanges() {
+        assertWhole("bytes=0-1,5-6", 100);
+        assertWhole("bytes=20-10", 100);
+        assertWhole("bytes=a-b", 100);
+        assertWhole("bytes=10", 100);
+        assertWhole("items=0-10", 100);
+        assertWhole("bytes=--5", 100);
+        assertWhole("bytes=+1-5", 100);
+        assertWhole("", 100);
+    }
+
+    @Test
+    public void acceptsGzipWhenListed() {
+        assertTrue(StaticAssets.acceptsGzip("gzip"));
+        assertTrue(StaticAssets.acceptsGzip("gzip, deflate"));
+        assertTrue(StaticAssets.acceptsGzip("deflate, GZIP;q=0.5"));
+        assertTrue(StaticAssets.acceptsGzip("x-gzip"));
+        assertTrue(StaticAssets.acceptsGzip("*"));
+        assertTrue(StaticAssets.acceptsGzip("identity, *;q=0.1"));
+    }
+
+    @Test
+    public void refusesGzipWhenNotListedOrZeroQuality() {
+        assertFalse(StaticAssets.acceptsGzip(null));
+        assertFalse(StaticAssets.acceptsGzip(""));
+        assertFalse(StaticAssets.acceptsGzip("identity"));
+        assertFalse(StaticAssets.acceptsGzip("deflate, br"));
+        assertFalse(StaticAssets.acceptsGzip("gzip;q=0"));
+        assertFalse(StaticAssets.acceptsGzip("gzip;q=0.0, deflate"));
+        assertFalse(StaticAssets.acceptsGzip("gzip;q=bad"));
+        assertFalse(StaticAssets.acceptsGzip("*;q=0"));
+    }
+
+    @Test
+    public void prefersGzipOverTheWildcard() {
+        assertFalse(StaticAssets.acceptsGzip("gzip;q=0, *"));
+        assertTrue(StaticAssets.acceptsGzip("*;q=0, gzip"));
+    }
+
+}
@@ -0,0 +1,68 @@
+package rubylet.rack;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.Ruby;
+import org.jruby.RubyString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link Ruby#newString(String)}, the original way header
+ * values were converted, against {@link HeaderValues}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class HeaderValuesBenchmark {
+
+    @Param({
+        "gzip, deflate",
+        "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8",
+        "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/118.0.0.0 Safari/537.36",
+    })
+    public String value;
+
+    private Ruby runtime;
+
+    private HeaderValues uncached;
+
+    private HeaderValues cached;
+
+    private RubyString key;
+
+    @Setup
+    public void setup() {
+        runtime = Ruby.newInstance();
+        final HeaderKeys headerKeys = new HeaderKeys(runtime);
+        key = headerKeys.get("Accept");
+        uncached = new HeaderValues(runtime, headerKeys, 0);
+        cached = new HeaderValues(runtime, headerKeys, 256);
+    }
+
+    @Benchmark
+    public RubyString newString() {
+        return runtime.newString(value);
+    }
+
+    @Benchmark
+    public RubyString byteCopy() {
+        return uncached.get(key, value);
+    }
+
+    @Benchmark
+    public RubyString cachedShared() {
+        return cached.get(key, value);
+    }
+
+}
@@ -0,0 +1,99 @@
+package rubylet.rack;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the original {@code ResponseHelper.setHeaders} visitor
+ * ({@code asJavaString} and {@code setHeader} for every header)
+ * against {@link HeaderWriter}, for the headers of a typical Rails
+ * response.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class HeaderWriterBenchmark {
+
+    private Ruby runtime;
+
+    private RubyHash headers;
+
+    private HeaderWriter writer;
+
+    private HttpServletResponse resp;
+
+    /**
+     * A response that passes each header name and value to a
+     * {@link Blackhole}.
+     */
+    private static HttpServletResponse newResponse(final Blackhole bh) {
+        return (HttpServletResponse) Proxy.newProxyInstance(
+                HeaderWriterBenchmark.class.getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (args != null) {
+                            for (Object arg : args) {
+                                bh.consume(arg);
+                            }
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    @Setup
+    public void setup(Blackhole bh) {
+        runtime = Ruby.newInstance();
+        headers = (RubyHash) runtime.evalScriptlet(
+                "{ 'Content-Type' => 'text/html; charset=utf-8'," +
+                "  'Content-Length' => '18213'," +
+                "  'Cache-Control' => 'max-age=0, private, must-revalidate'," +
+                "  'ETag' => '\"5d41402abc4b2a76b9719d911017c592\"'," +
+                "  'X-Frame-Options' => 'SAMEORIGIN'," +
+                "  'X-XSS-Protection' => '1; mode=block'," +
+                "  'X-Content-Type-Options' => 'nosniff'," +
+                "  'X-Request-Id' => 'f4a1c2e0-6b1d-4c8a-9e0f-2b7d3a5c9e11'," +
+                "  'X-Runtime' => '0.042137'," +
+                "  'Set-Cookie' => \"_app_session=abc123; path=/; HttpOnly\\nlocale=en; path=/\" }");
+        writer = new HeaderWriter();
+        resp = newResponse(bh);
+    }
+
+    @Benchmark
+    public void visitor() {
+        headers.visitAll(new RubyHash.Visitor() {
+            @Override
+            public void visit(IRubyObject name, IRubyObject value) {
+                resp.setHeader(name.asJavaString(), value.asJavaString());
+            }
+        });
+    }
+
+    @Benchmark
+    public void headerWriter() {
+        writer.write(resp, headers);
+    }
+
+}
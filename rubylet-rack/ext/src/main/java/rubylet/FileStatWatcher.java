@@ -0,0 +1,128 @@
+package rubylet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Watches every directory under a base directory, invalidating
+ * {@link FileStatCache} results for paths that change.  Needs Java 7;
+ * only loaded by {@link FileStatCache} when {@code WatchService} is
+ * present.
+ */
+final class FileStatWatcher implements Runnable {
+
+    private final Path root;
+
+    private final FileStatCache cache;
+
+    private final WatchService service;
+
+    private final Map<WatchKey, Path> dirs = new ConcurrentHashMap<WatchKey, Path>();
+
+    /**
+     * @return a watcher with its thread started, or null if
+     *         {@code base} could not be watched
+     */
+    static FileStatWatcher start(File base, FileStatCache cache) {
+        try {
+            final FileStatWatcher watcher = new FileStatWatcher(base.toPath(), cache);
+            final Thread thread = new Thread(watcher, "rubylet-stat-watcher " + base);
+            thread.setDaemon(true);
+            thread.start();
+            return watcher;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private FileStatWatcher(Path root, FileStatCache cache) throws IOException {
+        this.root = root;
+        this.cache = cache;
+        this.service = FileSystems.getDefault().newWatchService();
+        try {
+            registerAll(root);
+        } catch (IOException e) {
+            service.close();
+            throw e;
+        }
+    }
+
+    private void registerAll(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs)
+                    throws IOException
+            {
+                final WatchKey key = d.register(service,
+                                                StandardWatchEventKinds.ENTRY_CREATE,
+                                                StandardWatchEventKinds.ENTRY_DELETE,
+                                                StandardWatchEventKinds.ENTRY_MODIFY);
+                dirs.put(key, d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private String relativePath(Path path) {
+        return "/" + root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException e) {
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+
+            final Path dir = dirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                    cache.invalidateAll();
+                    continue;
+                }
+                final Path child = dir.resolve((Path) event.context());
+                cache.invalidate(relativePath(child));
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE &&
+                        Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
+                {
+                    try {
+                        registerAll(child);
+                    } catch (IOException e) {
+                        // not watched; the TTL still applies
+                    }
+                }
+            }
+            if (!key.reset()) {
+                dirs.remove(key);
+            }
+        }
+    }
+
+    void close() {
+        try {
+            service.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+}
@@ -0,0 +1,617 @@
+package rubylet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves static files directly, rather than forwarding to the
+ * container's default servlet.
+ *
+ * <p>File contents are held in memory, least recently used first out
+ * once the total passes a max size; files larger than the max cached
+ * file size are not held, but streamed from the file with
+ * {@link FileChannel#transferTo}, so a file replaced in place is never
+ * read through a stale mapping.  A cached file is checked for changes
+ * (by length and modification time) after the TTL.
+ *
+ * <p>If a {@code .gz} sibling of a file exists (as written by Rails'
+ * {@code assets:precompile}), it is sent with
+ * {@code Content-Encoding: gzip} to clients that accept it, and both
+ * variants are sent with {@code Vary: Accept-Encoding}.
+ *
+ * <p>Responses have a strong {@code ETag} (from the length and CRC32 of
+ * the bytes of a cached file, or the length and modification time of a
+ * streamed one) and {@code Last-Modified}, and conditional
+ * {@code GET}s are answered with 304.  Files whose names carry an asset
+ * digest ({@code app-0123...cdef.js}) are sent with a one year
+ * {@code Cache-Control}.  A single byte range is honored, subject to
+ * {@code If-Range}; requests for several ranges are sent the whole
+ * file.
+ *
+ * <p>Threadsafe.
+ */
+public final class StaticAssets {
+
+    public static final long DEFAULT_MAX_SIZE = 32L * 1024 * 1024;
+
+    public static final int DEFAULT_MAX_FILE_SIZE = 1024 * 1024;
+
+    private static final String FAR_FUTURE = "public, max-age=31536000";
+
+    private static final Pattern FINGERPRINTED =
+            Pattern.compile(".+-[0-9a-fA-F]{32,64}(\\.[^/]*)?");
+
+    private static final long[] UNSATISFIABLE = new long[0];
+
+    /**
+     * Nominal heap bytes of an asset apart from its contents, so that
+     * the number of streamed assets is bounded too.
+     */
+    private static final int ENTRY_WEIGHT = 512;
+
+    /**
+     * One file, as loaded.  Immutable but for {@link #checkedAt}.
+     */
+    private static final class Asset {
+
+        final File file;
+
+        final long length;
+
+        final long lastModified;
+
+        /**
+         * The file's contents, or null if streamed from the file.
+         */
+        final ByteBuffer content;
+
+        final String etag;
+
+        final String contentType;
+
+        final String cacheControl;
+
+        /**
+         * The {@code .gz} sibling, or null.
+         */
+        final Asset gzip;
+
+        /**
+         * When the file was last known to be unchanged, in nanos.
+         */
+        volatile long checkedAt;
+
+        Asset(File file,
+              long length,
+              long lastModified,
+              ByteBuffer content,
+              String etag,
+              String contentType,
+              String cacheControl,
+              Asset gzip,
+              long checkedAt)
+        {
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.content = content;
+            this.etag = etag;
+            this.contentType = contentType;
+            this.cacheControl = cacheControl;
+            this.gzip = gzip;
+            this.checkedAt = checkedAt;
+        }
+
+        /**
+         * @return the heap bytes this holds
+         */
+        long getWeight() {
+            return ENTRY_WEIGHT + ((content == null) ? 0 : length) +
+                    ((gzip == null) ? 0 : gzip.getWeight());
+        }
+
+        boolean isCurrent() {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+
+    }
+
+    private final ServletContext context;
+
+    private final long maxSize;
+
+    private final int maxFileSize;
+
+    private final long ttlNanos;
+
+    private final boolean precompressed;
+
+    /**
+     * Guarded by itself.  In access order, for LRU eviction.
+     */
+    private final LinkedHashMap<String, Asset> assets =
+            new LinkedHashMap<String, Asset>(16, 0.75f, true);
+
+    /**
+     * Guarded by {@link #assets}.
+     */
+    private long size;
+
+    /**
+     * @param context for content types
+     * @param maxSize max total bytes of file contents kept in memory
+     * @param maxFileSize files larger than this are streamed from the
+     *        file rather than held in memory
+     * @param ttlMillis max time before a cached file is checked for
+     *        changes
+     * @param precompressed true to serve {@code .gz} siblings
+     */
+    public StaticAssets(ServletContext context,
+                        long maxSize,
+                        int maxFileSize,
+                        long ttlMillis,
+                        boolean precompressed)
+    {
+        this.context = context;
+        this.maxSize = maxSize;
+        this.maxFileSize = maxFileSize;
+        this.ttlNanos = ttlMillis * 1000000L;
+        this.precompressed = precompressed;
+    }
+
+    /**
+     * Send {@code file} in answer to {@code req}.
+     *
+     * @return true if the response was sent; false (with nothing sent)
+     *         if the request is not a {@code GET} or {@code HEAD} or
+     *         the file could not be read
+     */
+    public boolean serve(HttpServletRequest req, HttpServletResponse resp, File file)
+            throws IOException
+    {
+        final String method = req.getMethod();
+        final boolean head = "HEAD".equals(method);
+        if (!head && !"GET".equals(method)) {
+            return false;
+        }
+
+        final Asset asset = get(file);
+        if (asset == null) {
+            return false;
+        }
+
+        final Asset variant = (asset.gzip != null && acceptsGzip(req.getHeader("Accept-Encoding")))
+                ? asset.gzip
+                : asset;
+
+        FileChannel channel = null;
+        if (variant.content == null && !head) {
+            channel = open(variant);
+            if (channel == null) {
+                remove(file);
+                return false;
+            }
+        }
+        try {
+            send(req, resp, asset, variant, channel, head);
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the file of a streamed asset, opened, or null if it is
+     *         gone or no longer the length it was
+     */
+    private static FileChannel open(Asset variant) throws IOException {
+        final FileInputStream in;
+        try {
+            in = new FileInputStream(variant.file);
+        } catch (IOException e) {
+            return null;
+        }
+        final FileChannel channel = in.getChannel();
+        if (channel.size() != variant.length) {
+            in.close();
+            return null;
+        }
+        return channel;
+    }
+
+    private void send(HttpServletRequest req,
+                      HttpServletResponse resp,
+                      Asset asset,
+                      Asset variant,
+                      FileChannel channel,
+                      boolean head)
+            throws IOException
+    {
+        if (asset.gzip != null) {
+            resp.addHeader("Vary", "Accept-Encoding");
+            if (variant == asset.gzip) {
+                resp.setHeader("Content-Encoding", "gzip");
+            }
+        }
+
+        resp.setHeader("Accept-Ranges", "bytes");
+        resp.setHeader("ETag", variant.etag);
+        resp.setDateHeader("Last-Modified", asset.lastModified);
+        if (asset.cacheControl != null) {
+            resp.setHeader("Cache-Control", asset.cacheControl);
+        }
+
+        if (isNotModified(req, variant.etag, asset.lastModified)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        if (asset.contentType != null) {
+            resp.setContentType(asset.contentType);
+        }
+        final long length = variant.length;
+        long start = 0;
+        long end = length - 1;
+        final String range = head ? null : req.getHeader("Range");
+        if (range != null && isRangeCurrent(req, variant.etag, asset.lastModified)) {
+            final long[] bounds = parseRange(range, length);
+            if (bounds == UNSATISFIABLE) {
+                resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                resp.setHeader("Content-Range", "bytes */" + length);
+                resp.setContentLength(0);
+                return;
+            } else if (bounds != null) {
+                resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                resp.setHeader("Content-Range",
+                               "bytes " + bounds[0] + "-" + bounds[1] + "/" + length);
+                start = bounds[0];
+                end = bounds[1];
+            }
+        }
+
+        resp.setContentLength((int) (end - start + 1));
+        if (head) {
+            return;
+        }
+        final WritableByteChannel out = Channels.newChannel(resp.getOutputStream());
+        if (channel == null) {
+            final ByteBuffer content = variant.content.duplicate();
+            content.position((int) start);
+            content.limit((int) end + 1);
+            while (content.hasRemaining()) {
+                out.write(content);
+            }
+        } else {
+            long position = start;
+            while (position <= end) {
+                final long n = channel.transferTo(position, end + 1 - position, out);
+                if (n <= 0) {
+                    throw new IOException("file changed while sent: " + variant.file);
+                }
+                position += n;
+            }
+        }
+    }
+
+    private void remove(File file) {
+        synchronized (assets) {
+            final Asset old = assets.remove(file.getPath());
+            if (old != null) {
+                size -= old.getWeight();
+            }
+        }
+    }
+
+    private Asset get(File file) throws IOException {
+        final String key = file.getPath();
+        final long now = System.nanoTime();
+        Asset asset;
+        synchronized (assets) {
+            asset = assets.get(key);
+        }
+        if (asset != null) {
+            if (now - asset.checkedAt < ttlNanos) {
+                return asset;
+            } else if (isCurrent(asset)) {
+                asset.checkedAt = now;
+                return asset;
+            }
+        }
+
+        asset = load(file, now);
+        synchronized (assets) {
+            final Asset old = (asset == null) ? assets.remove(key) : assets.put(key, asset);
+            if (old != null) {
+                size -= old.getWeight();
+            }
+            if (asset != null) {
+                size += asset.getWeight();
+                evict();
+            }
+        }
+        return asset;
+    }
+
+    private boolean isCurrent(Asset asset) {
+        if (!asset.isCurrent()) {
+            return false;
+        } else if (asset.gzip != null) {
+            return asset.gzip.isCurrent();
+        } else {
+            return !(precompressed && gzipFile(asset.file).isFile());
+        }
+    }
+
+    private static File gzipFile(File file) {
+        return new File(file.getPath() + ".gz");
+    }
+
+    /**
+     * Drop least recently used assets until under the max size.
+     * Caller must hold {@link #assets}.
+     */
+    private void evict() {
+        for (Iterator<Asset> it = assets.values().iterator(); size > maxSize && it.hasNext(); ) {
+            size -= it.next().getWeight();
+            it.remove();
+        }
+    }
+
+    /**
+     * @return the file and its {@code .gz} sibling (if any), or null if
+     *         it is not a readable file no larger than
+     *         {@code Integer.MAX_VALUE}
+     */
+    private Asset load(File file, long now) throws IOException {
+        Asset gzip = null;
+        if (precompressed) {
+            final File gz = gzipFile(file);
+            if (gz.isFile()) {
+                gzip = read(gz, null, null, null, now);
+            }
+        }
+        final String name = file.getName();
+        return read(file,
+                    context.getMimeType(name),
+                    FINGERPRINTED.matcher(name).matches() ? FAR_FUTURE : null,
+                    gzip,
+                    now);
+    }
+
+    private Asset read(File file, String contentType, String cacheControl, Asset gzip, long now)
+            throws IOException
+    {
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+        if (length > Integer.MAX_VALUE || !file.isFile()) {
+            return null;
+        }
+
+        if (length > maxFileSize) {
+            return new Asset(file,
+                             length,
+                             lastModified,
+                             null,
+                             etag(length, lastModified),
+                             contentType,
+                             cacheControl,
+                             gzip,
+                             now);
+        }
+
+        final FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer content = ByteBuffer.allocate((int) length);
+            while (content.hasRemaining() && channel.read(content) >= 0) {
+                // keep reading
+            }
+            content.flip();
+            if (content.remaining() != length) {
+                return null; // changed as we read it
+            }
+            return new Asset(file,
+                             length,
+                             lastModified,
+                             content,
+                             etag(content),
+                             contentType,
+                             cacheControl,
+                             gzip,
+                             now);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return a strong entity tag, from the length and CRC32 of
+     *         {@code content}
+     */
+    private static String etag(ByteBuffer content) {
+        final CRC32 crc = new CRC32();
+        crc.update(content.array(), content.arrayOffset() + content.position(), content.remaining());
+        return etag(content.remaining(), crc);
+    }
+
+    /**
+     * @return a strong entity tag, from the length and modification
+     *         time of a file too large to read up front
+     */
+    private static String etag(long length, long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    private static String etag(long length, CRC32 crc) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(crc.getValue()) + "\"";
+    }
+
+    /**
+     * @return true if {@code gzip} is acceptable per
+     *         {@code acceptEncoding}
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        float gzip = -1;
+        float star = -1;
+        for (String part : acceptEncoding.split(",")) {
+            final String[] params = part.split(";");
+            final String coding = params[0].trim().toLowerCase(Locale.ENGLISH);
+            float q = 1;
+            for (int i = 1; i < params.length; ++i) {
+                final String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if ("gzip".equals(coding) || "x-gzip".equals(coding)) {
+                gzip = Math.max(gzip, q);
+            } else if ("*".equals(coding)) {
+                star = q;
+            }
+        }
+        return (gzip >= 0) ? gzip > 0 : star > 0;
+    }
+
+    private static boolean isNotModified(HttpServletRequest req, String etag, long lastModified) {
+        final String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, etag);
+        }
+        final long since = getDateHeader(req, "If-Modified-Since");
+        return since >= 0 && lastModified / 1000 <= since / 1000;
+    }
+
+    /**
+     * @return true if {@code etags}, a list of entity tags or
+     *         {@code *}, includes {@code etag}, by weak comparison
+     */
+    private static boolean matches(String etags, String etag) {
+        for (String tag : etags.split(",")) {
+            String t = tag.trim();
+            if (t.equals("*")) {
+                return true;
+            }
+            if (t.startsWith("W/")) {
+                t = t.substring(2);
+            }
+            if (t.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if there is no {@code If-Range}, or it names the
+     *         current entity tag or modification time
+     */
+    private static boolean isRangeCurrent(HttpServletRequest req, String etag, long lastModified) {
+        final String ifRange = req.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        final String value = ifRange.trim();
+        if (value.startsWith("\"") || value.startsWith("W/")) {
+            return value.equals(etag);
+        }
+        final long date = getDateHeader(req, "If-Range");
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+
+    private static long getDateHeader(HttpServletRequest req, String name) {
+        try {
+            return req.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the first and last byte positions of a single range,
+     *         {@link #UNSATISFIABLE}, or null if the whole entity is
+     *         to be sent (the header is invalid or has several ranges)
+     */
+    static long[] parseRange(String range, long length) {
+        final String r = range.trim();
+        if (!r.regionMatches(true, 0, "bytes=", 0, 6) || r.indexOf(',') >= 0) {
+            return null;
+        }
+        final String spec = r.substring(6).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        final String first = spec.substring(0, dash).trim();
+        final String last = spec.substring(dash + 1).trim();
+        if (!isDigits(first) || !isDigits(last)) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if (first.length() == 0) {
+                final long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return UNSATISFIABLE;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = (last.length() == 0) ? Long.MAX_VALUE : Long.parseLong(last);
+                if (end < start) {
+                    return null;
+                }
+            }
+            if (start >= length) {
+                return UNSATISFIABLE;
+            }
+            return new long[] { start, Math.min(end, length - 1) };
+        } catch (NumberFormatException e) {
+            return null; // too long
+        }
+    }
+
+    /**
+     * @return true if {@code str} is empty or all ASCII digits (no
+     *         sign, which {@link Long#parseLong} would allow)
+     */
+    private static boolean isDigits(String str) {
+        for (int i = 0; i < str.length(); ++i) {
+            final char c = str.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -11,6 +11,7 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.jruby.Ruby;
 import org.jruby.RubyClass;
@@ -22,9 +23,22 @@ import org.jruby.runtime.builtin.IRubyObject;
 
 /**
  * Given a @{code resourceBase} init parameter, tests if a file exists under the
- * {@code resourceBase} at the request's path info.  If so, uses the default
- * dispatcher to handler the request.  If not, forwards the request on down
- * the chain.
+ * {@code resourceBase} at the request's path info.  If so, sends the file (see
+ * {@link StaticAssets}), or for methods other than {@code GET} and
+ * {@code HEAD} uses the default dispatcher to handle the request.  If not,
+ * forwards the request on down the chain.
+ *
+ * <p>Whether a path is a file is cached (see {@link FileStatCache}),
+ * configured by init parameters {@code statCacheSize} (max number of
+ * paths, default 10000) and {@code statCacheTtl} (milliseconds before a
+ * path is checked again, default 5000; 0 to disable the cache).
+ *
+ * <p>File serving is configured by init parameters {@code serveFiles}
+ * (false to always use the default dispatcher, default true),
+ * {@code fileCacheSize} (max bytes of file contents in memory, default
+ * 32MiB), {@code fileCacheMaxFileSize} (larger files are streamed from disk,
+ * default 1MiB), and {@code precompressed} (false to ignore {@code .gz}
+ * siblings, default true).
  * 
  * <p>TODO: rubylet/rack/ext.jar may or may not be the best place for this.
  * It's mainly used by rubylet-rack-handler.
@@ -52,6 +66,10 @@ public class StaticFileFilter extends RubyObject implements Filter {
     }
     
     private String resourceBase;
+
+    private FileStatCache statCache;
+
+    private StaticAssets assets;
     
     private RequestDispatcher dispatcher;
     
@@ -62,26 +80,63 @@ public class StaticFileFilter extends RubyObject implements Filter {
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
         resourceBase = filterConfig.getInitParameter("resourceBase");
+        final long ttl = getLong(filterConfig, "statCacheTtl", FileStatCache.DEFAULT_TTL_MILLIS);
+        statCache = new FileStatCache(new File(resourceBase),
+                                      getInt(filterConfig, "statCacheSize", FileStatCache.DEFAULT_MAX_ENTRIES),
+                                      ttl);
+        if (getBoolean(filterConfig, "serveFiles", true)) {
+            assets = new StaticAssets(filterConfig.getServletContext(),
+                                      getLong(filterConfig, "fileCacheSize", StaticAssets.DEFAULT_MAX_SIZE),
+                                      getInt(filterConfig, "fileCacheMaxFileSize", StaticAssets.DEFAULT_MAX_FILE_SIZE),
+                                      ttl,
+                                      getBoolean(filterConfig, "precompressed", true));
+        }
         dispatcher = filterConfig.getServletContext().getNamedDispatcher("default");
         if (dispatcher == null) {
             throw new IllegalStateException("no dispatcher named 'default' found");
         }
     }
 
+    private static int getInt(FilterConfig config, String name, int defaultValue) {
+        final String value = config.getInitParameter(name);
+        return (value == null) ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static boolean getBoolean(FilterConfig config, String name, boolean defaultValue) {
+        final String value = config.getInitParameter(name);
+        return (value == null) ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    private static long getLong(FilterConfig config, String name, long defaultValue) {
+        final String value = config.getInitParameter(name);
+        return (value == null) ? defaultValue : Long.parseLong(value.trim());
+    }
+
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
             throws IOException, ServletException
    {
         if (isStaticFile(request)) {
-            dispatcher.forward(request, response);
+            if (!serveFile((HttpServletRequest) request, (HttpServletResponse) response)) {
+                dispatcher.forward(request, response);
+            }
         } else {
             chain.doFilter(request, response);
         }
     }
     
+    private boolean serveFile(HttpServletRequest request, HttpServletResponse response)
+            throws IOException
+    {
+        if (assets == null) {
+            return false;
+        }
+        final File file = new File(resourceBase, FileStatCache.normalize(request.getPathInfo()));
+        return assets.serve(request, response, file);
+    }
+
     private boolean isStaticFile(HttpServletRequest request) {
-        final File file = new File(resourceBase, request.getPathInfo());
-        return file.isFile();
+        return statCache.isFile(request.getPathInfo());
     }
     
     private boolean isStaticFile(ServletRequest request) {
@@ -94,6 +149,9 @@ public class StaticFileFilter extends RubyObject implements Filter {
 
     @Override
     public void destroy() {
-        // noop
+        if (statCache != null) {
+            statCache.close();
+            statCache = null;
+        }
     }
 }
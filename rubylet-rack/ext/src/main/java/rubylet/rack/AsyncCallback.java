@@ -1,8 +1,13 @@
 package rubylet.rack;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -12,6 +17,7 @@ import org.jruby.RubyClass;
 import org.jruby.RubyFixnum;
 import org.jruby.RubyHash;
 import org.jruby.RubyModule;
+import org.jruby.RubyNumeric;
 import org.jruby.RubyObject;
 import org.jruby.anno.JRubyClass;
 import org.jruby.anno.JRubyMethod;
@@ -37,6 +43,27 @@ import org.jruby.runtime.builtin.IRubyObject;
  * final call, which will complete the async response, must have a
  * status of 0, an empty headers hash, and an empty body array.
  *
+ * <p>If response compression is enabled, it is decided on the first
+ * call's headers, each later body is sync flushed through the same
+ * compressor, and the compressed body is ended on completion.
+ *
+ * <p>If async output is queued (see {@link AsyncOutput}), each call
+ * only queues its bytes, which are sent to the client off the calling
+ * thread by an {@link OutboundQueue}, so calls from several threads
+ * are never interleaved and a slow client does not block the caller.
+ * {@code writable?} is false while too much is queued; with a write
+ * timeout, calls wait for the queue to drain, raising
+ * {@code IOError} if it does not in time.
+ *
+ * <p>Timeouts are driven by a shared {@link HashedWheelTimer} in
+ * place of the container's, so many idle responses cost the timer
+ * little.  The application may set {@code timeout=} (seconds; the
+ * default is {@code rubylet.asyncTimeout}, or else the container's),
+ * register {@code on_timeout { ... }}, which is called before the
+ * response is completed on expiry, and start
+ * {@code heartbeat(seconds, data = "\n")}, which writes {@code data}
+ * whenever nothing else has been written for that long.
+ *
  * <p>Example Rack application:
  *
  * <pre><code>
@@ -82,11 +109,107 @@ public final class AsyncCallback extends RubyObject {
     
     private final HttpServletRequest req;
     
+    private final int coalesceThreshold;
+    
+    private final WriteStats stats;
+    
+    private final Compression compression;
+    
+    private final ConditionalGet conditionalGet;
+    
+    private final AsyncOutput asyncOutput;
+    
+    /**
+     * Drives timeouts and heartbeats, or null to leave timeouts to the
+     * container.
+     */
+    private final HashedWheelTimer timer;
+    
+    /**
+     * Timeout for the response, or -1 for the container's default.
+     */
+    private long timeoutMillis;
+    
+    private HashedWheelTimer.Timeout timeout;
+    
+    private HashedWheelTimer.Timeout heartbeat;
+    
+    private long heartbeatMillis;
+    
+    private IRubyObject heartbeatData;
+    
+    private Block onTimeout;
+    
+    /**
+     * Run once the response is done.  Guarded by {@code this}.
+     */
+    private List<Runnable> completionHooks;
+    
+    /**
+     * True once the status and headers are sent.
+     */
+    private volatile boolean streaming;
+    
+    private volatile boolean completed;
+    
+    private volatile long lastWrite;
+    
+    /**
+     * Held while writing, so parts and heartbeats are not interleaved.
+     */
+    private final Object writeLock = new Object();
+    
     private AsyncContext asyncContext;
+    
+    /**
+     * The queued body, or null if written directly.
+     */
+    private OutboundQueue queue;
+    
+    /**
+     * Kept across calls, as it holds any compressor.
+     */
+    private ResponseHelper helper;
 
     public AsyncCallback(Ruby runtime, RubyClass klass, HttpServletRequest req) {
+        this(runtime, klass, req, CoalescingOutputStream.DEFAULT_THRESHOLD, null, null, null, null, null, -1);
+    }
+
+    /**
+     * @param runtime
+     * @param klass
+     * @param req
+     * @param coalesceThreshold see {@link ResponseHelper}
+     * @param stats see {@link ResponseHelper}, may be null
+     * @param compression see {@link ResponseHelper}, may be null
+     * @param conditionalGet see {@link ResponseHelper}, may be null
+     * @param asyncOutput settings to queue output, or null to write
+     *        it directly
+     * @param timer for timeouts and heartbeats, or null to leave
+     *        timeouts to the container
+     * @param timeoutMillis timeout of the response, or -1 for the
+     *        container's default
+     */
+    public AsyncCallback(Ruby runtime,
+                         RubyClass klass,
+                         HttpServletRequest req,
+                         int coalesceThreshold,
+                         WriteStats stats,
+                         Compression compression,
+                         ConditionalGet conditionalGet,
+                         AsyncOutput asyncOutput,
+                         HashedWheelTimer timer,
+                         long timeoutMillis)
+    {
         super(runtime, klass);
         this.req = req;
+        this.coalesceThreshold = coalesceThreshold;
+        this.stats = stats;
+        this.compression = compression;
+        this.conditionalGet = conditionalGet;
+        this.asyncOutput = asyncOutput;
+        this.timer = timer;
+        this.timeoutMillis = timeoutMillis;
     }
     
     private IRubyObject asyncComplete() {
@@ -100,11 +223,401 @@ public final class AsyncCallback extends RubyObject {
     public synchronized void ensureStarted() {
         if (asyncContext == null) {
             asyncContext = req.startAsync();
+            if (asyncOutput != null) {
+                queue = asyncOutput.newQueue(asyncContext);
+            }
+            asyncContext.addListener(new Listener());
+            if (timer != null) {
+                if (timeoutMillis < 0) {
+                    timeoutMillis = asyncContext.getTimeout();
+                }
+                asyncContext.setTimeout(0);
+                scheduleTimeout();
+            } else if (timeoutMillis >= 0) {
+                asyncContext.setTimeout(timeoutMillis);
+            }
+        }
+    }
+    
+    /**
+     * Cancels timers once the response is done, and on a container
+     * timeout (when there is no timer), calls {@code on_timeout} and
+     * completes the response.
+     */
+    private final class Listener implements AsyncListener {
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            done();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            expire();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            done();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // noop
+        }
+
+    }
+    
+    /**
+     * Note the response is done and cancel its timers.
+     */
+    private void done() {
+        final List<Runnable> hooks;
+        synchronized (this) {
+            completed = true;
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+            if (heartbeat != null) {
+                heartbeat.cancel();
+                heartbeat = null;
+            }
+            hooks = completionHooks;
+            completionHooks = null;
+        }
+        if (hooks != null) {
+            for (Runnable hook : hooks) {
+                hook.run();
+            }
+        }
+    }
+    
+    /**
+     * Run {@code hook} once the response is done, or now if it is.
+     */
+    void onCompletion(Runnable hook) {
+        synchronized (this) {
+            if (!completed) {
+                if (completionHooks == null) {
+                    completionHooks = new ArrayList<Runnable>(1);
+                }
+                completionHooks.add(hook);
+                return;
+            }
+        }
+        hook.run();
+    }
+    
+    /**
+     * (Re)start the timeout from now.  Caller must hold {@code this}.
+     */
+    private void scheduleTimeout() {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+        if (timeoutMillis > 0 && !completed) {
+            timeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    startTask(new Runnable() {
+                        @Override
+                        public void run() {
+                            expire();
+                        }
+                    });
+                }
+            }, timeoutMillis);
+        }
+    }
+    
+    /**
+     * Run {@code task} on a container thread, off the timer thread.
+     */
+    private void startTask(Runnable task) {
+        if (completed) {
+            return;
+        }
+        try {
+            asyncContext.start(task);
+        } catch (IllegalStateException e) {
+            // already complete
+        }
+    }
+    
+    /**
+     * Call {@code on_timeout}, then complete the response if it has not
+     * been.
+     */
+    private void expire() {
+        if (completed) {
+            return;
+        }
+        final Block block;
+        synchronized (this) {
+            block = onTimeout;
+        }
+        final ThreadContext context = getRuntime().getCurrentContext();
+        try {
+            if (block != null) {
+                block.call(context);
+            }
+        } finally {
+            try {
+                complete();
+            } catch (IOException e) {
+                // the client is gone, or will be
+            } catch (IllegalStateException e) {
+                // already complete
+            }
+        }
+    }
+    
+    /**
+     * Write the heartbeat if nothing has been written for an interval,
+     * then schedule the next.
+     */
+    private synchronized void scheduleHeartbeat() {
+        if (heartbeat != null) {
+            heartbeat.cancel();
+            heartbeat = null;
+        }
+        if (heartbeatMillis > 0 && timer != null && !completed) {
+            heartbeat = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    final long idle = (System.nanoTime() - lastWrite) / 1000000L;
+                    if (streaming && idle >= heartbeatMillis) {
+                        startTask(new Runnable() {
+                            @Override
+                            public void run() {
+                                writeHeartbeat();
+                            }
+                        });
+                    }
+                    scheduleHeartbeat();
+                }
+            }, heartbeatMillis);
+        }
+    }
+    
+    private void writeHeartbeat() {
+        final IRubyObject data;
+        synchronized (this) {
+            data = heartbeatData;
+        }
+        if (completed || data == null) {
+            return;
+        }
+        final Ruby runtime = getRuntime();
+        try {
+            synchronized (writeLock) {
+                if (!completed) {
+                    getHelper().writeBodyFlush(runtime.getCurrentContext(), runtime.newArray(data));
+                    lastWrite = System.nanoTime();
+                }
+            }
+        } catch (IOException e) {
+            // the client is gone; the container will end the response
         }
     }
     
     private HttpServletResponse getResponse() {
-        return (HttpServletResponse) asyncContext.getResponse();
+        final HttpServletResponse resp = (HttpServletResponse) asyncContext.getResponse();
+        return (queue == null) ? resp : queue.wrap(resp);
+    }
+    
+    private synchronized ResponseHelper getHelper() {
+        if (helper == null) {
+            helper = new ResponseHelper(req,
+                                        getResponse(),
+                                        this,
+                                        getMetaClass(),
+                                        coalesceThreshold,
+                                        stats,
+                                        compression,
+                                        conditionalGet,
+                                        false);
+        }
+        return helper;
+    }
+    
+    /**
+     * End any compressed body, then complete the async response.
+     */
+    private void complete() throws IOException {
+        synchronized (writeLock) {
+            if (completed) {
+                return;
+            }
+            try {
+                getHelper().finish();
+            } finally {
+                done();
+                if (queue == null) {
+                    asyncContext.complete();
+                } else {
+                    queue.complete();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Set the response's timeout, from now.
+     *
+     * @param seconds nil or 0 for none
+     */
+    @JRubyMethod(name = "timeout=")
+    public IRubyObject set_timeout(ThreadContext context, IRubyObject seconds) {
+        ensureStarted();
+        final long millis = seconds.isNil() ? 0 : (long) (RubyNumeric.num2dbl(seconds) * 1000);
+        synchronized (this) {
+            timeoutMillis = millis;
+            if (timer != null) {
+                scheduleTimeout();
+            } else {
+                asyncContext.setTimeout(millis);
+            }
+        }
+        return seconds;
+    }
+    
+    /**
+     * Register a block called when the response times out, before it
+     * is completed.
+     */
+    @JRubyMethod
+    public synchronized IRubyObject on_timeout(ThreadContext context, Block block) {
+        onTimeout = block.isGiven() ? block : null;
+        return context.nil;
+    }
+    
+    /**
+     * Write {@code data} whenever nothing has been written for
+     * {@code seconds}, as for long-poll keepalives.
+     *
+     * @param seconds nil or 0 to stop
+     */
+    @JRubyMethod(required = 1, optional = 1)
+    public IRubyObject heartbeat(ThreadContext context, IRubyObject[] args) {
+        if (timer == null) {
+            throw context.getRuntime().newNotImplementedError("heartbeat requires the async timer");
+        }
+        ensureStarted();
+        synchronized (this) {
+            heartbeatMillis = args[0].isNil() ? 0 : (long) (RubyNumeric.num2dbl(args[0]) * 1000);
+            heartbeatData = (args.length > 1) ? args[1].convertToString() : context.getRuntime().newString("\n");
+        }
+        scheduleHeartbeat();
+        return context.nil;
+    }
+    
+    /**
+     * Wait, if so configured, for a queue that is not writable.
+     */
+    private void awaitWritable() throws IOException {
+        final long timeout = asyncOutput.getWriteTimeoutMillis();
+        if (timeout > 0 && !queue.isWritable() && !queue.awaitWritable(timeout)) {
+            throw getRuntime().newIOError("timed out after " + timeout + "ms waiting for " +
+                                          queue.getQueuedBytes() + " queued bytes to be sent");
+        }
+    }
+    
+    /**
+     * @return false if async output is queued and too much is queued
+     */
+    @JRubyMethod(name = "writable?")
+    public IRubyObject writable_p(ThreadContext context) {
+        ensureStarted();
+        return context.getRuntime().newBoolean(queue == null || queue.isWritable());
+    }
+    
+    /**
+     * @return the number of bytes queued and not yet sent, or 0 if
+     *         async output is not queued
+     */
+    @JRubyMethod
+    public IRubyObject queued_bytes(ThreadContext context) {
+        ensureStarted();
+        return context.getRuntime().newFixnum((queue == null) ? 0 : queue.getQueuedBytes());
+    }
+    
+    /**
+     * @return true once the status and headers are sent
+     */
+    boolean isStreaming() {
+        return streaming;
+    }
+    
+    boolean isCompleted() {
+        return completed;
+    }
+    
+    /**
+     * @return true if async output is queued
+     */
+    boolean isQueued() {
+        ensureStarted();
+        return queue != null;
+    }
+    
+    /**
+     * @return the bytes queued and not yet sent, or 0 if async output
+     *         is not queued
+     */
+    long getQueuedBytes() {
+        return (queue == null) ? 0 : queue.getQueuedBytes();
+    }
+    
+    /**
+     * Write bytes shared with other responses.  If queued and not
+     * compressed, {@code message} itself is queued, without copying;
+     * see {@link OutboundQueue#writeShared}.
+     */
+    void writeShared(ByteBuffer message) throws IOException {
+        synchronized (writeLock) {
+            if (completed) {
+                throw new IOException("async response complete");
+            }
+            final ResponseHelper resp = getHelper();
+            if (queue != null && !resp.isCompressing()) {
+                queue.writeShared(message);
+                queue.flush();
+            } else {
+                resp.writeFlush(message.array(),
+                                message.arrayOffset() + message.position(),
+                                message.remaining());
+            }
+            lastWrite = System.nanoTime();
+        }
+    }
+    
+    /**
+     * End the response now, discarding anything queued, as for a
+     * client too slow to keep.  Unqueued responses are completed as
+     * usual.
+     */
+    void disconnect(String reason) {
+        if (queue != null) {
+            synchronized (writeLock) {
+                if (completed) {
+                    return;
+                }
+                done();
+                getHelper().release();
+            }
+            queue.abort(reason);
+        } else {
+            try {
+                complete();
+            } catch (IOException e) {
+                // the client is gone
+            } catch (IllegalStateException e) {
+                // already complete
+            }
+        }
     }
     
     @JRubyMethod(required = 1)
@@ -112,43 +625,58 @@ public final class AsyncCallback extends RubyObject {
         ensureStarted();
         
         if (asyncComplete().eql(response)) {
-            asyncContext.complete();
+            complete();
         } else {
-            final ResponseHelper resp = new ResponseHelper(getResponse(), this, getMetaClass());
-            final RubyArray ary = response.convertToArray();
+            if (queue != null) {
+                awaitWritable();
+            }
+            synchronized (writeLock) {
+                write(context, response);
+            }
+        }
+        
+        return context.nil;
+    }
+    
+    private void write(ThreadContext context, IRubyObject response) throws IOException {
+        final ResponseHelper resp = getHelper();
+        final RubyArray ary = response.convertToArray();
+        
+        final int status = ((Long) ary.get(0)).intValue();
+        final IRubyObject body = ary.aref(RubyFixnum.two(getRuntime()));
+        if (status > 0) {
+            // first call to callback sends the headers immediately
+            final RubyHash headers = ary.aref(RubyFixnum.one(getRuntime())).convertToHash();
+            resp.startStreaming(context, status, headers);
+            resp.flush();
+            streaming = true;
             
-            final int status = ((Long) ary.get(0)).intValue();
-            final IRubyObject body = ary.aref(RubyFixnum.two(getRuntime()));
-            if (status > 0) {
-                // first call to callback sends the headers immediately
-                final RubyHash headers = ary.aref(RubyFixnum.one(getRuntime())).convertToHash();
-                resp.setHeaders(status, headers);
-                resp.flush();
-                
-                if (body.respondsTo("callback")) {
-                    // Set a callback which will be called to indicate "complete".
-                    // This is an (annoying) alternate to the ASYNC_COMPLETE sentinel.
-                    final Block block = CallBlock.newCallClosure(this, getMetaClass(), Arity.NO_ARGUMENTS, new BlockCallback() {
+            if (body.respondsTo("callback")) {
+                // Set a callback which will be called to indicate "complete".
+                // This is an (annoying) alternate to the ASYNC_COMPLETE sentinel.
+                final Block block = CallBlock.newCallClosure(this, getMetaClass(), Arity.NO_ARGUMENTS, new BlockCallback() {
 
-                        @Override
-                        public IRubyObject call(ThreadContext context, IRubyObject[] _args, Block _block) {
-                            asyncContext.complete();
-                            return context.nil;
+                    @Override
+                    public IRubyObject call(ThreadContext context, IRubyObject[] _args, Block _block) {
+                        try {
+                            complete();
+                        } catch (IOException e) {
+                            throw context.getRuntime().newIOErrorFromException(e);
                         }
-                        
-                    }, context);
+                        return context.nil;
+                    }
+                    
+                }, context);
 
-                    body.callMethod(context, "callback", ResponseHelper.ARGS_NONE, block);
-                }
-                
-                resp.writeBodyFlush(context, body);
-            } else {
-                // second and subsequent calls ignore headers
-                resp.writeBodyFlush(context, body);
+                body.callMethod(context, "callback", ResponseHelper.ARGS_NONE, block);
             }
+            
+            resp.writeBodyFlush(context, body);
+        } else {
+            // second and subsequent calls ignore headers
+            resp.writeBodyFlush(context, body);
         }
-        
-        return context.nil;
+        lastWrite = System.nanoTime();
     }
 
 }
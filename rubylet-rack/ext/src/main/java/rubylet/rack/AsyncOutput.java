@@ -0,0 +1,57 @@
+package rubylet.rack;
+
+import javax.servlet.AsyncContext;
+
+/**
+ * Settings for queued async output: each async response gets an
+ * {@link OutboundQueue} of body bytes, drained to the client off the
+ * Ruby thread, with watermarks that report backpressure.
+ *
+ * <p>Threadsafe.
+ */
+public final class AsyncOutput {
+
+    public static final int DEFAULT_HIGH_WATERMARK = 256 * 1024;
+
+    public static final int DEFAULT_LOW_WATERMARK = 64 * 1024;
+
+    public static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 0;
+
+    private final int highWatermark;
+
+    private final int lowWatermark;
+
+    private final long writeTimeoutMillis;
+
+    /**
+     * @param highWatermark queued bytes above which a response is not
+     *        writable
+     * @param lowWatermark queued bytes at or below which it is writable
+     *        again
+     * @param writeTimeoutMillis max time a write to an unwritable
+     *        response waits for it to become writable; 0 to never
+     *        wait
+     */
+    public AsyncOutput(int highWatermark, int lowWatermark, long writeTimeoutMillis) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("low watermark " + lowWatermark +
+                                               " is above high watermark " + highWatermark);
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+    }
+
+    public long getWriteTimeoutMillis() {
+        return writeTimeoutMillis;
+    }
+
+    /**
+     * @param asyncContext a started async response
+     * @return a queue for its body
+     */
+    public OutboundQueue newQueue(AsyncContext asyncContext) {
+        return new OutboundQueue(asyncContext, highWatermark, lowWatermark);
+    }
+
+}
@@ -0,0 +1,374 @@
+package rubylet.rack;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reads a whole request body before the application is called, as a
+ * buffering proxy would, so that a slow upload does not hold a Ruby
+ * thread while {@code rack.input} waits on the client.
+ *
+ * <p>The request is put into async mode and its body read into an
+ * {@link InputBuffer} (in memory, spilling to a temp file).  Where the
+ * container supports Servlet 3.1 non-blocking input, this is done
+ * through a {@code ReadListener} (found by reflection, as this is
+ * built against Servlet 3.0), reading only what is available as it
+ * arrives.  Otherwise the body is read by {@link AsyncContext#start}.
+ * Once all of it is read, the request is dispatched again, with the
+ * buffer as request attribute {@link #ATTRIBUTE}, which
+ * {@link EnvironmentBuilder} reads in place of the request's input.
+ *
+ * <p>Bodies larger than the max size are refused with 413, and bodies
+ * not received within the timeout with 408.
+ *
+ * <p>Threadsafe.
+ */
+public final class BodyPreReader {
+
+    /**
+     * Request attribute holding the {@link InputBuffer} of a body read
+     * in full.
+     */
+    public static final String ATTRIBUTE = "rubylet.preReadBody";
+
+    public static final long DEFAULT_MAX_SIZE = 16L * 1024 * 1024;
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+
+    private static final int SC_REQUEST_TIMEOUT = 408;
+
+    /**
+     * Servlet 3.1 {@code ServletInputStream} methods, or null if not
+     * available.
+     */
+    private static final Class<?> READ_LISTENER;
+
+    private static final Method SET_READ_LISTENER;
+
+    private static final Method IS_READY;
+
+    static {
+        Class<?> listener = null;
+        Method setReadListener = null;
+        Method isReady = null;
+        try {
+            listener = Class.forName("javax.servlet.ReadListener");
+            setReadListener = ServletInputStream.class.getMethod("setReadListener", listener);
+            isReady = ServletInputStream.class.getMethod("isReady");
+        } catch (ClassNotFoundException e) {
+            listener = null;
+        } catch (NoSuchMethodException e) {
+            listener = null;
+        }
+        READ_LISTENER = listener;
+        SET_READ_LISTENER = (listener == null) ? null : setReadListener;
+        IS_READY = (listener == null) ? null : isReady;
+    }
+
+    private final String[] patterns;
+
+    /**
+     * Media types to pre-read, or null for all.
+     */
+    private final Set<String> types;
+
+    private final long maxSize;
+
+    private final long timeoutMillis;
+
+    private final EnvironmentBuilder envBuilder;
+
+    /**
+     * @param patterns Servlet URL patterns of requests to pre-read
+     * @param types comma separated media types to pre-read, or null for
+     *        all
+     * @param maxSize max bytes of a body
+     * @param timeoutMillis max time to receive a body
+     * @param envBuilder creates the buffers, as for {@code rack.input}
+     */
+    public BodyPreReader(String[] patterns,
+                         String types,
+                         long maxSize,
+                         long timeoutMillis,
+                         EnvironmentBuilder envBuilder)
+    {
+        this.patterns = patterns;
+        if (types == null) {
+            this.types = null;
+        } else {
+            this.types = new HashSet<String>();
+            for (String type : types.split(",")) {
+                final String t = type.trim().toLowerCase(Locale.ENGLISH);
+                if (t.length() > 0) {
+                    this.types.add(t);
+                }
+            }
+        }
+        this.maxSize = maxSize;
+        this.timeoutMillis = timeoutMillis;
+        this.envBuilder = envBuilder;
+    }
+
+    /**
+     * @return true if the body of {@code req} is to be read before
+     *         calling the application: it has a body, has not been
+     *         pre-read already, and matches the patterns and types
+     */
+    public boolean isPreRead(HttpServletRequest req) {
+        if (req.getAttribute(ATTRIBUTE) != null) {
+            return false;
+        }
+        if (req.getContentLength() <= 0 && req.getHeader("Transfer-Encoding") == null) {
+            return false;
+        }
+        if (types != null) {
+            final String contentType = req.getContentType();
+            if (contentType == null) {
+                return false;
+            }
+            final int semi = contentType.indexOf(';');
+            final String type = ((semi < 0) ? contentType : contentType.substring(0, semi))
+                    .trim().toLowerCase(Locale.ENGLISH);
+            if (!types.contains(type)) {
+                return false;
+            }
+        }
+        return EnvironmentBuilder.matchesAny(patterns, req);
+    }
+
+    /**
+     * Start reading the body of {@code req} (which must be
+     * {@link #isPreRead}), dispatching it again once read.  Returns
+     * without waiting.
+     */
+    public void start(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (req.getContentLength() > maxSize) {
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+
+        final AsyncContext asyncContext = req.startAsync();
+        asyncContext.setTimeout(timeoutMillis);
+        final Read read = new Read(asyncContext, req.getInputStream());
+        asyncContext.addListener(read);
+        if (READ_LISTENER != null) {
+            final Object listener = Proxy.newProxyInstance(READ_LISTENER.getClassLoader(),
+                                                           new Class<?>[] { READ_LISTENER },
+                                                           read);
+            read.invoke(SET_READ_LISTENER, listener);
+        } else {
+            asyncContext.start(read);
+        }
+    }
+
+    /**
+     * The reading of one body.  Handles {@code ReadListener} callbacks,
+     * or reads it all (blocking) when run.
+     */
+    private final class Read implements InvocationHandler, Runnable, AsyncListener {
+
+        private final AsyncContext asyncContext;
+
+        private final ServletInputStream in;
+
+        private final InputBuffer buffer;
+
+        /**
+         * Set once the request is dispatched or ended.
+         */
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        /**
+         * True while a thread is filling the buffer, which then closes
+         * it if the request failed meanwhile.  Guarded by {@code this}.
+         */
+        private boolean reading;
+
+        /**
+         * True once the request failed and the buffer is to be closed.
+         * Guarded by {@code this}.
+         */
+        private boolean failed;
+
+        Read(AsyncContext asyncContext, ServletInputStream in) {
+            this.asyncContext = asyncContext;
+            this.in = in;
+            final long contentLength = asyncContext.getRequest().getContentLength();
+            this.buffer = envBuilder.newInputBuffer(in, contentLength);
+        }
+
+        private Object invoke(Method method, Object... args) throws IOException {
+            try {
+                return method.invoke(in, args);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            } catch (InvocationTargetException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else {
+                    throw new IOException(cause);
+                }
+            }
+        }
+
+        /**
+         * Read until {@code available} is false or the end of the body.
+         *
+         * @return false if the body is too large
+         */
+        private boolean fill(boolean nonBlocking) throws IOException {
+            synchronized (this) {
+                if (failed) {
+                    return true;
+                }
+                reading = true;
+            }
+            try {
+                while (!done.get() && !buffer.isEof() && (!nonBlocking || (Boolean) invoke(IS_READY))) {
+                    buffer.fillOnce();
+                    if (buffer.length() > maxSize) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                synchronized (this) {
+                    reading = false;
+                    if (failed) {
+                        closeBuffer();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (fill(false)) {
+                    dispatch();
+                } else {
+                    fail(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                }
+            } catch (IOException e) {
+                fail(HttpServletResponse.SC_BAD_REQUEST);
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            final String name = method.getName();
+            try {
+                if ("onDataAvailable".equals(name)) {
+                    if (!fill(true)) {
+                        fail(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                    }
+                    return null;
+                } else if ("onAllDataRead".equals(name)) {
+                    if (fill(false)) {
+                        dispatch();
+                    } else {
+                        fail(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                    }
+                    return null;
+                } else if ("onError".equals(name)) {
+                    fail(HttpServletResponse.SC_BAD_REQUEST);
+                    return null;
+                }
+            } catch (IOException e) {
+                fail(HttpServletResponse.SC_BAD_REQUEST);
+                return null;
+            }
+
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("toString".equals(name)) {
+                return "BodyPreReader.Read@" + Integer.toHexString(System.identityHashCode(proxy));
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        private void dispatch() {
+            if (done.compareAndSet(false, true)) {
+                asyncContext.getRequest().setAttribute(ATTRIBUTE, buffer);
+                asyncContext.dispatch();
+            }
+        }
+
+        /**
+         * End the request with {@code status} and no body, releasing
+         * the buffer.
+         */
+        private void fail(int status) {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            // InputBuffer is not threadsafe; a reading thread closes it
+            // once done
+            synchronized (this) {
+                failed = true;
+                if (!reading) {
+                    closeBuffer();
+                }
+            }
+            try {
+                final HttpServletResponse resp = (HttpServletResponse) asyncContext.getResponse();
+                if (!resp.isCommitted()) {
+                    resp.setStatus(status);
+                    resp.setHeader("Connection", "close");
+                    resp.setContentLength(0);
+                }
+            } finally {
+                asyncContext.complete();
+            }
+        }
+
+        private void closeBuffer() {
+            try {
+                buffer.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            fail(SC_REQUEST_TIMEOUT);
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            fail(HttpServletResponse.SC_BAD_REQUEST);
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            // noop
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // noop
+        }
+
+    }
+
+}
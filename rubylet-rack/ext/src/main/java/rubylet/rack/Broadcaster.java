@@ -0,0 +1,367 @@
+package rubylet.rack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyHash;
+import org.jruby.RubyModule;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.Visibility;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * Fans messages out to many async responses subscribed by topic.  A
+ * message is published once: its bytes are copied from the Ruby string
+ * once, and the same buffer is written to every subscriber.
+ * Subscribers must have queued async output ({@code rubylet.asyncQueue}),
+ * so a slow client never blocks the publisher and lag can be measured.
+ * Unless a response is compressed, the buffer itself is queued on it
+ * without copying (see {@link OutboundQueue#writeShared}); otherwise
+ * its bytes are compressed into the queue.
+ *
+ * <p>A subscriber with more than {@code max_lag} bytes queued when a
+ * message is published is too slow to keep.  It is unsubscribed from
+ * every topic and, unless {@code on_lag} is {@code :drop}, its
+ * response ended at once, discarding what is queued.  Responses are
+ * unsubscribed from every topic as they complete.
+ *
+ * <p>Example Rack application:
+ *
+ * <pre><code>
+ *    HUB = Rubylet::Rack::Broadcaster.new(:max_lag => 65536)
+ *
+ *    class Events
+ *      def call(env)
+ *        cb = env['async.callback']
+ *        cb.call [200, {'Content-Type' => 'text/event-stream'}, []]
+ *        HUB.subscribe(env['PATH_INFO'], cb)
+ *        throw :async
+ *      end
+ *    end
+ *
+ *    # elsewhere
+ *    HUB.publish('/chat/42', "data: hello\n\n")
+ * </code></pre>
+ *
+ * <p>Threadsafe.
+ */
+@JRubyClass(name = "Rubylet::Rack::Broadcaster")
+public final class Broadcaster extends RubyObject {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final long DEFAULT_MAX_LAG = 1024 * 1024;
+
+    public static void create(Ruby runtime) {
+        final RubyModule rubylet = runtime.defineModule("Rubylet");
+        final RubyModule rack = rubylet.defineModuleUnder("Rack");
+        final RubyClass broadcaster = rack.defineClassUnder("Broadcaster",
+                                                            runtime.getObject(),
+                                                            ALLOCATOR);
+        broadcaster.defineAnnotatedMethods(Broadcaster.class);
+    }
+
+    private static final ObjectAllocator ALLOCATOR = new ObjectAllocator() {
+
+        @Override
+        public IRubyObject allocate(Ruby runtime, RubyClass klass) {
+            return new Broadcaster(runtime, klass);
+        }
+
+    };
+
+    private final ConcurrentHashMap<String, Set<AsyncCallback>> topics =
+            new ConcurrentHashMap<String, Set<AsyncCallback>>();
+
+    /**
+     * The topics of each subscriber.
+     */
+    private final ConcurrentHashMap<AsyncCallback, Set<String>> subscriptions =
+            new ConcurrentHashMap<AsyncCallback, Set<String>>();
+
+    private long maxLag = DEFAULT_MAX_LAG;
+
+    /**
+     * If true, end the responses of lagging subscribers; else only
+     * unsubscribe them.
+     */
+    private boolean disconnect = true;
+
+    private final AtomicLong published = new AtomicLong();
+
+    private final AtomicLong publishedBytes = new AtomicLong();
+
+    private final AtomicLong delivered = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    public Broadcaster(Ruby runtime, RubyClass klass) {
+        super(runtime, klass);
+    }
+
+    /**
+     * @param options {@code :max_lag}, the bytes a subscriber may have
+     *        queued (default 1048576), and {@code :on_lag},
+     *        {@code :disconnect} (default) or {@code :drop}
+     */
+    @JRubyMethod(optional = 1, visibility = Visibility.PRIVATE)
+    public IRubyObject initialize(ThreadContext context, IRubyObject[] args) {
+        if (args.length == 1 && !args[0].isNil()) {
+            final Ruby runtime = context.getRuntime();
+            final RubyHash options = args[0].convertToHash();
+            final IRubyObject lag = options.fastARef(runtime.newSymbol("max_lag"));
+            if (lag != null && !lag.isNil()) {
+                maxLag = RubyNumeric.num2long(lag);
+            }
+            final IRubyObject onLag = options.fastARef(runtime.newSymbol("on_lag"));
+            if (onLag != null && !onLag.isNil()) {
+                final String policy = onLag.asJavaString();
+                if ("drop".equals(policy)) {
+                    disconnect = false;
+                } else if ("disconnect".equals(policy)) {
+                    disconnect = true;
+                } else {
+                    throw runtime.newArgumentError("on_lag must be :disconnect or :drop: " + policy);
+                }
+            }
+        }
+        return this;
+    }
+
+    private static AsyncCallback toCallback(ThreadContext context, IRubyObject callback) {
+        if (!(callback instanceof AsyncCallback)) {
+            throw context.getRuntime().newTypeError(callback, context.getRuntime()
+                    .getClassFromPath("Rubylet::Rack::AsyncCallback"));
+        }
+        return (AsyncCallback) callback;
+    }
+
+    /**
+     * Subscribe an async response to {@code topic}.  Its output must be
+     * queued, and its status and headers sent.
+     *
+     * @return the callback
+     */
+    @JRubyMethod(required = 2)
+    public IRubyObject subscribe(ThreadContext context, IRubyObject topic, IRubyObject callback) {
+        final AsyncCallback cb = toCallback(context, callback);
+        if (!cb.isQueued()) {
+            throw context.getRuntime().newArgumentError("subscribers need queued async output; set rubylet.asyncQueue");
+        }
+        if (!cb.isStreaming()) {
+            throw context.getRuntime().newArgumentError("send the status and headers before subscribing");
+        }
+        final String name = topic.asString().toString();
+        Set<String> names = subscriptions.get(cb);
+        if (names == null) {
+            names = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            final Set<String> existing = subscriptions.putIfAbsent(cb, names);
+            if (existing == null) {
+                cb.onCompletion(new Runnable() {
+                    @Override
+                    public void run() {
+                        unsubscribeAll(cb);
+                    }
+                });
+            } else {
+                names = existing;
+            }
+        }
+        names.add(name);
+        add(name, cb);
+        if (cb.isCompleted()) {
+            // completed meanwhile, maybe before this topic was noted
+            unsubscribeAll(cb);
+            remove(name, cb);
+        }
+        return callback;
+    }
+
+    private void add(String topic, AsyncCallback cb) {
+        while (true) {
+            Set<AsyncCallback> subscribers = topics.get(topic);
+            if (subscribers == null) {
+                subscribers = Collections.newSetFromMap(new ConcurrentHashMap<AsyncCallback, Boolean>());
+                final Set<AsyncCallback> existing = topics.putIfAbsent(topic, subscribers);
+                if (existing != null) {
+                    subscribers = existing;
+                }
+            }
+            subscribers.add(cb);
+            // the set may have been removed as empty meanwhile
+            if (topics.get(topic) == subscribers) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Unsubscribe a response from {@code topic}.
+     *
+     * @return true if it was subscribed
+     */
+    @JRubyMethod(required = 2)
+    public IRubyObject unsubscribe(ThreadContext context, IRubyObject topic, IRubyObject callback) {
+        final String name = topic.asString().toString();
+        final AsyncCallback cb = toCallback(context, callback);
+        final Set<String> names = subscriptions.get(cb);
+        if (names != null) {
+            names.remove(name);
+        }
+        return context.getRuntime().newBoolean(remove(name, cb));
+    }
+
+    /**
+     * Unsubscribe {@code cb} from every topic.
+     *
+     * @return true if it was subscribed to any
+     */
+    private boolean unsubscribeAll(AsyncCallback cb) {
+        final Set<String> names = subscriptions.remove(cb);
+        boolean removed = false;
+        if (names != null) {
+            for (String name : names) {
+                removed |= remove(name, cb);
+            }
+        }
+        return removed;
+    }
+
+    private boolean remove(String topic, AsyncCallback cb) {
+        final Set<AsyncCallback> subscribers = topics.get(topic);
+        if (subscribers == null || !subscribers.remove(cb)) {
+            return false;
+        }
+        if (subscribers.isEmpty() && topics.remove(topic, subscribers)) {
+            // add again any that subscribed meanwhile
+            for (AsyncCallback raced : subscribers) {
+                add(topic, raced);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Send {@code message} to every subscriber of {@code topic}.
+     *
+     * @return the number of subscribers it was sent to
+     */
+    @JRubyMethod(required = 2)
+    public IRubyObject publish(ThreadContext context, IRubyObject topic, IRubyObject message) {
+        final String name = topic.asString().toString();
+        final ByteList bytes = message.convertToString().getByteList();
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes.bytes());
+
+        published.incrementAndGet();
+        publishedBytes.addAndGet(buffer.remaining());
+
+        final Set<AsyncCallback> subscribers = topics.get(name);
+        int count = 0;
+        if (subscribers != null && buffer.hasRemaining()) {
+            for (AsyncCallback cb : subscribers) {
+                if (cb.isCompleted()) {
+                    unsubscribeAll(cb);
+                } else if (cb.getQueuedBytes() > maxLag) {
+                    drop(cb, "subscriber more than " + maxLag + " bytes behind");
+                } else {
+                    try {
+                        cb.writeShared(buffer);
+                        ++count;
+                    } catch (IOException e) {
+                        drop(cb, e.getMessage());
+                    } catch (RuntimeException e) {
+                        // e.g. IllegalStateException from a context the
+                        // container has already completed
+                        drop(cb, e.toString());
+                    }
+                }
+            }
+        }
+        delivered.addAndGet(count);
+        return context.getRuntime().newFixnum(count);
+    }
+
+    /**
+     * Unsubscribe {@code cb} from every topic, and end its response if
+     * so configured.
+     */
+    private void drop(AsyncCallback cb, String reason) {
+        if (unsubscribeAll(cb)) {
+            dropped.incrementAndGet();
+        }
+        if (disconnect) {
+            cb.disconnect(reason);
+        }
+    }
+
+    /**
+     * @return the number of subscribers of {@code topic}, or of all
+     *         subscriptions if no topic is given
+     */
+    @JRubyMethod(optional = 1)
+    public IRubyObject subscribers(ThreadContext context, IRubyObject[] args) {
+        long count = 0;
+        if (args.length == 1 && !args[0].isNil()) {
+            final Set<AsyncCallback> subscribers = topics.get(args[0].asString().toString());
+            count = (subscribers == null) ? 0 : subscribers.size();
+        } else {
+            for (Set<AsyncCallback> subscribers : topics.values()) {
+                count += subscribers.size();
+            }
+        }
+        return context.getRuntime().newFixnum(count);
+    }
+
+    /**
+     * @return a hash of {@code :topics}, {@code :subscribers}
+     *         (subscriptions), {@code :published} (messages),
+     *         {@code :published_bytes}, {@code :delivered} (writes to
+     *         subscribers), {@code :dropped} (lagging or failed
+     *         subscribers), {@code :lag} (bytes queued for all
+     *         subscribers) and {@code :max_lag} (most bytes queued for
+     *         one)
+     */
+    @JRubyMethod
+    public IRubyObject stats(ThreadContext context) {
+        final Ruby runtime = context.getRuntime();
+        long subscriptions = 0;
+        long lag = 0;
+        long maxQueued = 0;
+        final Set<AsyncCallback> seen = Collections.newSetFromMap(new IdentityHashMap<AsyncCallback, Boolean>());
+        for (Set<AsyncCallback> subscribers : topics.values()) {
+            for (AsyncCallback cb : subscribers) {
+                ++subscriptions;
+                if (seen.add(cb)) {
+                    final long queued = cb.getQueuedBytes();
+                    lag += queued;
+                    maxQueued = Math.max(maxQueued, queued);
+                }
+            }
+        }
+
+        final RubyHash stats = RubyHash.newHash(runtime);
+        stats.fastASet(runtime.newSymbol("topics"), runtime.newFixnum(topics.size()));
+        stats.fastASet(runtime.newSymbol("subscribers"), runtime.newFixnum(subscriptions));
+        stats.fastASet(runtime.newSymbol("published"), runtime.newFixnum(published.get()));
+        stats.fastASet(runtime.newSymbol("published_bytes"), runtime.newFixnum(publishedBytes.get()));
+        stats.fastASet(runtime.newSymbol("delivered"), runtime.newFixnum(delivered.get()));
+        stats.fastASet(runtime.newSymbol("dropped"), runtime.newFixnum(dropped.get()));
+        stats.fastASet(runtime.newSymbol("lag"), runtime.newFixnum(lag));
+        stats.fastASet(runtime.newSymbol("max_lag"), runtime.newFixnum(maxQueued));
+        return stats;
+    }
+
+}
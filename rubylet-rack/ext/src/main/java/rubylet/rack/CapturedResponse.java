@@ -0,0 +1,190 @@
+package rubylet.rack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The status, headers, and body bytes of a response that has already
+ * been sent once, so that it may be sent again without calling the
+ * application.
+ *
+ * <p>Immutable, and so threadsafe.
+ */
+public final class CapturedResponse {
+
+    private static final String CONTENT_TYPE = "Content-Type";
+
+    private static final String CONTENT_LENGTH = "Content-Length";
+
+    private final int status;
+
+    private final String[] names;
+
+    private final String[] values;
+
+    private final ByteBuffer body;
+
+    /**
+     * @param status
+     * @param names header names, parallel to {@code values}
+     * @param values header values
+     * @param body the body bytes, position to limit; not to be
+     *        modified after
+     */
+    public CapturedResponse(int status, String[] names, String[] values, ByteBuffer body) {
+        this.status = status;
+        this.names = names;
+        this.values = values;
+        this.body = body;
+    }
+
+    /**
+     * @return a copy with the body in a direct (off heap) buffer
+     */
+    public CapturedResponse toDirect() {
+        if (body.isDirect()) {
+            return this;
+        }
+        final ByteBuffer direct = ByteBuffer.allocateDirect(body.remaining());
+        direct.put(body.duplicate());
+        direct.flip();
+        return new CapturedResponse(status, names, values, direct);
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the number of body bytes
+     */
+    public int getBodySize() {
+        return body.remaining();
+    }
+
+    /**
+     * @return the approximate bytes held by the header names and values
+     */
+    public long getHeaderSize() {
+        long n = 0;
+        for (int i = 0; i < names.length; ++i) {
+            n += 2L * (names[i].length() + values[i].length());
+        }
+        return n;
+    }
+
+    /**
+     * @return the first value of header {@code name}, or null
+     */
+    public String getHeader(String name) {
+        for (int i = 0; i < names.length; ++i) {
+            if (names[i].equalsIgnoreCase(name)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if there is a header {@code name}
+     */
+    public boolean containsHeader(String name) {
+        return getHeader(name) != null;
+    }
+
+    /**
+     * @return every value of header {@code name}, comma joined, or
+     *         null
+     */
+    public String getHeaders(String name) {
+        StringBuilder joined = null;
+        for (int i = 0; i < names.length; ++i) {
+            if (names[i].equalsIgnoreCase(name)) {
+                if (joined == null) {
+                    joined = new StringBuilder(values[i]);
+                } else {
+                    joined.append(", ").append(values[i]);
+                }
+            }
+        }
+        return (joined == null) ? null : joined.toString();
+    }
+
+    /**
+     * Send this response in answer to {@code req}: with no body if it
+     * is a {@code HEAD}, or as a 304 if {@code conditional} and the
+     * request's conditions are satisfied by this response's
+     * validators.
+     *
+     * @param age the {@code Age} header to send, or -1 for none
+     */
+    public void respond(HttpServletRequest req,
+                        HttpServletResponse resp,
+                        boolean conditional,
+                        long age)
+            throws IOException
+    {
+        if (conditional && status == HttpServletResponse.SC_OK &&
+                ConditionalGet.isFresh(req, getHeader("ETag"), getHeader("Last-Modified")))
+        {
+            writeNotModifiedTo(resp);
+        } else {
+            writeTo(resp, !"HEAD".equals(req.getMethod()), age);
+        }
+    }
+
+    /**
+     * Send this response.
+     *
+     * @param withBody false to send only the status and headers, as
+     *        for {@code HEAD}
+     * @param age the {@code Age} header to send, or -1 for none
+     */
+    public void writeTo(HttpServletResponse resp, boolean withBody, long age) throws IOException {
+        resp.setStatus(status);
+        writeHeaders(resp, false);
+        if (age >= 0) {
+            resp.setHeader("Age", Long.toString(age));
+        }
+        if (withBody && body.hasRemaining()) {
+            final WritableByteChannel out = Channels.newChannel(resp.getOutputStream());
+            final ByteBuffer buf = body.duplicate();
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+        }
+    }
+
+    /**
+     * Send a 304 with this response's headers other than
+     * {@code Content-Type} and {@code Content-Length}, as
+     * {@code Rack::ConditionalGet} does.
+     */
+    public void writeNotModifiedTo(HttpServletResponse resp) {
+        resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        writeHeaders(resp, true);
+    }
+
+    private void writeHeaders(HttpServletResponse resp, boolean notModified) {
+        for (int i = 0; i < names.length; ++i) {
+            final String name = names[i];
+            if (CONTENT_TYPE.equalsIgnoreCase(name)) {
+                if (!notModified) {
+                    resp.setContentType(values[i]);
+                }
+            } else if (CONTENT_LENGTH.equalsIgnoreCase(name)) {
+                if (!notModified) {
+                    resp.setContentLength(Integer.parseInt(values[i]));
+                }
+            } else {
+                resp.addHeader(name, values[i]);
+            }
+        }
+    }
+
+}
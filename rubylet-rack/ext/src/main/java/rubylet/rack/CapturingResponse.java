@@ -0,0 +1,274 @@
+package rubylet.rack;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A response that passes everything through to the wrapped response
+ * while keeping a copy of the status, headers, and body bytes, for
+ * {@link #capture(boolean)} once the response is complete.
+ *
+ * <p>Responses sent by {@code sendError} or {@code sendRedirect},
+ * written through {@code getWriter}, whose body is larger than the
+ * limit, or whose {@code Content-Length} does not match the bytes
+ * written (as when the container sent a file itself) are not captured.
+ *
+ * <p>Not threadsafe.
+ */
+public final class CapturingResponse extends HttpServletResponseWrapper {
+
+    private static final String CONTENT_TYPE = "Content-Type";
+
+    private static final String CONTENT_LENGTH = "Content-Length";
+
+    /**
+     * Copies each write into {@link #body} as well.
+     */
+    private final class TeeOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream out;
+
+        TeeOutputStream(ServletOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            copy(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            copy(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+    }
+
+    private final int maxSize;
+
+    private int status = SC_OK;
+
+    private final List<String> names = new ArrayList<String>();
+
+    private final List<String> values = new ArrayList<String>();
+
+    private byte[] body = new byte[0];
+
+    private int size;
+
+    private boolean capturable = true;
+
+    private TeeOutputStream stream;
+
+    /**
+     * @param resp
+     * @param maxSize bodies larger than this are not captured
+     */
+    public CapturingResponse(HttpServletResponse resp, int maxSize) {
+        super(resp);
+        this.maxSize = maxSize;
+    }
+
+    private void copy(byte[] b, int off, int len) {
+        if (!capturable) {
+            return;
+        }
+        if (size + len > maxSize) {
+            abandon();
+            return;
+        }
+        if (size + len > body.length) {
+            body = Arrays.copyOf(body, Math.min(maxSize, Math.max(size + len, body.length * 2)));
+        }
+        System.arraycopy(b, off, body, size, len);
+        size += len;
+    }
+
+    private void removeHeader(String name) {
+        for (int i = names.size() - 1; i >= 0; --i) {
+            if (names.get(i).equalsIgnoreCase(name)) {
+                names.remove(i);
+                values.remove(i);
+            }
+        }
+    }
+
+    private void putHeader(String name, String value) {
+        removeHeader(name);
+        names.add(name);
+        values.add(value);
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        super.setStatus(sc);
+        status = sc;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setStatus(int sc, String sm) {
+        super.setStatus(sc, sm);
+        status = sc;
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        capturable = false;
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        capturable = false;
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        capturable = false;
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        super.setHeader(name, value);
+        putHeader(name, value);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        super.addHeader(name, value);
+        names.add(name);
+        values.add(value);
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        super.setIntHeader(name, value);
+        putHeader(name, Integer.toString(value));
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        super.addIntHeader(name, value);
+        names.add(name);
+        values.add(Integer.toString(value));
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        // values would have to be formatted as the container does
+        capturable = false;
+        super.setDateHeader(name, date);
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        capturable = false;
+        super.addDateHeader(name, date);
+    }
+
+    @Override
+    public void setContentType(String type) {
+        super.setContentType(type);
+        putHeader(CONTENT_TYPE, type);
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        super.setContentLength(len);
+        putHeader(CONTENT_LENGTH, Integer.toString(len));
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (stream == null) {
+            stream = new TeeOutputStream(super.getOutputStream());
+        }
+        return stream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        capturable = false;
+        return super.getWriter();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        status = SC_OK;
+        names.clear();
+        values.clear();
+        resetBuffer();
+    }
+
+    @Override
+    public void resetBuffer() {
+        super.resetBuffer();
+        if (capturable) {
+            size = 0;
+        }
+    }
+
+    /**
+     * Give up capturing, as when the response will be completed
+     * asynchronously.
+     */
+    public void abandon() {
+        capturable = false;
+        body = null;
+    }
+
+    /**
+     * @param head true if the response is to a {@code HEAD} request,
+     *        so has no body whatever its {@code Content-Length}
+     * @return the response as sent, or null if it could not be
+     *         captured.  The body is not copied, so this response
+     *         should be complete.
+     */
+    public CapturedResponse capture(boolean head) {
+        if (!capturable) {
+            return null;
+        }
+        final String contentLength = getCapturedHeader(CONTENT_LENGTH);
+        if (!head && contentLength != null && !contentLength.trim().equals(Integer.toString(size))) {
+            return null;
+        }
+        return new CapturedResponse(status,
+                                    names.toArray(new String[names.size()]),
+                                    values.toArray(new String[values.size()]),
+                                    ByteBuffer.wrap(body, 0, size));
+    }
+
+    private String getCapturedHeader(String name) {
+        for (int i = 0; i < names.size(); ++i) {
+            if (names.get(i).equalsIgnoreCase(name)) {
+                return values.get(i);
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,163 @@
+package rubylet.rack;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Gathers small writes into a buffer, writing them on to the Servlet
+ * output stream in larger blocks.  Writes at or above a threshold
+ * size go straight through (after anything already buffered).
+ *
+ * <p>The buffer is taken from a per-thread pool on the first small
+ * write and returned by {@link #close()} or {@link #release()}, so a
+ * request thread reuses one buffer across responses.  {@link #flush()}
+ * writes out the buffer and flushes the underlying stream, for
+ * streaming responses.  Counts of parts, bytes and underlying writes
+ * are added to a {@link WriteStats} when the stream is released.
+ *
+ * <p>Not threadsafe.
+ */
+public final class CoalescingOutputStream extends OutputStream {
+
+    /**
+     * Default size below which writes are coalesced.
+     */
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Idle buffer of each thread, if any.
+     */
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>();
+
+    private static byte[] takeBuffer() {
+        final byte[] buf = BUFFERS.get();
+        if (buf == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        BUFFERS.set(null);
+        return buf;
+    }
+
+    private final OutputStream out;
+
+    private final int threshold;
+
+    private final WriteStats stats;
+
+    private byte[] buf;
+
+    private int count;
+
+    private long parts;
+
+    private long bytes;
+
+    private long writes;
+
+    private boolean released;
+
+    /**
+     * @param out the stream to write to
+     * @param threshold writes of at least this many bytes are not
+     *        buffered; zero to disable buffering
+     * @param stats counts are added to this, may be null
+     */
+    public CoalescingOutputStream(OutputStream out, int threshold, WriteStats stats) {
+        this.out = out;
+        this.threshold = Math.min(threshold, BUFFER_SIZE);
+        this.stats = stats;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (released) {
+            throw new IOException("closed stream");
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        ++parts;
+        bytes += len;
+
+        if (len >= threshold) {
+            flushBuffer();
+            out.write(b, off, len);
+            ++writes;
+            return;
+        }
+
+        if (buf == null) {
+            buf = takeBuffer();
+        } else if (count + len > buf.length) {
+            flushBuffer();
+        }
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Write out anything buffered, without flushing the underlying
+     * stream.
+     */
+    public void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buf, 0, count);
+            ++writes;
+            count = 0;
+        }
+    }
+
+    /**
+     * Write out anything buffered and flush the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Write out anything buffered, then {@link #release()}.  Does not
+     * close the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (released) {
+            return;
+        }
+        try {
+            flushBuffer();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Discard anything buffered, return the buffer to the pool, and add
+     * the counts to the stats.  Further writes fail.
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        if (buf != null) {
+            BUFFERS.set(buf);
+            buf = null;
+            count = 0;
+        }
+        if (stats != null) {
+            stats.add(parts, bytes, writes);
+        }
+    }
+
+}
@@ -0,0 +1,267 @@
+package rubylet.rack;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Compresses a response body with gzip or deflate (zlib) as it is
+ * written.
+ *
+ * <p>If the body length is not known in advance, the first
+ * {@code minSize} bytes are held back: a body that ends before then
+ * is written uncompressed, with {@code Content-Length}.  Otherwise,
+ * {@code Content-Encoding} is set on the response when compression
+ * begins.
+ *
+ * <p>{@link #flush()} does a zlib sync flush, so that everything
+ * written so far reaches the client, for streaming responses.  (This
+ * needs Java 7; on older versions, a flush before compression begins
+ * leaves the body uncompressed, and later flushes only flush what zlib
+ * has already output.)
+ *
+ * <p>The deflater comes from a {@link DeflaterPool} and is returned to
+ * it on {@link #close()} or {@link #release()}.
+ *
+ * <p>Not threadsafe.
+ */
+public final class CompressingOutputStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final byte[] GZIP_HEADER = {
+        0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private static final byte[] ZLIB_HEADER = { 0x78, (byte) 0x9c };
+
+    private static final boolean SYNC_FLUSH_SUPPORTED = isSyncFlushSupported();
+
+    private static boolean isSyncFlushSupported() {
+        try {
+            Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private final OutputStream out;
+
+    private final HttpServletResponse resp;
+
+    private final boolean gzip;
+
+    private final DeflaterPool pool;
+
+    private final int minSize;
+
+    /**
+     * Bytes held back before deciding whether to compress.
+     */
+    private byte[] pending;
+
+    private int pendingCount;
+
+    private boolean decided;
+
+    private Deflater deflater;
+
+    private Checksum checksum;
+
+    private long size;
+
+    private byte[] buf;
+
+    private boolean closed;
+
+    /**
+     * @param out the stream to write to
+     * @param resp {@code Content-Encoding} (and perhaps
+     *        {@code Content-Length}) are set on this
+     * @param encoding {@link Compression#GZIP} or
+     *        {@link Compression#DEFLATE}
+     * @param pool source of the deflater
+     * @param minSize bodies shorter than this are not compressed; zero
+     *        to compress from the start
+     */
+    public CompressingOutputStream(OutputStream out,
+                                   HttpServletResponse resp,
+                                   String encoding,
+                                   DeflaterPool pool,
+                                   int minSize)
+    {
+        this.out = out;
+        this.resp = resp;
+        this.gzip = Compression.GZIP.equals(encoding);
+        this.pool = pool;
+        this.minSize = minSize;
+    }
+
+    /**
+     * @return true if the body is being compressed
+     */
+    public boolean isCompressing() {
+        return deflater != null;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("closed stream");
+        }
+    }
+
+    /**
+     * Decide whether to compress, then write anything held back.
+     */
+    private void decide(boolean compress) throws IOException {
+        decided = true;
+        if (compress) {
+            resp.setHeader("Content-Encoding", gzip ? Compression.GZIP : Compression.DEFLATE);
+            deflater = pool.take();
+            checksum = gzip ? new CRC32() : new Adler32();
+            buf = new byte[BUFFER_SIZE];
+            out.write(gzip ? GZIP_HEADER : ZLIB_HEADER);
+            if (pendingCount > 0) {
+                deflate(pending, 0, pendingCount);
+            }
+        } else if (pendingCount > 0) {
+            out.write(pending, 0, pendingCount);
+        }
+        pending = null;
+        pendingCount = 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len == 0) {
+            return;
+        }
+        if (!decided) {
+            if (pendingCount + len < minSize) {
+                if (pending == null) {
+                    pending = new byte[minSize];
+                }
+                System.arraycopy(b, off, pending, pendingCount, len);
+                pendingCount += len;
+                return;
+            }
+            decide(true);
+        }
+
+        if (deflater != null) {
+            deflate(b, off, len);
+        } else {
+            out.write(b, off, len);
+        }
+    }
+
+    private void deflate(byte[] b, int off, int len) throws IOException {
+        checksum.update(b, off, len);
+        size += len;
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            drain();
+        }
+    }
+
+    /**
+     * Write out whatever the deflater has ready.
+     */
+    private void drain() throws IOException {
+        final int n = deflater.deflate(buf, 0, buf.length);
+        if (n > 0) {
+            out.write(buf, 0, n);
+        }
+    }
+
+    /**
+     * Sync flush the deflater, and flush the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (!decided) {
+            decide(SYNC_FLUSH_SUPPORTED);
+        }
+        if (deflater != null && SYNC_FLUSH_SUPPORTED) {
+            int n;
+            do {
+                n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                if (n > 0) {
+                    out.write(buf, 0, n);
+                }
+            } while (n == buf.length);
+        }
+        out.flush();
+    }
+
+    /**
+     * Finish the body, and return the deflater to the pool.  Does not
+     * close the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (!decided) {
+                if (!resp.isCommitted()) {
+                    resp.setContentLength(pendingCount);
+                }
+                decide(false);
+            }
+            if (deflater != null) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    drain();
+                }
+                writeTrailer();
+            }
+        } finally {
+            release();
+        }
+    }
+
+    private void writeTrailer() throws IOException {
+        final long sum = checksum.getValue();
+        final byte[] trailer;
+        if (gzip) {
+            trailer = new byte[] {
+                (byte) sum, (byte) (sum >> 8), (byte) (sum >> 16), (byte) (sum >> 24),
+                (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24),
+            };
+        } else {
+            trailer = new byte[] {
+                (byte) (sum >> 24), (byte) (sum >> 16), (byte) (sum >> 8), (byte) sum,
+            };
+        }
+        out.write(trailer);
+    }
+
+    /**
+     * Return the deflater to the pool without finishing the body.
+     * Further writes fail.
+     */
+    public void release() {
+        closed = true;
+        pending = null;
+        if (deflater != null) {
+            pool.give(deflater);
+            deflater = null;
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+package rubylet.rack;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Settings for compressing response bodies, and negotiation of the
+ * content coding of each response.
+ *
+ * <p>A response is compressed if the client accepts {@code gzip} or
+ * {@code deflate} (gzip preferred), its media type is one of the
+ * configured types, and it is not already encoded, marked
+ * {@code no-transform}, partial, or known to be smaller than the
+ * minimum size.
+ *
+ * <p>Threadsafe.
+ */
+public final class Compression {
+
+    public static final String DEFAULT_TYPES =
+            "text/html,text/plain,text/css,text/javascript,text/xml," +
+            "application/javascript,application/x-javascript,application/json," +
+            "application/xml,application/atom+xml,application/rss+xml,image/svg+xml";
+
+    public static final int DEFAULT_MIN_SIZE = 1024;
+
+    public static final int DEFAULT_LEVEL = 6;
+
+    private static final int MAX_IDLE_DEFLATERS = 16;
+
+    public static final String GZIP = "gzip";
+
+    public static final String DEFLATE = "deflate";
+
+    private final Set<String> types = new HashSet<String>();
+
+    private final int minSize;
+
+    private final DeflaterPool pool;
+
+    /**
+     * @param types comma separated media types to compress
+     * @param minSize bodies known to be smaller than this are not
+     *        compressed
+     * @param level compression level, 1-9
+     */
+    public Compression(String types, int minSize, int level) {
+        for (String type : types.split(",")) {
+            final String t = type.trim().toLowerCase(Locale.ENGLISH);
+            if (t.length() > 0) {
+                this.types.add(t);
+            }
+        }
+        this.minSize = minSize;
+        this.pool = new DeflaterPool((level < 0) ? Deflater.DEFAULT_COMPRESSION : level,
+                                     MAX_IDLE_DEFLATERS);
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public DeflaterPool getPool() {
+        return pool;
+    }
+
+    /**
+     * @param contentType a {@code Content-Type} header value, may be
+     *        null
+     * @return true if its media type is one to compress
+     */
+    public boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        final int semi = contentType.indexOf(';');
+        final String type = (semi < 0) ? contentType : contentType.substring(0, semi);
+        return types.contains(type.trim().toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @return true if a response with these headers may be compressed,
+     *         depending on what the client accepts
+     */
+    public boolean isCompressible(int status,
+                                  String contentType,
+                                  String contentEncoding,
+                                  String cacheControl,
+                                  long contentLength)
+    {
+        if (status < 200 || status == 204 || status == 206 || status == 304) {
+            return false;
+        }
+        if (contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding.trim())) {
+            return false;
+        }
+        if (cacheControl != null &&
+                cacheControl.toLowerCase(Locale.ENGLISH).contains("no-transform"))
+        {
+            return false;
+        }
+        if (contentLength >= 0 && contentLength < minSize) {
+            return false;
+        }
+        return isCompressible(contentType);
+    }
+
+    /**
+     * Choose a content coding from an {@code Accept-Encoding} header.
+     *
+     * @return {@link #GZIP}, {@link #DEFLATE}, or null for neither
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (String part : acceptEncoding.split(",")) {
+            final int semi = part.indexOf(';');
+            final String coding = ((semi < 0) ? part : part.substring(0, semi)).trim();
+            final float q = (semi < 0) ? 1 : quality(part.substring(semi + 1));
+            if ("gzip".equalsIgnoreCase(coding) || "x-gzip".equalsIgnoreCase(coding)) {
+                gzip = Math.max(gzip, q);
+            } else if ("deflate".equalsIgnoreCase(coding)) {
+                deflate = Math.max(deflate, q);
+            } else if ("*".equals(coding)) {
+                any = q;
+            }
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        } else if (deflate > 0) {
+            return DEFLATE;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Parse the {@code q} parameter of an {@code Accept-Encoding}
+     * element, defaulting to 1.
+     */
+    private static float quality(String params) {
+        for (String param : params.split(";")) {
+            final String p = param.trim();
+            if (p.length() > 2 && (p.charAt(0) == 'q' || p.charAt(0) == 'Q') && p.charAt(1) == '=') {
+                try {
+                    return Float.parseFloat(p.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+}
@@ -0,0 +1,137 @@
+package rubylet.rack;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.jruby.RubyArray;
+import org.jruby.RubyString;
+import org.jruby.util.ByteList;
+
+/**
+ * Automatic {@code ETag}s and conditional GET, as
+ * {@code Rack::ETag} and {@code Rack::ConditionalGet} do in Ruby.
+ *
+ * <p>The tag of an array body is its length and CRC32, computed over
+ * the bytes of each part in place rather than over a joined copy.
+ * This is not a cryptographic hash; it need only change when the body
+ * does.  Tags are weak, since a body may be compressed on the way out.
+ *
+ * <p>Threadsafe.
+ */
+public final class ConditionalGet {
+
+    public static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+
+    private static final String RFC1123_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+
+    private final int maxSize;
+
+    /**
+     * @param maxSize array bodies larger than this are not tagged
+     */
+    public ConditionalGet(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param length total bytes of an array body
+     * @return true if a body of this length should be tagged
+     */
+    public boolean isTaggable(long length) {
+        return length > 0 && length <= maxSize;
+    }
+
+    /**
+     * @param body an array of strings
+     * @param length total bytes of {@code body}
+     * @return a weak entity tag for the bytes of {@code body}
+     */
+    public static String etag(RubyArray body, long length) {
+        final CRC32 crc = new CRC32();
+        for (int i = 0, len = body.getLength(); i < len; ++i) {
+            final ByteList bytes = ((RubyString) body.eltInternal(i)).getByteList();
+            crc.update(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
+        }
+        return "W/\"" + Long.toHexString(length) + "-" + Long.toHexString(crc.getValue()) + "\"";
+    }
+
+    /**
+     * Whether the client's copy is current, by the same rules as
+     * {@code Rack::ConditionalGet}: every condition the request gives
+     * ({@code If-None-Match}, {@code If-Modified-Since}) must hold.
+     *
+     * @param etag the response {@code ETag}, may be null
+     * @param lastModified the response {@code Last-Modified}, may be
+     *        null
+     */
+    public static boolean isFresh(HttpServletRequest req, String etag, String lastModified) {
+        final String noneMatch = req.getHeader("If-None-Match");
+        final String modifiedSince = req.getHeader("If-Modified-Since");
+        if (noneMatch == null && modifiedSince == null) {
+            return false;
+        }
+
+        if (modifiedSince != null && !isNotModifiedSince(modifiedSince, lastModified)) {
+            return false;
+        }
+        if (noneMatch != null && !etagMatches(noneMatch, etag)) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Weak comparison of {@code etag} against each tag in an
+     * {@code If-None-Match} list, or {@code *}.
+     */
+    static boolean etagMatches(String noneMatch, String etag) {
+        if (etag == null) {
+            return false;
+        }
+        final String opaque = opaqueTag(etag);
+        for (String tag : noneMatch.split(",")) {
+            final String t = tag.trim();
+            if (t.equals("*") || opaqueTag(t).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaqueTag(String tag) {
+        final String t = tag.trim();
+        return t.startsWith("W/") ? t.substring(2) : t;
+    }
+
+    /**
+     * @return true if both dates parse and {@code lastModified} is no
+     *         later than {@code modifiedSince}
+     */
+    private static boolean isNotModifiedSince(String modifiedSince, String lastModified) {
+        if (lastModified == null) {
+            return false;
+        }
+        final Date since = parseDate(modifiedSince);
+        final Date modified = parseDate(lastModified);
+        return since != null && modified != null && !since.before(modified);
+    }
+
+    private static Date parseDate(String value) {
+        final SimpleDateFormat format = new SimpleDateFormat(RFC1123_FORMAT, Locale.US);
+        format.setTimeZone(GMT);
+        try {
+            return format.parse(value.trim());
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+}
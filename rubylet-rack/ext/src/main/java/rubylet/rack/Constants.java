@@ -54,6 +54,12 @@ public final class Constants {
     public final RubyString RACK_INPUT;
     public final RubyString RACK_MULTIPROCESS;
     public final RubyString RACK_MULTITHREAD;
+    public final RubyString RACK_REQUEST_COOKIE_HASH;
+    public final RubyString RACK_REQUEST_COOKIE_STRING;
+    public final RubyString RACK_REQUEST_FORM_HASH;
+    public final RubyString RACK_REQUEST_FORM_INPUT;
+    public final RubyString RACK_REQUEST_QUERY_HASH;
+    public final RubyString RACK_REQUEST_QUERY_STRING;
     public final RubyString RACK_RUN_ONCE;
     public final RubyString RACK_URL_SCHEME;
     public final RubyString RACK_VERSION;
@@ -61,6 +67,7 @@ public final class Constants {
     public final RubyString REMOTE_HOST;
     public final RubyString REMOTE_PORT;
     public final RubyString REMOTE_USER;
+    public final RubyString RUBYLET_MICROCACHE;
     public final RubyString REQUEST_METHOD;
     public final RubyString REQUEST_PATH;
     public final RubyString REQUEST_URI;
@@ -71,6 +78,15 @@ public final class Constants {
     public final RubyString SERVER_SOFTWARE;
     
     public final RubyString TRANSFER_ENCODING;
+    public final RubyString HEADER_CONTENT_LENGTH;
+    public final RubyString HEADER_CONTENT_TYPE;
+    public final RubyString HEADER_CONTENT_ENCODING;
+    public final RubyString HEADER_CACHE_CONTROL;
+    public final RubyString HEADER_ETAG;
+    public final RubyString HEADER_VARY;
+    public final RubyString HEADER_LAST_MODIFIED;
+    public final RubyString X_SENDFILE;
+    public final RubyString SENDFILE_TYPE;
 
     // some HTTP methods
     public final RubyString GET;
@@ -87,6 +103,7 @@ public final class Constants {
     public final RubyString HTTP_ACCEPT;
     public final RubyString HTTP_USER_AGENT;
     public final RubyString HTTP_CONNECTION;
+    public final RubyString HTTP_COOKIE;
 
     
     /**
@@ -95,20 +112,30 @@ public final class Constants {
     public final RubyClass cAsyncCallback;
     
     /**
-     * Rubylet::Rack::RewindableIO
+     * Rubylet::Rack::RewindableInput
      */
-    public final RubyClass cRewindableIO;
+    public final RubyClass cRewindableInput;
 
     /**
-     * Rubylet::Rack::DechunkingBody
+     * Rubylet::Rack::StreamingInput
      */
-    public final RubyClass cDechunkingBody;
+    public final RubyClass cStreamingInput;
 
     /**
      * :async
      */
     public final RubySymbol symAsync;
 
+    /**
+     * Servlet header names to Rack environment keys
+     */
+    public final HeaderKeys headerKeys;
+
+    /**
+     * Sets Rack response headers on Servlet responses
+     */
+    public final HeaderWriter headerWriter;
+
     private Constants(Ruby runtime) {
         this.runtime = runtime;
         
@@ -120,12 +147,9 @@ public final class Constants {
 
         cAsyncCallback = mRack.getClass("AsyncCallback");
 
-        runtime.evalScriptlet("require 'rubylet/rack/rewindable_io'");
-        cRewindableIO = mRack.getClass("RewindableIO");
-        
-        runtime.evalScriptlet("require 'rubylet/rack/dechunking_body'");
-        cDechunkingBody = mRack.getClass("DechunkingBody");
-                
+        cRewindableInput = mRack.getClass("RewindableInput");
+        cStreamingInput = mRack.getClass("StreamingInput");
+
         ASYNC_CALLBACK = frozenString("async.callback");
         JAVA_SERVLET_REQUEST = frozenString("java.servlet_request");
         PATH_INFO = frozenString("PATH_INFO");
@@ -134,6 +158,12 @@ public final class Constants {
         RACK_INPUT = frozenString("rack.input");
         RACK_MULTIPROCESS = frozenString("rack.multiprocess");
         RACK_MULTITHREAD = frozenString("rack.multithread");
+        RACK_REQUEST_COOKIE_HASH = frozenString("rack.request.cookie_hash");
+        RACK_REQUEST_COOKIE_STRING = frozenString("rack.request.cookie_string");
+        RACK_REQUEST_FORM_HASH = frozenString("rack.request.form_hash");
+        RACK_REQUEST_FORM_INPUT = frozenString("rack.request.form_input");
+        RACK_REQUEST_QUERY_HASH = frozenString("rack.request.query_hash");
+        RACK_REQUEST_QUERY_STRING = frozenString("rack.request.query_string");
         RACK_RUN_ONCE = frozenString("rack.run_once");
         RACK_URL_SCHEME = frozenString("rack.url_scheme");
         RACK_VERSION = frozenString("rack.version");
@@ -141,6 +171,7 @@ public final class Constants {
         REMOTE_HOST = frozenString("REMOTE_HOST");
         REMOTE_PORT = frozenString("REMOTE_PORT");
         REMOTE_USER = frozenString("REMOTE_USER");
+        RUBYLET_MICROCACHE = frozenString("rubylet.microcache");
         REQUEST_METHOD = frozenString("REQUEST_METHOD");
         REQUEST_PATH = frozenString("REQUEST_PATH");
         REQUEST_URI = frozenString("REQUEST_URI");
@@ -151,6 +182,15 @@ public final class Constants {
         SERVER_SOFTWARE = frozenString("SERVER_SOFTWARE");
         
         TRANSFER_ENCODING = frozenString("Transfer-Encoding");
+        HEADER_CONTENT_LENGTH = frozenString("Content-Length");
+        HEADER_CONTENT_TYPE = frozenString("Content-Type");
+        HEADER_CONTENT_ENCODING = frozenString("Content-Encoding");
+        HEADER_CACHE_CONTROL = frozenString("Cache-Control");
+        HEADER_ETAG = frozenString("ETag");
+        HEADER_VARY = frozenString("Vary");
+        HEADER_LAST_MODIFIED = frozenString("Last-Modified");
+        X_SENDFILE = frozenString("X-Sendfile");
+        SENDFILE_TYPE = frozenString("sendfile.type");
         
         GET = frozenString("GET");
         POST = frozenString("POST");
@@ -166,6 +206,10 @@ public final class Constants {
         HTTP_ACCEPT = frozenString("HTTP_ACCEPT");
         HTTP_USER_AGENT = frozenString("HTTP_USER_AGENT");
         HTTP_CONNECTION = frozenString("HTTP_CONNECTION");
+        HTTP_COOKIE = frozenString("HTTP_COOKIE");
+        
+        headerKeys = new HeaderKeys(runtime);
+        headerWriter = new HeaderWriter();
     }
     
     private RubyString frozenString(String str) {
@@ -0,0 +1,259 @@
+package rubylet.rack;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Decodes a body in HTTP chunked transfer coding, writing only the
+ * chunk data to the underlying stream.
+ *
+ * <p>Rails and others set {@code Transfer-Encoding: chunked} and chunk
+ * the body themselves, but a Servlet container does its own chunking
+ * and cannot pass pre-chunked data through.  This is a byte-at-a-time
+ * state machine, so chunks may be split across writes in any way; chunk
+ * data is written directly from the caller's array.  Chunk extensions
+ * and trailers are discarded, as is anything after the last
+ * (zero-size) chunk.
+ *
+ * <p>As a body that does not start with a chunk size is not chunked
+ * at all, whatever the headers say, it is written unchanged.  A body
+ * that goes bad after the first chunk throws {@link IOException}, as
+ * does {@link #checkComplete()} for one cut off before its last chunk.
+ *
+ * <p>Not threadsafe.
+ */
+public final class DechunkingOutputStream extends OutputStream {
+
+    private static enum State {
+        /** before anything has been written */
+        START,
+        /** in the hex chunk size */
+        SIZE,
+        /** in chunk extensions or whitespace after the size */
+        SIZE_EXT,
+        /** after the CR ending the size line */
+        SIZE_LF,
+        /** in chunk data */
+        DATA,
+        /** after chunk data, expecting CR */
+        DATA_CR,
+        /** after chunk data, expecting LF */
+        DATA_LF,
+        /** at the start of a trailer line after the last chunk */
+        TRAILER,
+        /** in a trailer line */
+        TRAILER_LINE,
+        /** after the CR ending a trailer line */
+        TRAILER_LF,
+        /** after the end of the chunked body */
+        DONE,
+        /** not chunked; pass everything through */
+        RAW,
+    }
+
+    private final OutputStream out;
+
+    private State state = State.START;
+
+    /**
+     * Size of the current chunk while reading it, then the number of
+     * bytes of data remaining.
+     */
+    private long size;
+
+    private int sizeDigits;
+
+    /**
+     * True if the current trailer line is empty so far.
+     */
+    private boolean emptyLine;
+
+    public DechunkingOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Check, once all of the body is written, that it was not cut off
+     * before its last (zero-size) chunk.  A missing final CRLF after
+     * the last chunk is forgiven, as are empty and unchunked bodies.
+     *
+     * @throws IOException if the body ended before its last chunk
+     */
+    public void checkComplete() throws IOException {
+        switch (state) {
+        case START:
+        case RAW:
+        case TRAILER:
+        case DONE:
+            return;
+        default:
+            throw malformed("ended before the last chunk");
+        }
+    }
+
+    private static int hex(int b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        } else if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        } else if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        } else {
+            return -1;
+        }
+    }
+
+    private static IOException malformed(String what) {
+        return new IOException("malformed chunked response body: " + what);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        final int end = off + len;
+        int i = off;
+        while (i < end) {
+            switch (state) {
+            case START:
+                if (hex(b[i]) < 0) {
+                    state = State.RAW;
+                } else {
+                    state = State.SIZE;
+                }
+                break;
+
+            case RAW:
+                out.write(b, i, end - i);
+                return;
+
+            case DONE:
+                return;
+
+            case SIZE: {
+                final int c = b[i++];
+                final int d = hex(c);
+                if (d >= 0) {
+                    if (++sizeDigits > 15) {
+                        throw malformed("chunk size too large");
+                    }
+                    size = (size << 4) | d;
+                } else if (sizeDigits == 0) {
+                    throw malformed("expected chunk size");
+                } else if (c == ';' || c == ' ' || c == '\t') {
+                    state = State.SIZE_EXT;
+                } else if (c == '\r') {
+                    state = State.SIZE_LF;
+                } else if (c == '\n') {
+                    endSizeLine();
+                } else {
+                    throw malformed("bad char in chunk size");
+                }
+                break;
+            }
+
+            case SIZE_EXT: {
+                final int c = b[i++];
+                if (c == '\r') {
+                    state = State.SIZE_LF;
+                } else if (c == '\n') {
+                    endSizeLine();
+                }
+                break;
+            }
+
+            case SIZE_LF:
+                if (b[i++] != '\n') {
+                    throw malformed("expected LF after chunk size");
+                }
+                endSizeLine();
+                break;
+
+            case DATA: {
+                final int n = (int) Math.min(size, end - i);
+                out.write(b, i, n);
+                i += n;
+                size -= n;
+                if (size == 0) {
+                    state = State.DATA_CR;
+                }
+                break;
+            }
+
+            case DATA_CR: {
+                final int c = b[i++];
+                if (c == '\r') {
+                    state = State.DATA_LF;
+                } else if (c == '\n') {
+                    startChunk();
+                } else {
+                    throw malformed("expected CRLF after chunk data");
+                }
+                break;
+            }
+
+            case DATA_LF:
+                if (b[i++] != '\n') {
+                    throw malformed("expected LF after chunk data");
+                }
+                startChunk();
+                break;
+
+            case TRAILER:
+                emptyLine = true;
+                state = State.TRAILER_LINE;
+                break;
+
+            case TRAILER_LINE: {
+                final int c = b[i++];
+                if (c == '\r') {
+                    state = State.TRAILER_LF;
+                } else if (c == '\n') {
+                    endTrailerLine();
+                } else {
+                    emptyLine = false;
+                }
+                break;
+            }
+
+            case TRAILER_LF:
+                if (b[i++] != '\n') {
+                    throw malformed("expected LF after trailer");
+                }
+                endTrailerLine();
+                break;
+            }
+        }
+    }
+
+    private void startChunk() {
+        size = 0;
+        sizeDigits = 0;
+        state = State.SIZE;
+    }
+
+    private void endSizeLine() {
+        state = (size == 0) ? State.TRAILER : State.DATA;
+    }
+
+    private void endTrailerLine() {
+        state = emptyLine ? State.DONE : State.TRAILER;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Does not close the underlying stream.
+     */
+    @Override
+    public void close() {
+        // nothing to release
+    }
+
+}
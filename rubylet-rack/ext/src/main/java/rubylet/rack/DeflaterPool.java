@@ -0,0 +1,58 @@
+package rubylet.rack;
+
+import java.util.ArrayDeque;
+import java.util.zip.Deflater;
+
+/**
+ * A pool of raw ({@code nowrap}) {@link Deflater}s at one compression
+ * level.  As with {@link InflaterPool}, deflaters hold native zlib
+ * state (several hundred KB each for a deflater), so they are reset
+ * and reused across responses.
+ *
+ * <p>Threadsafe.
+ */
+public final class DeflaterPool {
+
+    private final ArrayDeque<Deflater> idle = new ArrayDeque<Deflater>();
+
+    private final int level;
+
+    private final int maxIdle;
+
+    /**
+     * @param level compression level, 0-9 or
+     *        {@link Deflater#DEFAULT_COMPRESSION}
+     * @param maxIdle max number of idle deflaters kept; others are
+     *        ended when returned
+     */
+    public DeflaterPool(int level, int maxIdle) {
+        this.level = level;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return an idle deflater, or a new one if none are idle
+     */
+    public Deflater take() {
+        final Deflater deflater;
+        synchronized (idle) {
+            deflater = idle.pollFirst();
+        }
+        return (deflater == null) ? new Deflater(level, true) : deflater;
+    }
+
+    /**
+     * Return a deflater from {@link #take()} to the pool.
+     */
+    public void give(Deflater deflater) {
+        deflater.reset();
+        synchronized (idle) {
+            if (idle.size() < maxIdle) {
+                idle.addFirst(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+}
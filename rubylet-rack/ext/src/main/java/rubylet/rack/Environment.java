@@ -0,0 +1,439 @@
+package rubylet.rack;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.jruby.Ruby;
+import org.jruby.RubyBoolean;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyHash;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.invokedynamic.MethodNames;
+
+/**
+ * A Rack environment hash whose values are read from an
+ * {@link HttpServletRequest} the first time they are needed.
+ *
+ * <p>Most applications look at only a handful of the Rack keys, so
+ * rather than building every value up front (some of which, like
+ * {@code REMOTE_HOST}, may be expensive), each {@link Key} is loaded
+ * on the first lookup of that key.  HTTP headers are loaded together
+ * the first time any {@code HTTP_*}, {@code CONTENT_TYPE} or
+ * {@code CONTENT_LENGTH} key is looked up.
+ *
+ * <p>Anything that needs to see the whole hash (iteration,
+ * {@code size}, {@code inspect}, {@code ==}, {@code dup},
+ * {@code merge}, etc.) first loads every remaining key, after which
+ * this behaves exactly as a plain {@code Hash}.  The exceptions are
+ * the {@code rack.request.*} form, query and cookie caches parsed in
+ * Java, which are loaded only when looked up, as by
+ * {@code Rack::Request}.  The entries pending keys will store are
+ * counted in the hash's size from the start, since another hash
+ * compared with this one reads that directly.  The headers, though,
+ * are counted only once loaded, so that requests that never look at
+ * them never enumerate them: {@code env == hash} loads both sides,
+ * but {@code hash == env} is false until the headers are loaded.
+ * Storing or deleting a key that has not yet been loaded cancels the
+ * pending load of that key, so an application's own values are never
+ * overwritten.
+ *
+ * <p>The Ruby class of this object is {@code Hash}; copies made with
+ * {@code dup}, {@code merge}, etc. are plain hashes.
+ *
+ * <p>Not threadsafe, in the same way that {@code Hash} is not.
+ */
+public final class Environment extends RubyHash {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Keys that are loaded lazily.  Each key is one bit in
+     * {@link Environment#pending}.
+     */
+    public static enum Key {
+        JAVA_SERVLET_REQUEST,
+        PATH_INFO,
+        QUERY_STRING,
+        RACK_ERRORS,
+        RACK_INPUT,
+        RACK_URL_SCHEME,
+        REMOTE_ADDR,
+        REMOTE_HOST,
+        REMOTE_PORT,
+        REMOTE_USER,
+        REQUEST_METHOD,
+        REQUEST_PATH,
+        REQUEST_URI,
+        SCRIPT_NAME,
+        SERVER_NAME,
+        SERVER_PORT,
+        SERVER_PROTOCOL,
+        SERVER_SOFTWARE,
+
+        /**
+         * All {@code HTTP_*} headers, plus {@code CONTENT_TYPE} and
+         * {@code CONTENT_LENGTH}.
+         */
+        HEADERS,
+
+        /**
+         * {@code rack.request.form_hash} and
+         * {@code rack.request.form_input}, from a multipart body parsed
+         * in Java.  Loaded only by a lookup of one of those keys, not
+         * by {@link Environment#loadAll()}, because parsing consumes
+         * the body.
+         */
+        FORM,
+
+        /**
+         * {@code rack.request.query_string} and
+         * {@code rack.request.query_hash}, parsed in Java.
+         */
+        QUERY,
+
+        /**
+         * {@code rack.request.cookie_string} and
+         * {@code rack.request.cookie_hash}, parsed in Java.
+         */
+        COOKIES;
+
+        public final int bit = 1 << ordinal();
+
+        static final int ALL = (1 << values().length) - 1;
+
+        /**
+         * Keys not loaded by {@link Environment#loadAll()}: caches that
+         * {@code Rack::Request} would otherwise fill in itself.
+         */
+        static final int LOOKUP_ONLY = FORM.bit | QUERY.bit | COOKIES.bit;
+    }
+
+    private final EnvironmentBuilder builder;
+
+    private final HttpServletRequest req;
+
+    /**
+     * Bit set of {@link Key}s not yet loaded.
+     */
+    private int pending;
+
+    /**
+     * Number of entries each pending {@link Key} will store, indexed
+     * by ordinal, and already counted in {@code size}.
+     */
+    private final int[] reserved = new int[Key.values().length];
+
+    /**
+     * Resources behind {@code rack.input}, if loaded.
+     */
+    private List<Closeable> closeables;
+
+    /**
+     * @param runtime
+     * @param builder loads values for lazy keys
+     * @param req
+     * @param loaded bit set of keys that will be stored by
+     *        {@code builder} up front rather than loaded lazily
+     */
+    public Environment(Ruby runtime, EnvironmentBuilder builder, HttpServletRequest req, int loaded) {
+        super(runtime, runtime.getHash());
+        this.builder = builder;
+        this.req = req;
+        this.pending = Key.ALL & ~loaded;
+        for (Key key : Key.values()) {
+            if ((pending & key.bit) != 0) {
+                reserved[key.ordinal()] = builder.countEntries(req, key);
+                size += reserved[key.ordinal()];
+            }
+        }
+    }
+
+    public HttpServletRequest getRequest() {
+        return req;
+    }
+
+    /**
+     * Add something to be closed by {@link #close()}.
+     */
+    void closeOnComplete(Closeable closeable) {
+        if (closeables == null) {
+            closeables = new ArrayList<Closeable>(2);
+        }
+        closeables.add(closeable);
+    }
+
+    /**
+     * Release resources held for the request, such as the memory and
+     * temp file buffering {@code rack.input}.  Called once the response
+     * is complete.
+     */
+    public void close() throws IOException {
+        if (closeables == null) {
+            return;
+        }
+
+        IOException error = null;
+        for (Closeable closeable : closeables) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        closeables = null;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * @return true if {@code key} has not been loaded, stored, or deleted
+     */
+    public boolean isPending(Key key) {
+        return (pending & key.bit) != 0;
+    }
+
+    /**
+     * Store {@code value} at {@code key} without affecting any pending
+     * loads.  Used by {@link EnvironmentBuilder} when loading.
+     */
+    void store(IRubyObject key, IRubyObject value) {
+        super.internalPut(key, value, true);
+    }
+
+    /**
+     * Clear the pending bit of {@code key}, and its reserved entries
+     * from {@code size}.
+     */
+    private void unpend(Key key) {
+        pending &= ~key.bit;
+        size -= reserved[key.ordinal()];
+        reserved[key.ordinal()] = 0;
+    }
+
+    private void load(Key key) {
+        if ((pending & key.bit) != 0) {
+            // clear first; a loader may look up other keys
+            unpend(key);
+            builder.load(this, key);
+        }
+    }
+
+    /**
+     * Load {@code key} if it is a pending lazy key.
+     */
+    private void load(IRubyObject key) {
+        if (pending != 0) {
+            final Key k = builder.lookupKey(key);
+            if (k != null) {
+                load(k);
+            }
+        }
+    }
+
+    /**
+     * Load every pending key, other than those loaded only by lookup
+     * ({@link Key#LOOKUP_ONLY}).
+     */
+    public void loadAll() {
+        if ((pending & ~Key.LOOKUP_ONLY) != 0) {
+            for (Key key : Key.values()) {
+                if ((key.bit & Key.LOOKUP_ONLY) == 0) {
+                    load(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancel any pending load of {@code key}, for example because the
+     * application is storing its own value.  Headers are loaded as a
+     * group, so they must be loaded before any one of them is replaced.
+     */
+    private void forget(IRubyObject key) {
+        if (pending != 0) {
+            final Key k = builder.lookupKey(key);
+            if (k == Key.HEADERS) {
+                load(k);
+            } else if (k != null && (pending & k.bit) != 0) {
+                unpend(k);
+            }
+        }
+    }
+
+    // single key lookups: [], fetch, key?, values_at, etc.
+
+    @Override
+    protected RubyHashEntry internalGetEntry(IRubyObject key) {
+        load(key);
+        return super.internalGetEntry(key);
+    }
+
+    // single key modifications
+
+    @Override
+    protected void internalPut(IRubyObject key, IRubyObject value, boolean checkForExisting) {
+        forget(key);
+        super.internalPut(key, value, checkForExisting);
+    }
+
+    @Override
+    public IRubyObject op_aset(ThreadContext context, IRubyObject key, IRubyObject value) {
+        forget(key);
+        return super.op_aset(context, key, value);
+    }
+
+    @Override
+    public IRubyObject op_aset19(ThreadContext context, IRubyObject key, IRubyObject value) {
+        forget(key);
+        return super.op_aset19(context, key, value);
+    }
+
+    @Override
+    protected RubyHashEntry internalDelete(IRubyObject key) {
+        load(key);
+        return super.internalDelete(key);
+    }
+
+    @Override
+    public RubyHash rb_clear() {
+        pending = 0;
+        return super.rb_clear();
+    }
+
+    // whole hash operations
+
+    @Override
+    public void visitAll(Visitor visitor) {
+        loadAll();
+        super.visitAll(visitor);
+    }
+
+    @Override
+    public RubyHash eachCommon(ThreadContext context, Block block) {
+        loadAll();
+        return super.eachCommon(context, block);
+    }
+
+    @Override
+    public RubyHash each_pairCommon(ThreadContext context, Block block, boolean oneNine) {
+        loadAll();
+        return super.each_pairCommon(context, block, oneNine);
+    }
+
+    @Override
+    public RubyHash each_keyCommon(ThreadContext context, Block block) {
+        loadAll();
+        return super.each_keyCommon(context, block);
+    }
+
+    @Override
+    public RubyHash each_valueCommon(ThreadContext context, Block block) {
+        loadAll();
+        return super.each_valueCommon(context, block);
+    }
+
+    @Override
+    public IRubyObject select(ThreadContext context, Block block) {
+        loadAll();
+        return super.select(context, block);
+    }
+
+    @Override
+    public IRubyObject select19(ThreadContext context, Block block) {
+        loadAll();
+        return super.select19(context, block);
+    }
+
+    @Override
+    public boolean keep_ifCommon(ThreadContext context, Block block) {
+        loadAll();
+        return super.keep_ifCommon(context, block);
+    }
+
+    @Override
+    public RubyHash delete_ifInternal(ThreadContext context, Block block) {
+        loadAll();
+        return super.delete_ifInternal(context, block);
+    }
+
+    @Override
+    public IRubyObject reject_bangInternal(ThreadContext context, Block block) {
+        loadAll();
+        return super.reject_bangInternal(context, block);
+    }
+
+    @Override
+    public IRubyObject shift(ThreadContext context) {
+        loadAll();
+        return super.shift(context);
+    }
+
+    @Override
+    public RubyHash rehash() {
+        loadAll();
+        return super.rehash();
+    }
+
+    @Override
+    public RubyFixnum rb_size() {
+        loadAll();
+        return super.rb_size();
+    }
+
+    @Override
+    public RubyBoolean empty_p() {
+        loadAll();
+        return super.empty_p();
+    }
+
+    @Override
+    public int size() {
+        loadAll();
+        return super.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        loadAll();
+        return super.isEmpty();
+    }
+
+    @Override
+    public IRubyObject inspect(ThreadContext context) {
+        loadAll();
+        return super.inspect(context);
+    }
+
+    @Override
+    public RubyFixnum hash() {
+        loadAll();
+        return super.hash();
+    }
+
+    @Override
+    public RubyFixnum hash19() {
+        loadAll();
+        return super.hash19();
+    }
+
+    // ==, eql?, and comparisons of hashes holding this one
+
+    @Override
+    public RubyBoolean compare(ThreadContext context, MethodNames method, IRubyObject other) {
+        loadAll();
+        if (other instanceof Environment) {
+            ((Environment) other).loadAll();
+        }
+        return super.compare(context, method, other);
+    }
+
+}
@@ -1,29 +1,271 @@
 package rubylet.rack;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 
 import org.jruby.Ruby;
 import org.jruby.RubyClass;
 import org.jruby.RubyHash;
-import org.jruby.RubyIO;
-import org.jruby.RubyModule;
 import org.jruby.RubyString;
 import org.jruby.javasupport.JavaUtil;
 import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
 
 public final class EnvironmentBuilder {
 
+    /**
+     * Default max bytes of an inflated request body.
+     */
+    public static final long DEFAULT_MAX_INFLATED_INPUT_SIZE = 16 * 1024 * 1024;
+    
+    private static final int MAX_IDLE_INFLATERS = 16;
+
     private final Ruby runtime;
     
     private final Constants c;
     
+    /**
+     * Rack keys that are loaded lazily, other than {@code HTTP_*} headers.
+     */
+    private final Map<ByteList, Environment.Key> lazyKeys =
+            new HashMap<ByteList, Environment.Key>();
+    
+    private final HeaderValues headerValues;
+    
+    /**
+     * Max bytes of a request body held in memory by {@code rack.input}.
+     */
+    private final int inputBufferSize;
+    
+    /**
+     * Servlet URL patterns of requests whose {@code rack.input} is a
+     * {@link StreamingInput}.
+     */
+    private final String[] streamingInputPatterns;
+    
+    /**
+     * Servlet URL patterns of requests whose multipart bodies are
+     * parsed by {@link MultipartParser}.
+     */
+    private final String[] parseMultipartPatterns;
+    
+    /**
+     * Servlet URL patterns of requests whose gzip or deflate encoded
+     * bodies are inflated.
+     */
+    private final String[] inflateInputPatterns;
+    
+    /**
+     * Max bytes of an inflated request body, or -1 for no limit.
+     */
+    private final long maxInflatedInputSize;
+    
+    private final InflaterPool inflaterPool = new InflaterPool(MAX_IDLE_INFLATERS);
+    
+    /**
+     * Parses {@code rack.request.query_hash} and
+     * {@code rack.request.cookie_hash}, or null to leave that to Rack.
+     */
+    private final QueryParser queryParser;
+    
+    /**
+     * Directory for {@code rack.input} temp files, or null for the
+     * system default.
+     */
+    private final File tempDir;
+    
+    /**
+     * Frozen hash of entries that are the same for every request to
+     * this servlet.  Each new environment starts as a copy of this.
+     */
+    private final RubyHash template;
+    
+    /**
+     * Bit set of {@link Environment.Key}s present in {@link #template}.
+     */
+    private final int templateKeys;
+    
+    /**
+     * The most recently seen {@code SCRIPT_NAME}.
+     */
+    private volatile ScriptName scriptName;
+    
+    private static final class ScriptName {
+        final String contextPath;
+        final String servletPath;
+        final RubyString value;
+        
+        ScriptName(String contextPath, String servletPath, RubyString value) {
+            this.contextPath = contextPath;
+            this.servletPath = servletPath;
+            this.value = value;
+        }
+    }
+    
     public EnvironmentBuilder(Ruby runtime) {
+        this(runtime, null);
+    }
+    
+    /**
+     * @param runtime
+     * @param config init parameters are read from this, may be null
+     */
+    public EnvironmentBuilder(Ruby runtime, ServletConfig config) {
         this.runtime = runtime;
         this.c = Constants.getInstance(runtime);
+        
+        this.headerValues = new HeaderValues(runtime,
+                                             c.headerKeys,
+                                             intParameter(config, "rubylet.headerValueCacheSize", 0));
+        this.inputBufferSize = intParameter(config,
+                                            "rubylet.inputBufferSize",
+                                            InputBuffer.DEFAULT_LIMIT);
+        this.tempDir = (config == null) ? null : getTempDir(config.getServletContext());
+        this.streamingInputPatterns = patterns(parameter(config, "rubylet.streamingInput"));
+        this.parseMultipartPatterns = patterns(parameter(config, "rubylet.parseMultipart"));
+        this.inflateInputPatterns = patterns(parameter(config, "rubylet.inflateInput"));
+        this.maxInflatedInputSize = longParameter(config,
+                                                  "rubylet.maxInflatedInputSize",
+                                                  DEFAULT_MAX_INFLATED_INPUT_SIZE);
+        this.queryParser = "true".equals(parameter(config, "rubylet.parseQuery"))
+                ? new QueryParser(runtime)
+                : null;
+        
+        lazyKey(c.JAVA_SERVLET_REQUEST, Environment.Key.JAVA_SERVLET_REQUEST);
+        lazyKey(c.PATH_INFO, Environment.Key.PATH_INFO);
+        lazyKey(c.QUERY_STRING, Environment.Key.QUERY_STRING);
+        lazyKey(c.RACK_ERRORS, Environment.Key.RACK_ERRORS);
+        lazyKey(c.RACK_INPUT, Environment.Key.RACK_INPUT);
+        lazyKey(c.RACK_URL_SCHEME, Environment.Key.RACK_URL_SCHEME);
+        lazyKey(c.REMOTE_ADDR, Environment.Key.REMOTE_ADDR);
+        lazyKey(c.REMOTE_HOST, Environment.Key.REMOTE_HOST);
+        lazyKey(c.REMOTE_PORT, Environment.Key.REMOTE_PORT);
+        lazyKey(c.REMOTE_USER, Environment.Key.REMOTE_USER);
+        lazyKey(c.REQUEST_METHOD, Environment.Key.REQUEST_METHOD);
+        lazyKey(c.REQUEST_PATH, Environment.Key.REQUEST_PATH);
+        lazyKey(c.REQUEST_URI, Environment.Key.REQUEST_URI);
+        lazyKey(c.SCRIPT_NAME, Environment.Key.SCRIPT_NAME);
+        lazyKey(c.SERVER_NAME, Environment.Key.SERVER_NAME);
+        lazyKey(c.SERVER_PORT, Environment.Key.SERVER_PORT);
+        lazyKey(c.SERVER_PROTOCOL, Environment.Key.SERVER_PROTOCOL);
+        lazyKey(c.SERVER_SOFTWARE, Environment.Key.SERVER_SOFTWARE);
+        lazyKey(c.CONTENT_LENGTH, Environment.Key.HEADERS);
+        lazyKey(c.CONTENT_TYPE, Environment.Key.HEADERS);
+        lazyKey(c.RACK_REQUEST_FORM_HASH, Environment.Key.FORM);
+        lazyKey(c.RACK_REQUEST_FORM_INPUT, Environment.Key.FORM);
+        lazyKey(c.RACK_REQUEST_QUERY_STRING, Environment.Key.QUERY);
+        lazyKey(c.RACK_REQUEST_QUERY_HASH, Environment.Key.QUERY);
+        lazyKey(c.RACK_REQUEST_COOKIE_STRING, Environment.Key.COOKIES);
+        lazyKey(c.RACK_REQUEST_COOKIE_HASH, Environment.Key.COOKIES);
+        
+        template = RubyHash.newHash(runtime);
+        template.fastASet(c.RACK_MULTIPROCESS, runtime.getFalse());
+        template.fastASet(c.RACK_MULTITHREAD, runtime.getTrue());
+        template.fastASet(c.RACK_RUN_ONCE, runtime.getFalse());
+        template.fastASet(c.RACK_VERSION, runtime.getModule("Rack").getConstant("VERSION"));
+        if ("true".equals(parameter(config, "rubylet.sendfile"))) {
+            template.fastASet(c.SENDFILE_TYPE, frozenStringOrNull("X-Sendfile"));
+        }
+        
+        if (config != null) {
+            final ServletContext context = config.getServletContext();
+            template.fastASet(c.RACK_ERRORS, newRackErrors(context));
+            template.fastASet(c.SERVER_SOFTWARE, frozenStringOrNull(context.getServerInfo()));
+            templateKeys = Environment.Key.RACK_ERRORS.bit | Environment.Key.SERVER_SOFTWARE.bit;
+        } else {
+            templateKeys = 0;
+        }
+        
+        template.setFrozen(true);
+    }
+    
+    private void lazyKey(RubyString name, Environment.Key key) {
+        lazyKeys.put(name.getByteList(), key);
+    }
+    
+    private static File getTempDir(ServletContext context) {
+        final Object dir = context.getAttribute(ServletContext.TEMPDIR);
+        return (dir instanceof File) ? (File) dir : null;
+    }
+    
+    private static String parameter(ServletConfig config, String name) {
+        return (config == null) ? null : config.getInitParameter(name);
+    }
+    
+    /**
+     * Parse a comma separated list of Servlet URL patterns.  "true" is
+     * taken to mean every path.
+     */
+    static String[] patterns(String value) {
+        if (value == null || value.trim().length() == 0 || "false".equals(value.trim())) {
+            return new String[0];
+        } else if ("true".equals(value.trim())) {
+            return new String[] { "/*" };
+        }
+        
+        final String[] patterns = value.split(",");
+        for (int i = 0; i < patterns.length; ++i) {
+            patterns[i] = patterns[i].trim();
+        }
+        return patterns;
+    }
+    
+    /**
+     * Match {@code path} against a Servlet URL pattern: {@code /prefix/*},
+     * {@code *.extension}, or an exact path.
+     */
+    private static boolean matches(String pattern, String path) {
+        if (pattern.endsWith("/*")) {
+            final int len = pattern.length() - 2;
+            return path.startsWith(pattern.substring(0, len)) &&
+                    (path.length() == len || path.charAt(len) == '/');
+        } else if (pattern.startsWith("*.")) {
+            return path.endsWith(pattern.substring(1));
+        } else {
+            return path.equals(pattern);
+        }
+    }
+    
+    /**
+     * @return true if the path of {@code req} within the context
+     *         matches any of {@code patterns}
+     */
+    static boolean matchesAny(String[] patterns, HttpServletRequest req) {
+        if (patterns.length == 0) {
+            return false;
+        }
+        
+        final String pathInfo = req.getPathInfo();
+        final String path = (pathInfo == null)
+                ? req.getServletPath()
+                : req.getServletPath() + pathInfo;
+        for (String pattern : patterns) {
+            if (matches(pattern, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static int intParameter(ServletConfig config, String name, int defaultValue) {
+        final String value = parameter(config, name);
+        return (value == null) ? defaultValue : Integer.parseInt(value.trim());
+    }
+    
+    private static long longParameter(ServletConfig config, String name, long defaultValue) {
+        final String value = parameter(config, name);
+        return (value == null) ? defaultValue : Long.parseLong(value.trim());
     }
 
     
@@ -53,6 +295,16 @@ public final class EnvironmentBuilder {
         }
     }
     
+    private IRubyObject frozenStringOrNull(String str) {
+        if (str == null) {
+            return runtime.getNil();
+        } else {
+            final RubyString rbStr = runtime.newString(str);
+            rbStr.setFrozen(true);
+            return rbStr;
+        }
+    }
+    
     private IRubyObject getPathInfo(HttpServletRequest req) {
         // not nil, and empty string rather than '/'
         final String pathInfo = req.getPathInfo();
@@ -63,34 +315,117 @@ public final class EnvironmentBuilder {
         }
     }
     
-    private IRubyObject newRackErrors(HttpServletRequest req) {
+    private IRubyObject newRackErrors(ServletContext context) {
         final RubyClass errors = runtime.getModule("Rubylet").defineModuleUnder("Rack").getClass("Errors");
         final IRubyObject obj = JavaUtil
-                .convertJavaToUsableRubyObject(runtime, req.getServletContext());
+                .convertJavaToUsableRubyObject(runtime, context);
         return errors.newInstance(runtime.getCurrentContext(), obj, Block.NULL_BLOCK);
     }
     
-    private IRubyObject newRackInput(HttpServletRequest req) throws IOException {
-        final RubyIO io = new RubyIO(runtime, req.getInputStream());
-        io.binmode();
-        // rack requires ascii-8bit.  Encoding is only defined in ruby >= 1.9
-        final RubyModule encoding = runtime.getModule("Encoding");
-        if (encoding != null) {
-            io.set_encoding(runtime.getCurrentContext(), encoding.getConstant("ASCII_8BIT"));
+    /**
+     * @return true if {@code req} has a gzip or deflate encoded body
+     *         to be inflated, per {@code rubylet.inflateInput}
+     */
+    private boolean isInflated(HttpServletRequest req) {
+        return inflateInputPatterns.length > 0 &&
+                inflatedEncoding(req.getHeader("Content-Encoding")) != null &&
+                matchesAny(inflateInputPatterns, req);
+    }
+    
+    /**
+     * @return "gzip" or "deflate", or null if {@code contentEncoding}
+     *         is neither
+     */
+    private static String inflatedEncoding(String contentEncoding) {
+        if (contentEncoding == null) {
+            return null;
         }
-
-        /*
-         * Rack requires a rewindable input stream.  Rubylet::RewindableIO
-         * is backed by a memory buffer, spilling into a file buffer.  It
-         * is unfortunate that Rack requires this.
-         * 
-         * TODO: allow some way to *not* wrap io in this rewindable buffer.
-         * 
-         * @see http://rack.rubyforge.org/doc/SPEC.html
-         */
-        return c.cRewindableIO.newInstance(runtime.getCurrentContext(),
-                                           io,
-                                           Block.NULL_BLOCK);
+        final String encoding = contentEncoding.trim();
+        if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+            return "gzip";
+        } else if ("deflate".equalsIgnoreCase(encoding)) {
+            return "deflate";
+        } else {
+            return null;
+        }
+    }
+    
+    /**
+     * The request body, inflated if need be.  An inflating stream is
+     * closed along with {@code env}, returning its inflater to the
+     * pool.
+     */
+    private InputStream getRequestBody(Environment env, HttpServletRequest req) throws IOException {
+        if (!isInflated(req)) {
+            return getRawRequestBody(env, req);
+        }
+        
+        final boolean gzip = "gzip".equals(inflatedEncoding(req.getHeader("Content-Encoding")));
+        final InflatingInputStream in = new InflatingInputStream(getRawRequestBody(env, req),
+                                                                 gzip,
+                                                                 inflaterPool,
+                                                                 maxInflatedInputSize);
+        env.closeOnComplete(in);
+        return in;
+    }
+    
+    /**
+     * @return the request body as received: read from the buffer
+     *         filled by {@link BodyPreReader} if there is one, or else
+     *         from the request
+     */
+    private InputStream getRawRequestBody(Environment env, HttpServletRequest req) throws IOException {
+        final InputBuffer buffer = getPreReadBody(req);
+        return (buffer == null) ? req.getInputStream() : buffer.newInputStream();
+    }
+    
+    /**
+     * @return the buffer filled by {@link BodyPreReader}, or null if
+     *         there is none
+     */
+    private static InputBuffer getPreReadBody(HttpServletRequest req) {
+        final Object preRead = req.getAttribute(BodyPreReader.ATTRIBUTE);
+        return (preRead instanceof InputBuffer) ? (InputBuffer) preRead : null;
+    }
+    
+    /**
+     * @return a buffer for a request body, held in memory up to
+     *         {@code rubylet.inputBufferSize} bytes, then in a temp file
+     */
+    InputBuffer newInputBuffer(InputStream in, long contentLength) {
+        return new InputBuffer(in, contentLength, inputBufferSize, tempDir);
+    }
+    
+    /**
+     * Rack requires a rewindable input stream.  The buffer is held
+     * in memory, spilling into a temp file.  It is unfortunate that
+     * Rack requires this.  A body pre-read by {@link BodyPreReader} is
+     * already so buffered, and is used as is unless it is inflated.
+     * 
+     * @see http://rack.rubyforge.org/doc/SPEC.html
+     */
+    private RewindableInput newRackInput(Environment env, HttpServletRequest req) throws IOException {
+        if (!isInflated(req)) {
+            final InputBuffer preRead = getPreReadBody(req);
+            if (preRead != null) {
+                return new RewindableInput(runtime, c.cRewindableInput, preRead);
+            }
+        }
+        
+        final InputStream in = getRequestBody(env, req);
+        final long contentLength = (in instanceof InflatingInputStream) ? -1 : req.getContentLength();
+        final InputBuffer buffer = newInputBuffer(in, contentLength);
+        env.closeOnComplete(buffer);
+        return new RewindableInput(runtime, c.cRewindableInput, buffer);
+    }
+    
+    /**
+     * Forward-only input for requests matching
+     * {@code rubylet.streamingInput}, for apps that stream large bodies
+     * elsewhere and never rewind.
+     */
+    private StreamingInput newStreamingInput(Environment env, HttpServletRequest req) throws IOException {
+        return new StreamingInput(runtime, c.cStreamingInput, getRequestBody(env, req));
     }
     
     private IRubyObject getRequestMethod(HttpServletRequest req) {
@@ -117,122 +452,306 @@ public final class EnvironmentBuilder {
     }
 
 
-    public RubyHash newEnvironmentHash(HttpServletRequest req) throws IOException {
-        final RubyHash env = RubyHash.newHash(runtime);
-        
-        env.put(c.JAVA_SERVLET_REQUEST,
-                JavaUtil.convertJavaToUsableRubyObject(runtime, req));
+    /**
+     * Create a new Rack environment hash for {@code req}.  Values that
+     * depend on the request are loaded lazily by {@link #load}.  A
+     * body pre-read by {@link BodyPreReader} is closed along with the
+     * environment, whether or not the application reads it.
+     *
+     * @see Environment
+     */
+    public Environment newEnvironmentHash(HttpServletRequest req) throws IOException {
+        final Environment env = new Environment(runtime, this, req, templateKeys);
+        final InputBuffer preRead = getPreReadBody(req);
+        if (preRead != null) {
+            env.closeOnComplete(preRead);
+        }
         
-        env.put(c.PATH_INFO, getPathInfo(req));
+        template.visitAll(new RubyHash.Visitor() {
+            @Override
+            public void visit(IRubyObject key, IRubyObject value) {
+                if (value instanceof RubyString) {
+                    // copy-on-write; the template is shared
+                    value = ((RubyString) value).strDup(runtime);
+                }
+                env.store(key, value);
+            }
+        });
+
+        return env;
+    }
+    
+    /**
+     * Context path joined with servlet path, but not nil and empty
+     * string rather than '/'.  According to Java Servlet spec,
+     * context path starts with '/' and never ends with '/' (root
+     * context returns empty string).  Similarly, servlet path will be
+     * the empty string (for '/*' matches) or '/<path>'.
+     * 
+     * <p>These are almost always the same for every request to a
+     * given servlet, so the last value is reused when it matches.
+     */
+    private IRubyObject getScriptName(HttpServletRequest req) {
+        final String contextPath = req.getContextPath();
+        final String servletPath = req.getServletPath();
         
-        env.put(c.QUERY_STRING, stringOrEmpty(req.getQueryString()));
+        ScriptName cached = scriptName;
+        if (cached == null ||
+                !cached.servletPath.equals(servletPath) ||
+                !cached.contextPath.equals(contextPath))
+        {
+            final RubyString value = runtime.newString(contextPath + servletPath);
+            value.setFrozen(true);
+            cached = new ScriptName(contextPath, servletPath, value);
+            scriptName = cached;
+        }
         
-        env.put(c.RACK_ERRORS, newRackErrors(req));
-
-        env.put(c.RACK_INPUT, newRackInput(req));
+        return cached.value.strDup(runtime);
+    }
 
-        env.put(c.RACK_MULTIPROCESS, runtime.getFalse());
-        env.put(c.RACK_MULTITHREAD, runtime.getTrue());
-        env.put(c.RACK_RUN_ONCE, runtime.getFalse());
-        
-        env.put(c.RACK_URL_SCHEME, stringOrNull(req.getScheme()));
+    /**
+     * Find the lazy key, if any, that must be loaded for a lookup of
+     * {@code key}.
+     *
+     * @param key a key being looked up in an {@link Environment}
+     * @return the matching lazy key, or null
+     */
+    Environment.Key lookupKey(IRubyObject key) {
+        if (!(key instanceof RubyString)) {
+            return null;
+        }
 
-        env.put(c.RACK_VERSION, runtime.getModule("Rack").getConstant("VERSION"));
-        
-        env.put(c.REMOTE_ADDR, runtime.newString(req.getRemoteAddr()));
-        env.put(c.REMOTE_HOST, runtime.newString(req.getRemoteHost()));
-        env.put(c.REMOTE_PORT, runtime.newString(Integer.toString(req.getRemotePort())));
-        env.put(c.REQUEST_METHOD, getRequestMethod(req));
+        final ByteList bytes = ((RubyString) key).getByteList();
+        final Environment.Key k = lazyKeys.get(bytes);
+        if (k != null) {
+            return k;
+        } else if (bytes.length() > HTTP_PREFIX.length() && bytes.startsWith(HTTP_PREFIX)) {
+            return Environment.Key.HEADERS;
+        } else {
+            return null;
+        }
+    }
 
-        env.put(c.REQUEST_PATH, stringOrNull(req.getPathInfo()));
-        env.put(c.REQUEST_URI, getRequestUri(req));
-        
-        /*
-         * context path joined with servlet_path, but not nil and empty
-         * string rather than '/'.  According to Java Servlet spec,
-         * context_path starts with '/' and never ends with '/' (root
-         * context returns empty string).  Similarly, servlet_path will be
-         * the empty string (for '/*' matches) or '/<path>'.
-         */
-        env.put(c.SCRIPT_NAME, 
-                runtime.newString(req.getContextPath() + req.getServletPath()));
-        
-        env.put(c.SERVER_NAME, stringOrNull(req.getServerName()));
-        env.put(c.SERVER_PORT, stringOrNull(Integer.toString(req.getServerPort())));
-        env.put(c.SERVER_PROTOCOL, stringOrNull(req.getProtocol()));
-        env.put(c.SERVER_SOFTWARE, stringOrNull(req.getServletContext().getServerInfo()));
+    /**
+     * Load the value(s) for {@code key} from the request into {@code env}.
+     */
+    void load(Environment env, Environment.Key key) {
+        final HttpServletRequest req = env.getRequest();
 
-        // miscellaneous keys that are not allowed to be 'nil' by Rack, grumble
-        {
+        switch (key) {
+        case JAVA_SERVLET_REQUEST:
+            env.store(c.JAVA_SERVLET_REQUEST,
+                      JavaUtil.convertJavaToUsableRubyObject(runtime, req));
+            break;
+        case PATH_INFO:
+            env.store(c.PATH_INFO, getPathInfo(req));
+            break;
+        case QUERY_STRING:
+            env.store(c.QUERY_STRING, stringOrEmpty(req.getQueryString()));
+            break;
+        case RACK_ERRORS:
+            env.store(c.RACK_ERRORS, newRackErrors(req.getServletContext()));
+            break;
+        case RACK_INPUT:
+            try {
+                if (matchesAny(streamingInputPatterns, req)) {
+                    env.store(c.RACK_INPUT, newStreamingInput(env, req));
+                } else {
+                    env.store(c.RACK_INPUT, newRackInput(env, req));
+                }
+            } catch (IOException e) {
+                throw runtime.newIOErrorFromException(e);
+            }
+            break;
+        case RACK_URL_SCHEME:
+            env.store(c.RACK_URL_SCHEME, stringOrNull(req.getScheme()));
+            break;
+        case REMOTE_ADDR:
+            env.store(c.REMOTE_ADDR, runtime.newString(req.getRemoteAddr()));
+            break;
+        case REMOTE_HOST:
+            env.store(c.REMOTE_HOST, runtime.newString(req.getRemoteHost()));
+            break;
+        case REMOTE_PORT:
+            env.store(c.REMOTE_PORT, runtime.newString(Integer.toString(req.getRemotePort())));
+            break;
+        case REMOTE_USER:
+            // not allowed to be 'nil' by Rack, grumble
             final String remoteUser = req.getRemoteUser();
             if (remoteUser != null) {
-                env.put(c.REMOTE_USER, runtime.newString(remoteUser));
+                env.store(c.REMOTE_USER, runtime.newString(remoteUser));
+            }
+            break;
+        case REQUEST_METHOD:
+            env.store(c.REQUEST_METHOD, getRequestMethod(req));
+            break;
+        case REQUEST_PATH:
+            env.store(c.REQUEST_PATH, stringOrNull(req.getPathInfo()));
+            break;
+        case REQUEST_URI:
+            env.store(c.REQUEST_URI, getRequestUri(req));
+            break;
+        case SCRIPT_NAME:
+            env.store(c.SCRIPT_NAME, getScriptName(req));
+            break;
+        case SERVER_NAME:
+            env.store(c.SERVER_NAME, stringOrNull(req.getServerName()));
+            break;
+        case SERVER_PORT:
+            env.store(c.SERVER_PORT, stringOrNull(Integer.toString(req.getServerPort())));
+            break;
+        case SERVER_PROTOCOL:
+            env.store(c.SERVER_PROTOCOL, stringOrNull(req.getProtocol()));
+            break;
+        case SERVER_SOFTWARE:
+            env.store(c.SERVER_SOFTWARE, stringOrNull(req.getServletContext().getServerInfo()));
+            break;
+        case HEADERS:
+            addHeaders(runtime, env, req);
+            break;
+        case FORM:
+            if (matchesAny(parseMultipartPatterns, req)) {
+                addMultipartForm(env, req);
             }
+            break;
+        case QUERY:
+            if (queryParser != null) {
+                addQuery(env);
+            }
+            break;
+        case COOKIES:
+            if (queryParser != null) {
+                addCookies(env);
+            }
+            break;
         }
-        
-        addHeaders(runtime, env, req);
-
-        return env;
     }
     
-    private static final String RACK_PREFIX = "HTTP_";
-
-    private static final int RACK_PREFIX_LEN = RACK_PREFIX.length();
-
-    private String toRackHeader(String str) {
-        final StringBuilder buf =
-                new StringBuilder(str.length() + RACK_PREFIX_LEN);
-        buf.append(RACK_PREFIX);
+    /**
+     * Parse a multipart body into {@code rack.request.form_hash}, as
+     * {@code Rack::Request#POST} would.  Parsing reads directly from
+     * the request rather than through {@code rack.input}, so it is
+     * done only if {@code rack.input} is still ours and untouched.
+     * Afterwards {@code rack.input} is empty, and is stored as
+     * {@code rack.request.form_input} so that Rack uses the parsed
+     * form.
+     */
+    private void addMultipartForm(Environment env, HttpServletRequest req) {
+        final String boundary = MultipartParser.getBoundary(req.getContentType());
+        if (boundary == null) {
+            return;
+        }
         
-        for(int i = 0, n = str.length() ; i < n ; i++) { 
-            final char c = str.charAt(i);
-            if (c == '-') {
-                buf.append("_");
-            } else {
-                buf.append(Character.toUpperCase(c));
-            }
+        final IRubyObject input = env.op_aref(runtime.getCurrentContext(), c.RACK_INPUT);
+        final InputStream in;
+        if (input instanceof RewindableInput) {
+            in = ((RewindableInput) input).getBuffer().detach();
+        } else if (input instanceof StreamingInput) {
+            in = ((StreamingInput) input).detach();
+        } else {
+            in = null;
+        }
+        if (in == null) {
+            return;
         }
         
-        return buf.toString();
+        final RubyHash form;
+        try {
+            form = new MultipartParser(runtime, in, boundary, tempDir).parse();
+        } catch (EOFException e) {
+            throw runtime.newEOFError(e.getMessage());
+        } catch (IOException e) {
+            throw runtime.newIOErrorFromException(e);
+        }
+        env.store(c.RACK_REQUEST_FORM_INPUT, input);
+        env.store(c.RACK_REQUEST_FORM_HASH, form);
     }
     
     /**
-     * Compare strings case insensitively.
-     * 
-     * @param a must not be null
-     * @param b
-     * @return
+     * Parse {@code QUERY_STRING} into {@code rack.request.query_hash}
+     * as {@code Rack::Request#GET} would, noting the string parsed in
+     * {@code rack.request.query_string} so that Rack uses the result.
+     */
+    private void addQuery(Environment env) {
+        final ThreadContext context = runtime.getCurrentContext();
+        final IRubyObject value = env.op_aref(context, c.QUERY_STRING);
+        final RubyString qs = (value instanceof RubyString)
+                ? (RubyString) value
+                : value.callMethod(context, "to_s").convertToString();
+        
+        // as Rack (1.5 and later), the string is noted only once
+        // parsed, so a string that failed to parse fails again
+        final IRubyObject hash = queryParser.parseNestedQuery(qs.getByteList());
+        env.store(c.RACK_REQUEST_QUERY_STRING, qs);
+        env.store(c.RACK_REQUEST_QUERY_HASH, hash);
+    }
+    
+    /**
+     * Parse {@code HTTP_COOKIE} into {@code rack.request.cookie_hash}
+     * as {@code Rack::Request#cookies} would, noting the string parsed
+     * in {@code rack.request.cookie_string} so that Rack uses the
+     * result.
      */
-    private boolean match(String a, String b) {
-        return a.equalsIgnoreCase(b);
+    private void addCookies(Environment env) {
+        final IRubyObject value = env.op_aref(runtime.getCurrentContext(), c.HTTP_COOKIE);
+        if (value instanceof RubyString) {
+            final RubyHash cookies = queryParser.parseCookies(((RubyString) value).getByteList());
+            env.store(c.RACK_REQUEST_COOKIE_STRING, value);
+            env.store(c.RACK_REQUEST_COOKIE_HASH, cookies);
+        }
     }
     
-    private IRubyObject getRackHeader(Ruby runtime, String str) {
-        // test for some common headers
-             if (match("Content-Length", str)) { return c.CONTENT_LENGTH; }
-        else if (match("Content-Type", str))   { return c.CONTENT_TYPE; }
-        else if (match("Host", str))           { return c.HTTP_HOST; }
-        else if (match("Accept", str))         { return c.HTTP_ACCEPT; }
-        else if (match("User-Agent", str))     { return c.HTTP_USER_AGENT; }
-        else if (match("Connection", str))     { return c.HTTP_CONNECTION; }
-        else { return runtime.newString(toRackHeader(str)); }
+    /**
+     * @return the number of entries {@link #load} will store for
+     *         {@code key}, or 0 for keys loaded only by lookup and for
+     *         the headers, which are counted only by loading them
+     */
+    int countEntries(HttpServletRequest req, Environment.Key key) {
+        switch (key) {
+        case REMOTE_USER:
+            return (req.getRemoteUser() != null) ? 1 : 0;
+        case HEADERS:
+        case FORM:
+        case QUERY:
+        case COOKIES:
+            return 0;
+        default:
+            return 1;
+        }
     }
     
+    /**
+     * @return true if {@code name} describes the body as sent, and so
+     *         is left out when the body is inflated
+     */
+    private static boolean isBodyHeader(String name) {
+        return "Content-Encoding".equalsIgnoreCase(name) ||
+                "Content-Length".equalsIgnoreCase(name);
+    }
+
+    private static final ByteList HTTP_PREFIX = ByteList.create("HTTP_");
+
     /**
      * Add each HTTP header in {@code req} into the hash, translating
-     * Servlet header names to their Rack equivalents.
+     * Servlet header names to their Rack equivalents.  If the body is
+     * inflated, {@code Content-Encoding} and {@code Content-Length}
+     * (which describe the body as sent) are left out.
      * 
      * @param req
      */
-    private void addHeaders(Ruby runtime, RubyHash env, HttpServletRequest req) {
+    private void addHeaders(Ruby runtime, Environment env, HttpServletRequest req) {
+        final boolean inflated = isInflated(req);
         final Enumeration<String> names = req.getHeaderNames();
         while (names.hasMoreElements()) {
             final String name = names.nextElement();
+            if (inflated && isBodyHeader(name)) {
+                continue;
+            }
             
-            final IRubyObject key   = getRackHeader(runtime, name);
-            final IRubyObject value = runtime.newString(req.getHeader(name));
+            final RubyString key   = c.headerKeys.get(name);
+            final RubyString value = headerValues.get(key, req.getHeader(name));
             
-            env.put(key, value);
+            env.store(key, value);
         }
     }
 
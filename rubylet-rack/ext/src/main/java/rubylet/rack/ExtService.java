@@ -11,6 +11,9 @@ public class ExtService implements BasicLibraryService {
         StaticFileFilter.create(runtime);
         Servlet.create(runtime);
         AsyncCallback.create(runtime);
+        Broadcaster.create(runtime);
+        RewindableInput.create(runtime);
+        StreamingInput.create(runtime);
         Constants.makeInstance(runtime);
         return true;
     }
@@ -0,0 +1,338 @@
+package rubylet.rack;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A timer for many timeouts that are mostly cancelled before they
+ * expire, such as those of idle async responses.  Timeouts are kept in
+ * a wheel of buckets, one per tick, so adding or cancelling one is
+ * O(1) whatever the number pending, and one thread advances the wheel
+ * each tick, expiring only the timeouts in the current bucket.
+ * Timeouts fire up to one tick late.  The thread is started by the
+ * first {@link #schedule}, so an unused timer costs nothing.
+ *
+ * <p>Tasks run on the timer thread, so should be quick; hand longer
+ * work to another thread.
+ *
+ * <p>Threadsafe.
+ */
+public final class HashedWheelTimer {
+
+    public static final long DEFAULT_TICK_MILLIS = 100;
+
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static final int INIT = 0;
+
+    private static final int CANCELLED = 1;
+
+    private static final int EXPIRED = 2;
+
+    /**
+     * A pending task, which may be cancelled.
+     */
+    public static final class Timeout {
+
+        private final HashedWheelTimer timer;
+
+        private final Runnable task;
+
+        private final long deadline;
+
+        /**
+         * Full turns of the wheel left before expiry.  Touched only by
+         * the timer thread.
+         */
+        private long rounds;
+
+        private Timeout prev;
+
+        private Timeout next;
+
+        private Bucket bucket;
+
+        private final AtomicInteger state = new AtomicInteger(INIT);
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel this timeout if it has not yet expired.
+         *
+         * @return true if cancelled by this call
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(INIT, CANCELLED)) {
+                return false;
+            }
+            timer.pending.decrementAndGet();
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(INIT, EXPIRED)) {
+                return;
+            }
+            timer.pending.decrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                timer.failures.incrementAndGet();
+            } catch (Error e) {
+                timer.failures.incrementAndGet();
+            }
+        }
+
+    }
+
+    /**
+     * A doubly linked list of timeouts.  Touched only by the timer
+     * thread.
+     */
+    private static final class Bucket {
+
+        private Timeout head;
+
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            final Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        /**
+         * Expire the timeouts due by {@code deadline}, and count down
+         * the rounds of the rest.
+         */
+        void expire(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                if (timeout.rounds <= 0 && timeout.deadline <= deadline) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else if (timeout.rounds > 0) {
+                    --timeout.rounds;
+                }
+                timeout = next;
+            }
+        }
+
+    }
+
+    private final long tickNanos;
+
+    private final Bucket[] wheel;
+
+    private final int mask;
+
+    /**
+     * Timeouts added since the last tick, to be put in the wheel by the
+     * timer thread.
+     */
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+    private final AtomicLong pending = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final Thread thread;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * When the thread was started, in {@link System#nanoTime()}; tick
+     * 0 ends one tick later.
+     */
+    private volatile long startTime;
+
+    private volatile boolean stopped;
+
+    /**
+     * Create a timer; its thread is started when first needed.
+     *
+     * @param name of the timer thread
+     * @param tickMillis duration of one tick
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    public HashedWheelTimer(String name, long tickMillis, int wheelSize) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tick must be positive: " + tickMillis);
+        }
+        this.tickNanos = tickMillis * 1000000L;
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; ++i) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, name);
+        thread.setDaemon(true);
+    }
+
+    private void ensureStarted() {
+        if (!started.get() && started.compareAndSet(false, true)) {
+            startTime = System.nanoTime();
+            thread.start();
+        }
+    }
+
+    /**
+     * Run {@code task} on the timer thread after {@code delayMillis}.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        if (stopped) {
+            throw new IllegalStateException("timer stopped");
+        }
+        ensureStarted();
+        final long deadline = System.nanoTime() - startTime + delayMillis * 1000000L;
+        final Timeout timeout = new Timeout(this, task, deadline);
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void work() {
+        long tick = 0;
+        while (!stopped) {
+            final long deadline = waitForNextTick(tick);
+            if (deadline < 0) {
+                break;
+            }
+            removeCancelled();
+            transferAdded(tick);
+            wheel[(int) (tick & mask)].expire(deadline);
+            ++tick;
+        }
+    }
+
+    /**
+     * Sleep until the end of {@code tick}.
+     *
+     * @return the time since start, or -1 if stopped meanwhile
+     */
+    private long waitForNextTick(long tick) {
+        final long deadline = tickNanos * (tick + 1);
+        while (true) {
+            final long now = System.nanoTime() - startTime;
+            final long sleepMillis = (deadline - now + 999999) / 1000000;
+            if (sleepMillis <= 0) {
+                return now;
+            }
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                if (stopped) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * Put added timeouts in the wheel, no earlier than the current
+     * tick.
+     */
+    private void transferAdded(long tick) {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            final long due = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.rounds = (due - tick) / wheel.length;
+            wheel[(int) (due & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Stop the timer thread.  Pending timeouts never expire.
+     */
+    public void stop() {
+        stopped = true;
+        thread.interrupt();
+    }
+
+    /**
+     * @return the number of timeouts neither expired nor cancelled
+     */
+    public long getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return the number of tasks that threw
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public String toString() {
+        return "HashedWheelTimer[pending=" + getPending() + ", failures=" + getFailures() + "]";
+    }
+
+}
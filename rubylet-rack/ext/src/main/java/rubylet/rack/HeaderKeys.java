@@ -0,0 +1,233 @@
+package rubylet.rack;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jruby.Ruby;
+import org.jruby.RubyString;
+
+/**
+ * Intern table mapping Servlet header names to frozen Rack environment
+ * keys ({@code "X-Forwarded-For"} to {@code "HTTP_X_FORWARDED_FOR"}).
+ *
+ * <p>The table is seeded with standard request headers and those
+ * commonly added by proxies, in both canonical and lower case.  Other
+ * header names are added as they are seen, up to a fixed limit, after
+ * which unknown names are translated on every request rather than
+ * cached so that random header names cannot grow the table without
+ * bound.
+ *
+ * <p>Threadsafe.  One instance per Ruby runtime.
+ */
+public final class HeaderKeys {
+
+    /**
+     * Standard request headers and those commonly set by proxies and
+     * load balancers.
+     */
+    private static final String[] COMMON = {
+        "Accept",
+        "Accept-Charset",
+        "Accept-Datetime",
+        "Accept-Encoding",
+        "Accept-Language",
+        "Access-Control-Request-Headers",
+        "Access-Control-Request-Method",
+        "Authorization",
+        "Cache-Control",
+        "Connection",
+        "Content-Encoding",
+        "Content-Length",
+        "Content-MD5",
+        "Content-Type",
+        "Cookie",
+        "Date",
+        "DNT",
+        "Expect",
+        "Forwarded",
+        "From",
+        "Front-End-Https",
+        "Host",
+        "If-Match",
+        "If-Modified-Since",
+        "If-None-Match",
+        "If-Range",
+        "If-Unmodified-Since",
+        "Keep-Alive",
+        "Max-Forwards",
+        "Origin",
+        "Pragma",
+        "Proxy-Authorization",
+        "Proxy-Connection",
+        "Range",
+        "Referer",
+        "TE",
+        "Upgrade",
+        "Upgrade-Insecure-Requests",
+        "User-Agent",
+        "Via",
+        "Warning",
+        "X-Amzn-Trace-Id",
+        "X-Cluster-Client-IP",
+        "X-Correlation-ID",
+        "X-CSRF-Token",
+        "X-Forwarded-For",
+        "X-Forwarded-Host",
+        "X-Forwarded-Port",
+        "X-Forwarded-Proto",
+        "X-Forwarded-Scheme",
+        "X-Forwarded-Server",
+        "X-Forwarded-Ssl",
+        "X-Http-Method-Override",
+        "X-Original-URI",
+        "X-Queue-Start",
+        "X-Real-IP",
+        "X-Request-Id",
+        "X-Request-Start",
+        "X-Requested-With",
+        "X-Scheme",
+        "X-Wap-Profile",
+    };
+
+    /**
+     * Default maximum number of entries.
+     */
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    private static final String RACK_PREFIX = "HTTP_";
+
+    private static final int RACK_PREFIX_LEN = RACK_PREFIX.length();
+
+    /**
+     * Translate a Servlet header name to a Rack header name:
+     * upcased, dashes replaced with underscores, and prefixed with
+     * {@code HTTP_}.
+     */
+    public static String toRackHeader(String str) {
+        final StringBuilder buf =
+                new StringBuilder(str.length() + RACK_PREFIX_LEN);
+        buf.append(RACK_PREFIX);
+
+        for(int i = 0, n = str.length() ; i < n ; i++) {
+            final char c = str.charAt(i);
+            if (c == '-') {
+                buf.append("_");
+            } else {
+                buf.append(Character.toUpperCase(c));
+            }
+        }
+
+        return buf.toString();
+    }
+
+    private final Ruby runtime;
+
+    private final int maxSize;
+
+    private final ConcurrentMap<String, RubyString> table;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public HeaderKeys(Ruby runtime) {
+        this(runtime, DEFAULT_MAX_SIZE);
+    }
+
+    public HeaderKeys(Ruby runtime, int maxSize) {
+        this.runtime = runtime;
+        this.maxSize = maxSize;
+        this.table = new ConcurrentHashMap<String, RubyString>(COMMON.length * 4);
+
+        // Rack spec: these two have no HTTP_ prefix
+        seed("Content-Length", frozenString("CONTENT_LENGTH"));
+        seed("Content-Type", frozenString("CONTENT_TYPE"));
+
+        for (String name : COMMON) {
+            if (!table.containsKey(name)) {
+                seed(name, newKey(name));
+            }
+        }
+    }
+
+    private void seed(String name, RubyString key) {
+        table.put(name, key);
+        table.put(name.toLowerCase(Locale.ENGLISH), key);
+    }
+
+    private RubyString frozenString(String str) {
+        final RubyString rbStr = runtime.newString(str);
+        rbStr.setFrozen(true);
+        return rbStr;
+    }
+
+    private RubyString newKey(String name) {
+        return frozenString(toRackHeader(name));
+    }
+
+    /**
+     * Get the frozen Rack key for the Servlet header {@code name}.
+     *
+     * @param name a header name as returned by the Servlet container
+     * @return the frozen Rack key
+     */
+    public RubyString get(String name) {
+        final RubyString key = table.get(name);
+        if (key != null) {
+            hits.incrementAndGet();
+            return key;
+        }
+
+        misses.incrementAndGet();
+
+        // share the key with any other case of the same name
+        final String lower = name.toLowerCase(Locale.ENGLISH);
+        RubyString newKey = table.get(lower);
+        if (newKey == null) {
+            newKey = newKey(name);
+        }
+
+        if (table.size() < maxSize) {
+            final RubyString existing = table.putIfAbsent(name, newKey);
+            if (existing != null) {
+                return existing;
+            }
+            table.putIfAbsent(lower, newKey);
+        }
+
+        return newKey;
+    }
+
+    /**
+     * @return the number of lookups found in the table
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups not found in the table
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of header names in the table
+     */
+    public int size() {
+        return table.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public String toString() {
+        return "HeaderKeys[size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() + "]";
+    }
+
+}
@@ -0,0 +1,136 @@
+package rubylet.rack;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jcodings.specific.ASCIIEncoding;
+import org.jcodings.specific.USASCIIEncoding;
+import org.jruby.Ruby;
+import org.jruby.RubyString;
+import org.jruby.util.ByteList;
+import org.jruby.util.StringSupport;
+
+/**
+ * Converts HTTP header values to Ruby strings.
+ *
+ * <p>Servlet containers decode header bytes as ISO-8859-1, so each
+ * {@code char} of a header value is one byte of the original request.
+ * {@link #newString(Ruby, String)} copies those bytes directly into a
+ * Ruby string rather than re-encoding the value as UTF-8 one char at
+ * a time.
+ *
+ * <p>Optionally, values of headers that tend to repeat across
+ * requests ({@code Accept}, {@code User-Agent}, etc.) are cached.
+ * Each request gets its own string sharing the cached bytes
+ * (copy-on-write), so applications may still modify them.  When the
+ * cache is full it is cleared so that it follows changes in traffic.
+ *
+ * <p>Threadsafe.
+ */
+public final class HeaderValues {
+
+    /**
+     * Headers whose values are cached, if caching is enabled.
+     */
+    private static final String[] CACHED = {
+        "Accept",
+        "Accept-Charset",
+        "Accept-Encoding",
+        "Accept-Language",
+        "Cache-Control",
+        "Connection",
+        "User-Agent",
+    };
+
+    /**
+     * Create a new Ruby string from a header value.  Values of only
+     * 7-bit chars are US-ASCII; values of 8-bit chars are ASCII-8BIT
+     * holding the original bytes.  Anything else (a container that
+     * decoded the header some other way) falls back to
+     * {@link Ruby#newString(String)}.
+     *
+     * @param runtime
+     * @param value a header value, not null
+     * @return a new Ruby string
+     */
+    public static RubyString newString(Ruby runtime, String value) {
+        final int len = value.length();
+        final byte[] bytes = new byte[len];
+        int bits = 0;
+        for (int i = 0; i < len; ++i) {
+            final char c = value.charAt(i);
+            bits |= c;
+            bytes[i] = (byte) c;
+        }
+
+        if (bits < 0x80) {
+            return RubyString.newStringNoCopy(runtime,
+                                              new ByteList(bytes, USASCIIEncoding.INSTANCE, false),
+                                              USASCIIEncoding.INSTANCE,
+                                              StringSupport.CR_7BIT);
+        } else if (bits < 0x100) {
+            return RubyString.newStringNoCopy(runtime,
+                                              new ByteList(bytes, ASCIIEncoding.INSTANCE, false),
+                                              ASCIIEncoding.INSTANCE,
+                                              StringSupport.CR_VALID);
+        } else {
+            return runtime.newString(value);
+        }
+    }
+
+    private final Ruby runtime;
+
+    private final int maxSize;
+
+    private final Set<RubyString> cachedKeys =
+            Collections.newSetFromMap(new IdentityHashMap<RubyString, Boolean>());
+
+    private final ConcurrentMap<String, RubyString> cache;
+
+    /**
+     * @param runtime
+     * @param headerKeys used to find the Rack keys of cached headers
+     * @param maxSize max number of cached values; zero to disable caching
+     */
+    public HeaderValues(Ruby runtime, HeaderKeys headerKeys, int maxSize) {
+        this.runtime = runtime;
+        this.maxSize = maxSize;
+
+        if (maxSize > 0) {
+            cache = new ConcurrentHashMap<String, RubyString>();
+            for (String name : CACHED) {
+                cachedKeys.add(headerKeys.get(name));
+            }
+        } else {
+            cache = null;
+        }
+    }
+
+    /**
+     * Get a new Ruby string for the value of a header.
+     *
+     * @param key the Rack key of the header, from {@link HeaderKeys}
+     * @param value the header value, not null
+     * @return a new Ruby string
+     */
+    public RubyString get(RubyString key, String value) {
+        if (cache == null || !cachedKeys.contains(key)) {
+            return newString(runtime, value);
+        }
+
+        RubyString str = cache.get(value);
+        if (str == null) {
+            str = newString(runtime, value);
+            str.setFrozen(true);
+            if (cache.size() >= maxSize) {
+                cache.clear();
+            }
+            cache.put(value, str);
+        }
+        return str.strDup(runtime);
+    }
+
+}
@@ -0,0 +1,205 @@
+package rubylet.rack;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.jruby.RubyArray;
+import org.jruby.RubyHash;
+import org.jruby.RubyString;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * Sets the headers of a Rack response on an
+ * {@link HttpServletResponse}.
+ *
+ * <ul>
+ * <li>Names of common response headers map directly to interned Java
+ * strings rather than being decoded each time.</li>
+ * <li>Values joined with {@code "\n"}, Rack's way of giving several
+ * values for one header (as {@code Set-Cookie}), become one
+ * {@code setHeader} and then an {@code addHeader} for each further
+ * value.  An array value is handled the same way.</li>
+ * <li>{@code Content-Type} and {@code Content-Length} go to
+ * {@code setContentType} and {@code setContentLength}, which
+ * containers otherwise reach only after matching the name of every
+ * header against their special cases.</li>
+ * <li>Values are converted byte for byte (ISO-8859-1), so the bytes
+ * the application gave are the bytes sent.</li>
+ * </ul>
+ *
+ * <p>Threadsafe.  One instance per Ruby runtime.
+ */
+public final class HeaderWriter {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /**
+     * Common response headers.
+     */
+    private static final String[] COMMON = {
+        "Accept-Ranges",
+        "Access-Control-Allow-Credentials",
+        "Access-Control-Allow-Headers",
+        "Access-Control-Allow-Methods",
+        "Access-Control-Allow-Origin",
+        "Access-Control-Expose-Headers",
+        "Access-Control-Max-Age",
+        "Age",
+        "Allow",
+        "Cache-Control",
+        "Connection",
+        "Content-Disposition",
+        "Content-Encoding",
+        "Content-Language",
+        "Content-Length",
+        "Content-Location",
+        "Content-Range",
+        "Content-Security-Policy",
+        "Content-Type",
+        "Date",
+        "ETag",
+        "Expires",
+        "Last-Modified",
+        "Link",
+        "Location",
+        "P3P",
+        "Pragma",
+        "Refresh",
+        "Retry-After",
+        "Server",
+        "Set-Cookie",
+        "Status",
+        "Strict-Transport-Security",
+        "Vary",
+        "WWW-Authenticate",
+        "X-Content-Type-Options",
+        "X-Frame-Options",
+        "X-Powered-By",
+        "X-Request-Id",
+        "X-Runtime",
+        "X-UA-Compatible",
+        "X-XSS-Protection",
+    };
+
+    private static final String CONTENT_TYPE = "Content-Type";
+
+    private static final String CONTENT_LENGTH = "Content-Length";
+
+    /**
+     * Header name bytes to interned names.  Not modified after
+     * construction.
+     */
+    private final Map<ByteList, String> names = new HashMap<ByteList, String>(COMMON.length * 4);
+
+    public HeaderWriter() {
+        for (String name : COMMON) {
+            final String interned = name.intern();
+            names.put(new ByteList(name.getBytes(ISO_8859_1), false), interned);
+            final String lower = name.toLowerCase(Locale.ENGLISH);
+            names.put(new ByteList(lower.getBytes(ISO_8859_1), false), lower.intern());
+        }
+    }
+
+    private static String toJavaString(ByteList bytes, int begin, int len) {
+        return new String(bytes.getUnsafeBytes(), bytes.getBegin() + begin, len, ISO_8859_1);
+    }
+
+    private String getName(IRubyObject name) {
+        if (name instanceof RubyString) {
+            final ByteList bytes = ((RubyString) name).getByteList();
+            final String cached = names.get(bytes);
+            return (cached != null) ? cached : toJavaString(bytes, 0, bytes.getRealSize());
+        }
+        return name.asJavaString();
+    }
+
+    private static RubyString toRubyString(IRubyObject value) {
+        return (value instanceof RubyString) ? (RubyString) value : value.asString();
+    }
+
+    /**
+     * Set each header in {@code headers} on {@code resp}.
+     */
+    public void write(final HttpServletResponse resp, RubyHash headers) {
+        headers.visitAll(new RubyHash.Visitor() {
+            @Override
+            public void visit(IRubyObject name, IRubyObject value) {
+                setHeader(resp, getName(name), value);
+            }
+        });
+    }
+
+    private void setHeader(HttpServletResponse resp, String name, IRubyObject value) {
+        if (value instanceof RubyArray) {
+            final RubyArray values = (RubyArray) value;
+            for (int i = 0, len = values.getLength(); i < len; ++i) {
+                setValues(resp, name, toRubyString(values.eltInternal(i)).getByteList(), i > 0);
+            }
+        } else {
+            setValues(resp, name, toRubyString(value).getByteList(), false);
+        }
+    }
+
+    /**
+     * Set or add each {@code "\n"} separated value in {@code bytes}.
+     *
+     * @param add if true, add even the first value
+     */
+    private void setValues(HttpServletResponse resp, String name, ByteList bytes, boolean add) {
+        final int len = bytes.getRealSize();
+        int start = 0;
+        while (true) {
+            int end = bytes.indexOf('\n', start);
+            if (end < 0) {
+                end = len;
+            }
+            final String value = toJavaString(bytes, start, end - start);
+            if (add) {
+                resp.addHeader(name, value);
+            } else {
+                setValue(resp, name, value);
+                add = true;
+            }
+            if (end >= len) {
+                return;
+            }
+            start = end + 1;
+        }
+    }
+
+    private void setValue(HttpServletResponse resp, String name, String value) {
+        if (name == CONTENT_TYPE || CONTENT_TYPE.equalsIgnoreCase(name)) {
+            resp.setContentType(value);
+        } else if ((name == CONTENT_LENGTH || CONTENT_LENGTH.equalsIgnoreCase(name)) &&
+                isIntLength(value))
+        {
+            resp.setContentLength(Integer.parseInt(value));
+        } else {
+            resp.setHeader(name, value);
+        }
+    }
+
+    /**
+     * @return true if {@code value} is a non-negative decimal
+     *         {@code int}
+     */
+    private static boolean isIntLength(String value) {
+        final int len = value.length();
+        if (len == 0 || len > 9) {
+            return false;
+        }
+        for (int i = 0; i < len; ++i) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
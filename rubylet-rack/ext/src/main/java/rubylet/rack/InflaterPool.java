@@ -0,0 +1,53 @@
+package rubylet.rack;
+
+import java.util.ArrayDeque;
+import java.util.zip.Inflater;
+
+/**
+ * A pool of raw ({@code nowrap}) {@link Inflater}s.  Each inflater
+ * holds native zlib state that is costly to create and is otherwise
+ * released only by finalization, so inflaters are reset and reused
+ * across requests rather than created for each one.
+ *
+ * <p>Threadsafe.
+ */
+public final class InflaterPool {
+
+    private final ArrayDeque<Inflater> idle = new ArrayDeque<Inflater>();
+
+    private final int maxIdle;
+
+    /**
+     * @param maxIdle max number of idle inflaters kept; others are
+     *        ended when returned
+     */
+    public InflaterPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return an idle inflater, or a new one if none are idle
+     */
+    public Inflater take() {
+        final Inflater inflater;
+        synchronized (idle) {
+            inflater = idle.pollFirst();
+        }
+        return (inflater == null) ? new Inflater(true) : inflater;
+    }
+
+    /**
+     * Return an inflater from {@link #take()} to the pool.
+     */
+    public void give(Inflater inflater) {
+        inflater.reset();
+        synchronized (idle) {
+            if (idle.size() < maxIdle) {
+                idle.addFirst(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+
+}
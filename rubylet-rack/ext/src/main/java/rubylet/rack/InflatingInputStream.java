@@ -0,0 +1,326 @@
+package rubylet.rack;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates a request body sent with {@code Content-Encoding: gzip} or
+ * {@code deflate} as it is read.
+ *
+ * <p>Unlike {@link java.util.zip.GZIPInputStream}, the {@link Inflater}
+ * comes from an {@link InflaterPool} and is returned to it on
+ * {@link #close()}.  The gzip and zlib headers and trailers are handled
+ * here, so a single kind of (raw) inflater serves both encodings.
+ * {@code deflate} bodies are accepted with or without the zlib wrapper,
+ * as clients disagree on what it means.  Concatenated gzip members are
+ * read as one stream.
+ *
+ * <p>At most {@code limit} inflated bytes are returned; beyond that,
+ * reads throw an {@link IOException}, so that a small body cannot
+ * expand without bound.
+ *
+ * <p>Not threadsafe.
+ */
+public final class InflatingInputStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final InputStream in;
+
+    private final boolean gzip;
+
+    private final InflaterPool pool;
+
+    private final long limit;
+
+    private Inflater inflater;
+
+    /**
+     * Compressed data read from {@link #in}; not yet consumed is
+     * {@code buf[pos, end)}.
+     */
+    private final byte[] buf = new byte[BUFFER_SIZE];
+
+    private int pos;
+
+    private int end;
+
+    /**
+     * Checksum of the current member, or null if it has none (raw
+     * deflate).
+     */
+    private Checksum checksum;
+
+    private boolean started;
+
+    private boolean eof;
+
+    /**
+     * Inflated bytes of the current gzip member, for its trailer.
+     */
+    private long memberSize;
+
+    /**
+     * Inflated bytes returned in total.
+     */
+    private long total;
+
+    private final byte[] single = new byte[1];
+
+    /**
+     * @param in the compressed body
+     * @param gzip true for gzip, false for deflate
+     * @param pool source of the inflater
+     * @param limit max number of inflated bytes, or -1 for no limit
+     */
+    public InflatingInputStream(InputStream in, boolean gzip, InflaterPool pool, long limit) {
+        this.in = in;
+        this.gzip = gzip;
+        this.pool = pool;
+        this.limit = limit;
+        this.inflater = pool.take();
+    }
+
+    /**
+     * @return the total number of inflated bytes read
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    private boolean fillBuffer() throws IOException {
+        final int n = in.read(buf, 0, buf.length);
+        if (n < 0) {
+            return false;
+        }
+        pos = 0;
+        end = n;
+        return true;
+    }
+
+    /**
+     * @return the next compressed byte, or -1 at the end of the stream
+     */
+    private int readByte() throws IOException {
+        while (pos == end) {
+            if (!fillBuffer()) {
+                return -1;
+            }
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    private int readUByte() throws IOException {
+        final int b = readByte();
+        if (b < 0) {
+            throw new EOFException("unexpected end of compressed body");
+        }
+        return b;
+    }
+
+    private int readUShortLE() throws IOException {
+        return readUByte() | (readUByte() << 8);
+    }
+
+    private long readUIntLE() throws IOException {
+        return (readUShortLE() & 0xffffL) | ((long) readUShortLE() << 16);
+    }
+
+    private long readUIntBE() throws IOException {
+        long n = 0;
+        for (int i = 0; i < 4; ++i) {
+            n = (n << 8) | readUByte();
+        }
+        return n;
+    }
+
+    private void skipZeroTerminated() throws IOException {
+        while (readUByte() != 0) {
+            // skip
+        }
+    }
+
+    /**
+     * Read a gzip member header, whose first byte has already been
+     * read.
+     */
+    private void readGzipHeader(int first) throws IOException {
+        if ((first | (readUByte() << 8)) != GZIP_MAGIC) {
+            throw new ZipException("not in gzip format");
+        }
+        if (readUByte() != 8) {
+            throw new ZipException("unsupported gzip compression method");
+        }
+        final int flags = readUByte();
+        for (int i = 0; i < 6; ++i) {
+            readUByte(); // mtime, xfl, os
+        }
+        if ((flags & FEXTRA) != 0) {
+            for (int n = readUShortLE(); n > 0; --n) {
+                readUByte();
+            }
+        }
+        if ((flags & FNAME) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FCOMMENT) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FHCRC) != 0) {
+            readUShortLE();
+        }
+
+        checksum = new CRC32();
+        memberSize = 0;
+    }
+
+    /**
+     * Read a zlib header, if there is one.
+     */
+    private void readZlibHeader() throws IOException {
+        while (end - pos < 2) {
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, end - pos);
+                end -= pos;
+                pos = 0;
+            }
+            final int n = in.read(buf, end, buf.length - end);
+            if (n < 0) {
+                return; // too short to be zlib; let the inflater fail
+            }
+            end += n;
+        }
+
+        final int cmf = buf[pos] & 0xff;
+        final int flg = buf[pos + 1] & 0xff;
+        if ((cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0) {
+            if ((flg & 0x20) != 0) {
+                throw new ZipException("deflate preset dictionary not supported");
+            }
+            pos += 2;
+            checksum = new Adler32();
+        } else {
+            checksum = null;
+        }
+    }
+
+    private void start() throws IOException {
+        started = true;
+        if (gzip) {
+            final int first = readByte();
+            if (first < 0) {
+                eof = true; // empty body
+            } else {
+                readGzipHeader(first);
+            }
+        } else {
+            readZlibHeader();
+        }
+    }
+
+    /**
+     * Read the trailer of the finished member, then the header of the
+     * next, if any.
+     */
+    private void finishMember() throws IOException {
+        pos = end - inflater.getRemaining();
+
+        if (gzip) {
+            if (readUIntLE() != checksum.getValue()) {
+                throw new ZipException("corrupt gzip trailer (crc)");
+            }
+            if (readUIntLE() != (memberSize & 0xffffffffL)) {
+                throw new ZipException("corrupt gzip trailer (size)");
+            }
+            final int next = readByte();
+            if (next < 0) {
+                eof = true;
+            } else {
+                readGzipHeader(next);
+                inflater.reset();
+            }
+        } else {
+            if (checksum != null && readUIntBE() != checksum.getValue()) {
+                throw new ZipException("corrupt deflate trailer (adler32)");
+            }
+            eof = true;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        return (read(single, 0, 1) < 0) ? -1 : (single[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (inflater == null) {
+            throw new IOException("closed stream");
+        }
+        if (!started) {
+            start();
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        while (!eof) {
+            final int n;
+            try {
+                n = inflater.inflate(b, off, len);
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            }
+
+            if (n > 0) {
+                if (checksum != null) {
+                    checksum.update(b, off, n);
+                }
+                memberSize += n;
+                total += n;
+                if (limit >= 0 && total > limit) {
+                    throw new IOException("inflated request body larger than " + limit + " bytes");
+                }
+                return n;
+            } else if (inflater.finished()) {
+                finishMember();
+            } else if (inflater.needsDictionary()) {
+                throw new ZipException("deflate preset dictionary not supported");
+            } else if (inflater.needsInput()) {
+                if (pos == end && !fillBuffer()) {
+                    throw new EOFException("unexpected end of compressed body");
+                }
+                inflater.setInput(buf, pos, end - pos);
+                pos = end;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the inflater to its pool.  Does not close the underlying
+     * stream.
+     */
+    @Override
+    public void close() {
+        if (inflater != null) {
+            pool.give(inflater);
+            inflater = null;
+        }
+    }
+
+}
@@ -0,0 +1,407 @@
+package rubylet.rack;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A random access buffer of everything read so far from an
+ * {@link InputStream}, used to make a request body rewindable.
+ *
+ * <p>Data is read from the stream only as needed to satisfy reads.  It
+ * is kept in memory in fixed size chunks (no copying as the buffer
+ * grows) up to a limit, after which everything is moved into a temp
+ * file.  If the total length is known in advance, the memory buffer is
+ * a single chunk of exactly that size, or if that is over the limit,
+ * data goes straight to the file.
+ *
+ * <p>Not threadsafe.
+ */
+public final class InputBuffer implements Closeable {
+
+    /**
+     * Default max number of bytes held in memory.
+     */
+    public static final int DEFAULT_LIMIT = 64 * 1024;
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final InputStream in;
+
+    private final long contentLength;
+
+    private final int limit;
+
+    private final File tempDir;
+
+    private final int chunkSize;
+
+    private List<byte[]> chunks = new ArrayList<byte[]>(4);
+
+    private File file;
+
+    private FileChannel channel;
+
+    private byte[] scratch;
+
+    /**
+     * Cached region of {@link #channel}; small reads (lines, etc.) are
+     * served from here rather than by a system call each.
+     */
+    private byte[] window;
+
+    private long windowStart;
+
+    private int windowLength;
+
+    /**
+     * Number of bytes read from {@link #in}.
+     */
+    private long length;
+
+    private boolean eof;
+
+    private boolean closed;
+
+    /**
+     * @param in the stream to buffer
+     * @param contentLength the length of {@code in}, or -1 if not known
+     * @param limit max number of bytes to hold in memory
+     * @param tempDir directory for temp files, or null for the system
+     *        default
+     */
+    public InputBuffer(InputStream in, long contentLength, int limit, File tempDir) {
+        this.in = in;
+        this.contentLength = contentLength;
+        this.limit = limit;
+        this.tempDir = tempDir;
+
+        if (contentLength >= 0 && contentLength <= limit) {
+            chunkSize = (int) Math.max(contentLength, 1);
+        } else {
+            chunkSize = Math.max(Math.min(CHUNK_SIZE, limit), 1);
+        }
+    }
+
+    /**
+     * @return the number of bytes read so far from the stream
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return true if the end of the stream has been reached
+     */
+    public boolean isEof() {
+        return eof;
+    }
+
+    /**
+     * @return true if data has been moved into a temp file
+     */
+    public boolean isSpilled() {
+        return channel != null;
+    }
+
+    /**
+     * An estimate of the number of bytes remaining from {@code pos}, for
+     * sizing a read buffer.
+     */
+    public long remainingHint(long pos) {
+        if (eof || contentLength < 0) {
+            return Math.max(length - pos, 0);
+        } else {
+            return Math.max(Math.max(contentLength, length) - pos, 0);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("closed stream");
+        }
+    }
+
+    /**
+     * Read more data from the stream into the buffer.
+     *
+     * @return false if the end of the stream was reached
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+
+        final boolean full = (channel == null && !fitsInMemory());
+
+        final int n;
+        if (channel == null && !full) {
+            final int index = (int) (length / chunkSize);
+            final int offset = (int) (length % chunkSize);
+            if (index == chunks.size()) {
+                chunks.add(new byte[chunkSize]);
+            }
+            n = in.read(chunks.get(index), offset, chunkSize - offset);
+        } else {
+            if (scratch == null) {
+                scratch = new byte[CHUNK_SIZE];
+            }
+            n = in.read(scratch);
+            if (n > 0) {
+                // spill only once there is more, not to find the end
+                if (full) {
+                    spill();
+                }
+                writeFully(ByteBuffer.wrap(scratch, 0, n), length);
+            }
+        }
+
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        length += n;
+        return true;
+    }
+
+    /**
+     * @return true if the chunk holding the next byte from the stream
+     *         is within the memory limit
+     */
+    private boolean fitsInMemory() {
+        if (contentLength > limit) {
+            return false;
+        }
+        final long chunkEnd = (length / chunkSize + 1) * chunkSize;
+        return chunkEnd <= Math.max(limit, chunkSize);
+    }
+
+    /**
+     * Move the memory buffer into a new temp file.
+     */
+    private void spill() throws IOException {
+        file = File.createTempFile("rubylet", ".input", tempDir);
+        channel = new RandomAccessFile(file, "rw").getChannel();
+
+        // on unix-like systems the file goes away when closed
+        if (file.delete()) {
+            file = null;
+        }
+
+        long pos = 0;
+        for (byte[] chunk : chunks) {
+            final int n = (int) Math.min(chunk.length, length - pos);
+            writeFully(ByteBuffer.wrap(chunk, 0, n), pos);
+            pos += n;
+        }
+        chunks = null;
+    }
+
+    private void writeFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+    }
+
+    /**
+     * Read from the stream until at least {@code pos} bytes are
+     * buffered or the end of the stream.
+     */
+    private void fillTo(long pos) throws IOException {
+        while (length < pos && fill()) {
+            // keep filling
+        }
+    }
+
+    /**
+     * Make one read from the stream into the buffer, as when the stream
+     * has data available without blocking.
+     *
+     * @return false if the end of the stream was reached
+     */
+    public boolean fillOnce() throws IOException {
+        ensureOpen();
+        return fill();
+    }
+
+    /**
+     * Read everything remaining in the stream into the buffer.
+     */
+    public void fillAll() throws IOException {
+        ensureOpen();
+        while (fill()) {
+            // keep filling
+        }
+    }
+
+    /**
+     * Copy up to {@code len} bytes at {@code pos} into {@code dst},
+     * reading more from the stream if necessary.
+     *
+     * @return the number of bytes copied, which may be less than
+     *         {@code len}, or -1 if {@code pos} is at the end of the
+     *         stream
+     */
+    public int read(long pos, byte[] dst, int off, int len) throws IOException {
+        ensureOpen();
+        if (len == 0) {
+            return 0;
+        }
+
+        fillTo(pos + 1);
+        if (pos >= length) {
+            return -1;
+        }
+
+        final int n = (int) Math.min(len, length - pos);
+        if (channel == null) {
+            int done = 0;
+            while (done < n) {
+                final int index = (int) ((pos + done) / chunkSize);
+                final int offset = (int) ((pos + done) % chunkSize);
+                final int count = Math.min(n - done, chunkSize - offset);
+                System.arraycopy(chunks.get(index), offset, dst, off + done, count);
+                done += count;
+            }
+        } else if (n >= CHUNK_SIZE) {
+            readFully(ByteBuffer.wrap(dst, off, n), pos);
+        } else {
+            loadWindow(pos);
+            final int count = Math.min(n, (int) (windowStart + windowLength - pos));
+            System.arraycopy(window, (int) (pos - windowStart), dst, off, count);
+            return count;
+        }
+        return n;
+    }
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            final int n = channel.read(buf, pos);
+            if (n < 0) {
+                throw new IOException("unexpected end of buffer file");
+            }
+            pos += n;
+        }
+    }
+
+    private void loadWindow(long pos) throws IOException {
+        if (pos >= windowStart && pos < windowStart + windowLength) {
+            return;
+        }
+        if (window == null) {
+            window = new byte[CHUNK_SIZE];
+        }
+        windowStart = pos;
+        windowLength = (int) Math.min(window.length, length - pos);
+        readFully(ByteBuffer.wrap(window, 0, windowLength), pos);
+    }
+
+    /**
+     * Find the position of the first {@code b} at or after
+     * {@code pos}, reading more from the stream if necessary.
+     *
+     * @return the position, or -1 if the end of the stream was reached
+     *         without finding {@code b}
+     */
+    public long indexOf(byte b, long pos) throws IOException {
+        ensureOpen();
+        while (true) {
+            fillTo(pos + 1);
+            if (pos >= length) {
+                return -1;
+            }
+
+            final byte[] bytes;
+            final int start;
+            final int end;
+            if (channel == null) {
+                bytes = chunks.get((int) (pos / chunkSize));
+                start = (int) (pos % chunkSize);
+                end = (int) Math.min(chunkSize, start + (length - pos));
+            } else {
+                loadWindow(pos);
+                bytes = window;
+                start = (int) (pos - windowStart);
+                end = windowLength;
+            }
+
+            for (int i = start; i < end; ++i) {
+                if (bytes[i] == b) {
+                    return pos + (i - start);
+                }
+            }
+            pos += end - start;
+        }
+    }
+
+    /**
+     * @return a stream reading the buffer from the start, reading
+     *         more from the underlying stream as needed
+     */
+    public InputStream newInputStream() {
+        return new InputStream() {
+            private long pos;
+
+            private final byte[] one = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int n = InputBuffer.this.read(pos, b, off, len);
+                if (n > 0) {
+                    pos += n;
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Take the underlying stream for reading elsewhere, if nothing has
+     * been read from it yet.  The buffer is then empty.
+     *
+     * @return the stream, or null if anything has been read
+     */
+    public InputStream detach() {
+        if (closed || eof || length > 0) {
+            return null;
+        }
+        eof = true;
+        return in;
+    }
+
+    /**
+     * Release the memory buffer and temp file, if any.  Does not close
+     * the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        chunks = null;
+        window = null;
+        scratch = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } finally {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+}
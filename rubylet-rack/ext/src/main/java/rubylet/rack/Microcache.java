@@ -0,0 +1,494 @@
+package rubylet.rack;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An in-process cache of whole responses, in front of the Rack
+ * application, so that hits are served from Java without entering
+ * the Ruby runtime.
+ *
+ * <p>Responses are cached only as the application allows:
+ * {@code Cache-Control: public} with {@code s-maxage} (preferred) or
+ * {@code max-age} greater than zero, and not {@code private},
+ * {@code no-cache}, or {@code no-store}.  Responses with
+ * {@code Set-Cookie} or {@code Vary: *} are never cached.
+ *
+ * <p>Entries are keyed on the request method and URL, and each holds
+ * a variant per distinct value of the request headers named by the
+ * response's {@code Vary}.  Bodies are held in direct (off heap)
+ * buffers.  Entries are dropped when they expire, and least recently
+ * used first when the total size would exceed the limit.
+ *
+ * <p>{@link #purge(String)} and {@link #purgeAll()} may be called from
+ * Ruby through {@code env['rubylet.microcache']}, as
+ * {@code env['rubylet.microcache'].purge('/news')}.
+ *
+ * <p>Threadsafe.
+ */
+public final class Microcache {
+
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+    public static final int DEFAULT_MAX_ENTRY_SIZE = 1024 * 1024;
+
+    private static final String[] NO_VARY = new String[0];
+
+    /**
+     * One response, for one set of values of the varying headers.
+     */
+    private static final class Variant {
+
+        final String[] varyValues;
+
+        final CapturedResponse response;
+
+        final long storedAt;
+
+        final long expiresAt;
+
+        final long size;
+
+        Variant(String[] varyValues, CapturedResponse response, long storedAt, long expiresAt, long size) {
+            this.varyValues = varyValues;
+            this.response = response;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+            this.size = size;
+        }
+
+    }
+
+    /**
+     * The responses for one method and URL.
+     */
+    private static final class Entry {
+
+        final String path;
+
+        final String query;
+
+        /**
+         * Lowercase names of the varying request headers.
+         */
+        final String[] vary;
+
+        final List<Variant> variants = new ArrayList<Variant>(1);
+
+        Entry(String path, String query, String[] vary) {
+            this.path = path;
+            this.query = query;
+            this.vary = vary;
+        }
+
+        boolean matches(String uri) {
+            return path.equals(uri) || (query != null && uri.equals(path + "?" + query));
+        }
+
+    }
+
+    private final long maxSize;
+
+    private final int maxEntrySize;
+
+    /**
+     * Guarded by itself.  In access order, for LRU eviction.
+     */
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * Guarded by {@link #entries}.
+     */
+    private long size;
+
+    /**
+     * Guarded by {@link #entries}.
+     */
+    private int count;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong stores = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong expirations = new AtomicLong();
+
+    private final AtomicLong purges = new AtomicLong();
+
+    /**
+     * @param maxSize max total bytes of cached responses
+     * @param maxEntrySize responses with larger bodies are not cached
+     */
+    public Microcache(long maxSize, int maxEntrySize) {
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * @return true if responses to {@code req} may be cached and
+     *         served from the cache ({@code GET} and {@code HEAD})
+     */
+    public static boolean isCacheable(HttpServletRequest req) {
+        final String method = req.getMethod();
+        return "GET".equals(method) || "HEAD".equals(method);
+    }
+
+    private static String key(HttpServletRequest req) {
+        final StringBuffer url = req.getRequestURL();
+        final String query = req.getQueryString();
+        if (query != null) {
+            url.append('?').append(query);
+        }
+        return req.getMethod() + " " + url;
+    }
+
+    private static String[] varyValues(HttpServletRequest req, String[] vary) {
+        if (vary.length == 0) {
+            return NO_VARY;
+        }
+        final String[] values = new String[vary.length];
+        for (int i = 0; i < vary.length; ++i) {
+            values[i] = req.getHeader(vary[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Send the cached response to {@code req}, if there is one.
+     *
+     * @param conditional if true, answer with a 304 if the cached
+     *        response's validators satisfy the request's conditions
+     * @return true if the response was sent
+     */
+    public boolean serve(HttpServletRequest req, HttpServletResponse resp, boolean conditional)
+            throws IOException
+    {
+        final String key = key(req);
+        final long now = System.nanoTime();
+        Variant found = null;
+        synchronized (entries) {
+            final Entry entry = entries.get(key);
+            if (entry != null) {
+                final String[] values = varyValues(req, entry.vary);
+                for (Iterator<Variant> it = entry.variants.iterator(); it.hasNext(); ) {
+                    final Variant variant = it.next();
+                    if (Arrays.equals(variant.varyValues, values)) {
+                        if (now - variant.expiresAt >= 0) {
+                            it.remove();
+                            removed(variant);
+                            expirations.incrementAndGet();
+                        } else {
+                            found = variant;
+                        }
+                        break;
+                    }
+                }
+                if (entry.variants.isEmpty()) {
+                    entries.remove(key);
+                }
+            }
+        }
+
+        if (found == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+
+        found.response.respond(req,
+                               resp,
+                               conditional,
+                               TimeUnit.NANOSECONDS.toSeconds(now - found.storedAt));
+        return true;
+    }
+
+    /**
+     * Cache {@code captured}, the response to {@code req}, if its
+     * status and headers allow.
+     *
+     * @param captured may be null, if the response could not be
+     *        captured
+     */
+    public void put(HttpServletRequest req, CapturedResponse captured) {
+        if (captured == null || captured.getBodySize() > maxEntrySize ||
+                !isCacheableStatus(captured.getStatus()) ||
+                captured.containsHeader("Set-Cookie"))
+        {
+            return;
+        }
+        final long ttl = getTimeToLive(captured.getHeaders("Cache-Control"));
+        if (ttl <= 0) {
+            return;
+        }
+        final String[] vary = parseVary(captured.getHeaders("Vary"));
+        if (vary == null) {
+            return;
+        }
+
+        final String key = key(req);
+        final long entrySize = captured.getBodySize() + captured.getHeaderSize() + 2L * key.length();
+        if (entrySize > maxSize) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        final Variant variant = new Variant(varyValues(req, vary),
+                                            captured.toDirect(),
+                                            now,
+                                            now + TimeUnit.SECONDS.toNanos(ttl),
+                                            entrySize);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && !Arrays.equals(entry.vary, vary)) {
+                // the application changed its Vary; start over
+                entries.remove(key);
+                removedAll(entry);
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new Entry(req.getRequestURI(), req.getQueryString(), vary);
+                entries.put(key, entry);
+            }
+            for (Iterator<Variant> it = entry.variants.iterator(); it.hasNext(); ) {
+                final Variant old = it.next();
+                if (Arrays.equals(old.varyValues, variant.varyValues)) {
+                    it.remove();
+                    removed(old);
+                }
+            }
+            entry.variants.add(variant);
+            size += variant.size;
+            ++count;
+            stores.incrementAndGet();
+
+            evict();
+        }
+    }
+
+    /**
+     * Remove least recently used entries until within the size limit.
+     * Called holding the lock.
+     */
+    private void evict() {
+        for (Iterator<Entry> it = entries.values().iterator(); size > maxSize && it.hasNext(); ) {
+            final Entry entry = it.next();
+            it.remove();
+            evictions.addAndGet(entry.variants.size());
+            removedAll(entry);
+        }
+    }
+
+    private void removed(Variant variant) {
+        size -= variant.size;
+        --count;
+    }
+
+    private void removedAll(Entry entry) {
+        for (Variant variant : entry.variants) {
+            removed(variant);
+        }
+    }
+
+    /**
+     * Remove every cached response to requests for {@code uri}, a path
+     * within the server (as {@code /news}) with or without a query
+     * string, for any method.
+     *
+     * @return the number of responses removed
+     */
+    public int purge(String uri) {
+        int purged = 0;
+        synchronized (entries) {
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                final Entry entry = it.next();
+                if (entry.matches(uri)) {
+                    it.remove();
+                    purged += entry.variants.size();
+                    removedAll(entry);
+                }
+            }
+        }
+        purges.addAndGet(purged);
+        return purged;
+    }
+
+    /**
+     * Remove every cached response.
+     */
+    public void purgeAll() {
+        synchronized (entries) {
+            purges.addAndGet(count);
+            entries.clear();
+            size = 0;
+            count = 0;
+        }
+    }
+
+    static boolean isCacheableStatus(int status) {
+        switch (status) {
+        case 200:
+        case 203:
+        case 301:
+        case 404:
+        case 410:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return seconds a response may be cached by a shared cache,
+     *         according to {@code cacheControl}, or 0 if it may not
+     */
+    static long getTimeToLive(String cacheControl) {
+        if (cacheControl == null) {
+            return 0;
+        }
+        boolean isPublic = false;
+        long maxAge = -1;
+        long sMaxAge = -1;
+        for (String directive : cacheControl.split(",")) {
+            final String d = directive.trim().toLowerCase(Locale.ENGLISH);
+            if (d.equals("public")) {
+                isPublic = true;
+            } else if (d.startsWith("private") || d.startsWith("no-cache") || d.equals("no-store")) {
+                return 0;
+            } else if (d.startsWith("s-maxage=")) {
+                sMaxAge = parseSeconds(d.substring(9));
+            } else if (d.startsWith("max-age=")) {
+                maxAge = parseSeconds(d.substring(8));
+            }
+        }
+        if (!isPublic) {
+            return 0;
+        }
+        return Math.max(0, (sMaxAge >= 0) ? sMaxAge : maxAge);
+    }
+
+    private static long parseSeconds(String value) {
+        String v = value.trim();
+        if (v.length() >= 2 && v.charAt(0) == '"' && v.charAt(v.length() - 1) == '"') {
+            v = v.substring(1, v.length() - 1);
+        }
+        try {
+            return Long.parseLong(v);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the lowercase header names in {@code vary}, or null for
+     *         {@code *}
+     */
+    private static String[] parseVary(String vary) {
+        if (vary == null) {
+            return NO_VARY;
+        }
+        final List<String> names = new ArrayList<String>();
+        for (String name : vary.split(",")) {
+            final String n = name.trim().toLowerCase(Locale.ENGLISH);
+            if (n.equals("*")) {
+                return null;
+            } else if (n.length() > 0 && !names.contains(n)) {
+                names.add(n);
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * @return the number of responses served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of cacheable requests not served from the
+     *         cache
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of responses cached
+     */
+    public long getStores() {
+        return stores.get();
+    }
+
+    /**
+     * @return the number of responses dropped to stay within the size
+     *         limit
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of expired responses dropped
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * @return the number of responses removed by {@link #purge(String)}
+     *         and {@link #purgeAll()}
+     */
+    public long getPurges() {
+        return purges.get();
+    }
+
+    /**
+     * @return the approximate bytes of cached responses
+     */
+    public long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    /**
+     * @return the number of cached responses
+     */
+    public int getCount() {
+        synchronized (entries) {
+            return count;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Microcache[hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", stores=" + getStores() +
+                ", evictions=" + getEvictions() +
+                ", expirations=" + getExpirations() +
+                ", purges=" + getPurges() +
+                ", count=" + getCount() +
+                ", size=" + getSize() + "]";
+    }
+
+}
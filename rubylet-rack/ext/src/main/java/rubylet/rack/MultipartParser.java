@@ -0,0 +1,530 @@
+package rubylet.rack;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+import org.jcodings.specific.ASCIIEncoding;
+import org.jcodings.specific.UTF8Encoding;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyHash;
+import org.jruby.RubyModule;
+import org.jruby.RubyString;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * Parses a multipart request body into a Rack form hash, as
+ * {@code Rack::Multipart::Parser} does, in a single pass over the
+ * Servlet input stream.
+ *
+ * <p>The bytes of each file part are written straight from the read
+ * buffer into the {@code Tempfile} of the upload through a
+ * {@link FileChannel}, without creating any Ruby strings.  The result
+ * has the same shape as Rack's: file parts are hashes of
+ * {@code :filename}, {@code :type}, {@code :name}, {@code :tempfile}
+ * and {@code :head}, other parts are strings, nested by
+ * {@code Rack::Utils.normalize_params} under the same key space limit.
+ *
+ * <p>Not threadsafe; one instance per request.
+ */
+public final class MultipartParser {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private static final byte[] CRLFCRLF = { '\r', '\n', '\r', '\n' };
+
+    /**
+     * Get the boundary from a multipart {@code Content-Type} of a type
+     * that {@code Rack::Request} parses ({@code multipart/form-data},
+     * {@code multipart/related}, or {@code multipart/mixed}).
+     *
+     * @param contentType the request content type, may be null
+     * @return the boundary, or null if not a parseable multipart type
+     */
+    public static String getBoundary(String contentType) {
+        if (contentType == null || !contentType.startsWith("multipart/")) {
+            return null;
+        }
+
+        final int semi = contentType.indexOf(';');
+        final String mediaType = ((semi < 0) ? contentType : contentType.substring(0, semi))
+                .trim().toLowerCase(Locale.ENGLISH);
+        if (!mediaType.equals("multipart/form-data") &&
+                !mediaType.equals("multipart/related") &&
+                !mediaType.equals("multipart/mixed"))
+        {
+            return null;
+        }
+
+        // as Rack::Multipart::MULTIPART, /boundary=\"?([^\";,]+)\"?/
+        final int i = contentType.indexOf("boundary=");
+        if (i < 0) {
+            return null;
+        }
+        int start = i + "boundary=".length();
+        if (start < contentType.length() && contentType.charAt(start) == '"') {
+            ++start;
+        }
+        int end = start;
+        while (end < contentType.length() && "\";,".indexOf(contentType.charAt(end)) < 0) {
+            ++end;
+        }
+        return (end > start) ? contentType.substring(start, end) : null;
+    }
+
+    private final Ruby runtime;
+
+    private final InputStream in;
+
+    /**
+     * {@code \r\n--boundary}
+     */
+    private final byte[] delimiter;
+
+    private final File tempDir;
+
+    private final byte[] buf;
+
+    private int start;
+
+    private int end;
+
+    /**
+     * @param runtime
+     * @param in the request body
+     * @param boundary from {@link #getBoundary(String)}
+     * @param tempDir directory for upload temp files, or null for
+     *        the system default
+     */
+    public MultipartParser(Ruby runtime, InputStream in, String boundary, File tempDir) {
+        this.runtime = runtime;
+        this.in = in;
+        this.tempDir = tempDir;
+
+        delimiter = new byte[boundary.length() + 4];
+        delimiter[0] = '\r';
+        delimiter[1] = '\n';
+        delimiter[2] = '-';
+        delimiter[3] = '-';
+        for (int i = 0; i < boundary.length(); ++i) {
+            delimiter[i + 4] = (byte) boundary.charAt(i);
+        }
+
+        buf = new byte[Math.max(BUFFER_SIZE, delimiter.length * 4)];
+    }
+
+    private EOFException badContent() {
+        return new EOFException("bad content body");
+    }
+
+    /**
+     * Parse the body.
+     *
+     * @return the form hash
+     * @throws EOFException if the body was not valid, where Rack
+     *         raises {@code EOFError}
+     * @throws IOException if the body could not be read
+     */
+    public RubyHash parse() throws IOException {
+        final ThreadContext context = runtime.getCurrentContext();
+        final RubyModule utils = (RubyModule) runtime.getModule("Rack").getConstant("Utils");
+
+        final IRubyObject params;
+        if (utils.getConstantAt("KeySpaceConstrainedParams") != null) {
+            params = ((RubyClass) utils.getConstant("KeySpaceConstrainedParams"))
+                    .newInstance(context, Block.NULL_BLOCK);
+        } else {
+            params = RubyHash.newHash(runtime);
+        }
+
+        // the first delimiter has no preceding CRLF
+        System.arraycopy(CRLF, 0, buf, 0, CRLF.length);
+        end = CRLF.length;
+
+        boolean last = readBody(null);
+        if (last) {
+            // as Rack, at least one part is required
+            throw badContent();
+        }
+        while (!last) {
+            final Part part = readHead();
+            final IRubyObject data;
+
+            if (part.filename == null) {
+                final ByteList bytes = new ByteList();
+                last = readBody(bytes);
+                data = RubyString.newStringNoCopy(runtime, bytes);
+            } else if (part.filename.getByteList().length() == 0) {
+                // no file was selected
+                last = readBody(null);
+                data = null;
+            } else {
+                final IRubyObject tempfile = newTempfile(context);
+                final RandomAccessFile file =
+                        new RandomAccessFile(tempfile.callMethod(context, "path").asJavaString(), "rw");
+                try {
+                    last = readBody(file.getChannel());
+                } finally {
+                    file.close();
+                }
+                tempfile.callMethod(context, "rewind");
+                data = part.toUpload(tempfile);
+            }
+
+            if (data != null && part.name != null) {
+                utils.callMethod(context, "normalize_params",
+                                 new IRubyObject[] { params, part.name, data });
+            }
+        }
+
+        if (params instanceof RubyHash) {
+            return (RubyHash) params;
+        } else {
+            return params.callMethod(context, "to_params_hash").convertToHash();
+        }
+    }
+
+    private IRubyObject newTempfile(ThreadContext context) {
+        runtime.getLoadService().require("tempfile");
+        final RubyClass cTempfile = runtime.getClass("Tempfile");
+        final IRubyObject tempfile;
+        if (tempDir == null) {
+            tempfile = cTempfile.newInstance(context,
+                                             runtime.newString("RackMultipart"),
+                                             Block.NULL_BLOCK);
+        } else {
+            tempfile = cTempfile.newInstance(context,
+                                             runtime.newString("RackMultipart"),
+                                             runtime.newString(tempDir.getPath()),
+                                             Block.NULL_BLOCK);
+        }
+        tempfile.callMethod(context, "binmode");
+        return tempfile;
+    }
+
+    /**
+     * Read more of the body into {@link #buf}, first discarding
+     * everything before {@link #start}.
+     */
+    private void fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (end == buf.length) {
+            throw badContent();
+        }
+
+        final int n = in.read(buf, end, buf.length - end);
+        if (n < 0) {
+            throw badContent();
+        }
+        end += n;
+    }
+
+    private int indexOf(byte[] pattern, int from) {
+        final int last = end - pattern.length;
+        final byte first = pattern[0];
+        outer:
+        for (int i = from; i <= last; ++i) {
+            if (buf[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < pattern.length; ++j) {
+                if (buf[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private void write(Object sink, int from, int to) throws IOException {
+        if (to <= from) {
+            return;
+        } else if (sink instanceof ByteList) {
+            ((ByteList) sink).append(buf, from, to - from);
+        } else if (sink instanceof FileChannel) {
+            final ByteBuffer bb = ByteBuffer.wrap(buf, from, to - from);
+            while (bb.hasRemaining()) {
+                ((FileChannel) sink).write(bb);
+            }
+        }
+    }
+
+    /**
+     * Copy the body of a part into {@code sink} up to the next
+     * delimiter, and consume the delimiter.
+     *
+     * @param sink a {@link ByteList}, a {@link FileChannel}, or null
+     *        to discard the body
+     * @return true if that was the closing delimiter
+     */
+    private boolean readBody(Object sink) throws IOException {
+        int from = start;
+        while (true) {
+            final int i = indexOf(delimiter, from);
+            final int after = i + delimiter.length;
+            if (i >= 0 && after + 2 <= end) {
+                final byte b0 = buf[after];
+                final byte b1 = buf[after + 1];
+                if ((b0 == '\r' && b1 == '\n') || (b0 == '-' && b1 == '-')) {
+                    write(sink, start, i);
+                    start = after + 2;
+                    return (b0 == '-');
+                }
+                // looks like a delimiter, but is data
+                from = i + 1;
+                continue;
+            }
+
+            // keep anything that may be the start of a delimiter
+            final int safe = (i >= 0) ? i : Math.max(start, end - delimiter.length - 1);
+            write(sink, start, safe);
+            start = safe;
+            fill();
+            from = start;
+        }
+    }
+
+    /**
+     * Read the headers of a part, up to and including the blank line.
+     */
+    private Part readHead() throws IOException {
+        while (end - start < CRLF.length) {
+            fill();
+        }
+
+        int i;
+        if (buf[start] == '\r' && buf[start + 1] == '\n') {
+            // no headers
+            i = start - CRLF.length;
+        } else {
+            while ((i = indexOf(CRLFCRLF, start)) < 0) {
+                fill();
+            }
+        }
+
+        final Part part = new Part(buf, start, i + CRLF.length);
+        start = i + CRLFCRLF.length;
+        return part;
+    }
+
+    /**
+     * The headers of one part.
+     */
+    private final class Part {
+
+        /**
+         * Raw headers, each ending in CRLF, as Rack's {@code :head}.
+         */
+        final RubyString head;
+
+        final RubyString name;
+
+        final RubyString filename;
+
+        final RubyString contentType;
+
+        Part(byte[] bytes, int from, int to) {
+            final ByteList headBytes = new ByteList(bytes, from, Math.max(to - from, 0), true);
+            headBytes.setEncoding(ASCIIEncoding.INSTANCE);
+            head = RubyString.newStringNoCopy(runtime, headBytes);
+
+            RubyString name = null;
+            RubyString filename = null;
+            RubyString contentType = null;
+            RubyString contentId = null;
+
+            // header bytes as chars, one char per byte
+            final String str = new String(bytes, from, Math.max(to - from, 0), ISO_8859_1);
+            for (String line : str.split("\r\n")) {
+                final int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                final String header = line.substring(0, colon).trim();
+                final String value = line.substring(colon + 1);
+
+                if (header.equalsIgnoreCase("Content-Disposition")) {
+                    name = binaryString(dispositionName(value));
+                    filename = filename(value);
+                } else if (header.equalsIgnoreCase("Content-Type")) {
+                    contentType = binaryString(value.startsWith(" ") ? value.substring(1) : value);
+                } else if (header.equalsIgnoreCase("Content-ID")) {
+                    contentId = binaryString(value.trim());
+                }
+            }
+
+            this.name = (name != null) ? name : contentId;
+            this.filename = filename;
+            this.contentType = contentType;
+        }
+
+        IRubyObject toUpload(IRubyObject tempfile) {
+            final RubyHash upload = RubyHash.newHash(runtime);
+            upload.fastASet(runtime.newSymbol("filename"), basename(filename));
+            upload.fastASet(runtime.newSymbol("type"), nilIfNull(contentType));
+            upload.fastASet(runtime.newSymbol("name"), nilIfNull(name));
+            upload.fastASet(runtime.newSymbol("tempfile"), tempfile);
+            upload.fastASet(runtime.newSymbol("head"), head);
+            return upload;
+        }
+
+    }
+
+    private IRubyObject nilIfNull(IRubyObject obj) {
+        return (obj == null) ? runtime.getNil() : obj;
+    }
+
+    private RubyString binaryString(String str) {
+        if (str == null) {
+            return null;
+        }
+        final byte[] bytes = new byte[str.length()];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) str.charAt(i);
+        }
+        return RubyString.newStringNoCopy(runtime, new ByteList(bytes, ASCIIEncoding.INSTANCE, false));
+    }
+
+    /**
+     * The {@code name} parameter of a disposition, as
+     * Rack's {@code MULTIPART_CONTENT_DISPOSITION}.
+     */
+    private static String dispositionName(String disposition) {
+        int i = -1;
+        for (int j = disposition.indexOf("name="); j >= 0; j = disposition.indexOf("name=", j + 1)) {
+            if (j > 0 && Character.isWhitespace(disposition.charAt(j - 1))) {
+                i = j;
+            }
+        }
+        if (i < 0) {
+            return null;
+        }
+
+        int start = i + "name=".length();
+        if (start < disposition.length() && disposition.charAt(start) == '"') {
+            ++start;
+        }
+        int end = start;
+        while (end < disposition.length() && "\";".indexOf(disposition.charAt(end)) < 0) {
+            ++end;
+        }
+        return disposition.substring(start, end);
+    }
+
+    /**
+     * The {@code filename} parameter of a disposition, unquoted and
+     * unescaped as Rack's {@code get_filename}, or null if none.
+     */
+    private RubyString filename(String disposition) {
+        final int i = disposition.indexOf("filename=");
+        if (i < 0) {
+            return null;
+        }
+
+        int start = i + "filename=".length();
+        final int end;
+        if (start < disposition.length() && disposition.charAt(start) == '"') {
+            ++start;
+            int j = start;
+            while (j < disposition.length() && disposition.charAt(j) != '"') {
+                if (disposition.charAt(j) == '\\' && j + 1 < disposition.length()) {
+                    ++j;
+                }
+                ++j;
+            }
+            end = j;
+        } else {
+            int j = start;
+            while (j < disposition.length() && "; \t".indexOf(disposition.charAt(j)) < 0) {
+                ++j;
+            }
+            end = j;
+        }
+
+        String filename = disposition.substring(start, end);
+
+        final boolean unescape = validPercentEscapes(filename);
+        if (unescape) {
+            filename = percentDecode(filename);
+        }
+        if (!filename.matches("(?s).*\\\\[^\\\\\"].*")) {
+            filename = filename.replaceAll("\\\\(.)", "$1");
+        }
+
+        final RubyString str = binaryString(filename);
+        if (unescape) {
+            str.setEncoding(UTF8Encoding.INSTANCE);
+        }
+        return str;
+    }
+
+    private static boolean validPercentEscapes(String str) {
+        for (int i = str.indexOf('%'); i >= 0; i = str.indexOf('%', i + 1)) {
+            if (i + 2 >= str.length() ||
+                    Character.digit(str.charAt(i + 1), 16) < 0 ||
+                    Character.digit(str.charAt(i + 2), 16) < 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * As {@code Rack::Utils.unescape}, but bytes to bytes (one char
+     * per byte).
+     */
+    private static String percentDecode(String str) {
+        final StringBuilder sb = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); ++i) {
+            final char c = str.charAt(i);
+            if (c == '+') {
+                sb.append(' ');
+            } else if (c == '%') {
+                sb.append((char) Integer.parseInt(str.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The last path component, as browsers may send full (Windows)
+     * paths.
+     */
+    private RubyString basename(RubyString filename) {
+        final ByteList bytes = filename.getByteList();
+        int i = bytes.length();
+        while (i > 0 && bytes.get(i - 1) != '/' && bytes.get(i - 1) != '\\') {
+            --i;
+        }
+        if (i == 0) {
+            return filename;
+        }
+        final ByteList base = new ByteList(bytes, i, bytes.length() - i);
+        base.setEncoding(bytes.getEncoding());
+        return RubyString.newStringNoCopy(runtime, base);
+    }
+
+}
@@ -0,0 +1,447 @@
+package rubylet.rack;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * The body of one async response, as a queue of byte chunks written by
+ * any number of Ruby threads and sent to the client by one drainer at a
+ * time, so that parts are never interleaved and a slow client does not
+ * block the threads writing to it.
+ *
+ * <p>Where the container supports Servlet 3.1 non-blocking output, the
+ * queue is drained through a {@code WriteListener} (found by
+ * reflection, as this is built against Servlet 3.0): chunks are written
+ * only while the output stream {@code isReady()}, and draining resumes
+ * on the container's thread when the socket is writable again.
+ * Otherwise, each drain is run by {@link AsyncContext#start}, so a slow
+ * client blocks a container thread rather than a Ruby thread.
+ *
+ * <p>Once the queued bytes pass the high watermark, the queue is not
+ * {@link #isWritable() writable} until they fall to the low watermark.
+ * Writers may check this, or {@link #awaitWritable(long) wait} for it.
+ *
+ * <p>Threadsafe.
+ */
+public final class OutboundQueue extends ServletOutputStream {
+
+    /**
+     * Servlet 3.1 {@code ServletOutputStream} methods, or null if not
+     * available.
+     */
+    private static final Method SET_WRITE_LISTENER;
+
+    private static final Method IS_READY;
+
+    private static final Class<?> WRITE_LISTENER;
+
+    static {
+        Class<?> listener = null;
+        Method setWriteListener = null;
+        Method isReady = null;
+        try {
+            listener = Class.forName("javax.servlet.WriteListener");
+            setWriteListener = ServletOutputStream.class.getMethod("setWriteListener", listener);
+            isReady = ServletOutputStream.class.getMethod("isReady");
+        } catch (ClassNotFoundException e) {
+            listener = null;
+        } catch (NoSuchMethodException e) {
+            listener = null;
+        }
+        WRITE_LISTENER = listener;
+        SET_WRITE_LISTENER = (listener == null) ? null : setWriteListener;
+        IS_READY = (listener == null) ? null : isReady;
+    }
+
+    /**
+     * Queued after the last chunk to complete the response once it is
+     * sent.
+     */
+    private static final ByteBuffer COMPLETE = ByteBuffer.allocate(0);
+
+    private final AsyncContext asyncContext;
+
+    private final int highWatermark;
+
+    private final int lowWatermark;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> chunks = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final AtomicLong queued = new AtomicLong();
+
+    /**
+     * True while a drainer owns the output stream.
+     */
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /**
+     * True while a non-blocking drain waits for the container to call
+     * {@code onWritePossible}; {@link #draining} stays true meanwhile.
+     */
+    private final AtomicBoolean awaitingWritable = new AtomicBoolean();
+
+    /**
+     * Guarded by {@code this}.
+     */
+    private boolean writable = true;
+
+    private volatile IOException failure;
+
+    private volatile boolean closed;
+
+    private ServletOutputStream out;
+
+    private boolean nonBlocking;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    OutboundQueue(AsyncContext asyncContext, int highWatermark, int lowWatermark) {
+        this.asyncContext = asyncContext;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    /**
+     * @return true if output is drained through a Servlet 3.1
+     *         {@code WriteListener}
+     */
+    public static boolean isNonBlockingSupported() {
+        return WRITE_LISTENER != null;
+    }
+
+    /**
+     * @return the async response, its output stream replaced by this
+     *         queue
+     */
+    public HttpServletResponse wrap(HttpServletResponse resp) {
+        return new HttpServletResponseWrapper(resp) {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                return OutboundQueue.this;
+            }
+
+            @Override
+            public PrintWriter getWriter() {
+                throw new IllegalStateException("async output is queued; use getOutputStream()");
+            }
+
+            @Override
+            public void flushBuffer() throws IOException {
+                OutboundQueue.this.flush();
+            }
+        };
+    }
+
+    /**
+     * Get the real output stream, registering a {@code WriteListener}
+     * if possible.  Caller must be the drainer.
+     */
+    private ServletOutputStream getOut() throws IOException {
+        if (out == null) {
+            out = asyncContext.getResponse().getOutputStream();
+            if (WRITE_LISTENER != null) {
+                final Object listener = Proxy.newProxyInstance(WRITE_LISTENER.getClassLoader(),
+                                                               new Class<?>[] { WRITE_LISTENER },
+                                                               new Listener());
+                invoke(SET_WRITE_LISTENER, listener);
+                nonBlocking = true;
+            }
+        }
+        return out;
+    }
+
+    private Object invoke(Method method, Object... args) throws IOException {
+        try {
+            return method.invoke(out, args);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    private boolean isReady() throws IOException {
+        return (Boolean) invoke(IS_READY);
+    }
+
+    /**
+     * Handles {@code WriteListener} callbacks.
+     */
+    private final class Listener implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            final String name = method.getName();
+            if ("onWritePossible".equals(name)) {
+                if (awaitingWritable.compareAndSet(true, false) ||
+                        draining.compareAndSet(false, true))
+                {
+                    drain();
+                }
+                return null;
+            } else if ("onError".equals(name)) {
+                final Throwable t = (Throwable) args[0];
+                fail((t instanceof IOException) ? (IOException) t : new IOException(t));
+                return null;
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("toString".equals(name)) {
+                return "OutboundQueue.Listener@" + Integer.toHexString(System.identityHashCode(proxy));
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /**
+     * Queue a copy of the bytes.  They are sent on the next
+     * {@link #flush()}.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len == 0) {
+            return;
+        }
+        final ByteBuffer chunk = ByteBuffer.allocate(len);
+        chunk.put(b, off, len);
+        chunk.flip();
+        chunks.add(chunk);
+        if (queued.addAndGet(len) > highWatermark) {
+            synchronized (this) {
+                if (queued.get() > highWatermark) {
+                    writable = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue {@code chunk} itself, without copying, as when the same
+     * bytes go to many responses.  Its array is written from its
+     * position and limit, which are never changed; the caller must not
+     * change them, or its bytes, either.
+     */
+    public void writeShared(ByteBuffer chunk) throws IOException {
+        ensureOpen();
+        final int len = chunk.remaining();
+        if (len == 0) {
+            return;
+        }
+        chunks.add(chunk);
+        if (queued.addAndGet(len) > highWatermark) {
+            synchronized (this) {
+                if (queued.get() > highWatermark) {
+                    writable = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Start sending queued chunks, if not already.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        schedule();
+    }
+
+    /**
+     * Does nothing; the response is ended by {@link #complete()}.
+     */
+    @Override
+    public void close() {
+        // noop
+    }
+
+    /**
+     * Complete the async response once everything queued is sent.
+     * Does nothing if already completed, or failed.
+     */
+    public void complete() {
+        if (closed || failure != null) {
+            return;
+        }
+        closed = true;
+        chunks.add(COMPLETE);
+        schedule();
+    }
+
+    /**
+     * Discard anything queued and complete the response at once, as
+     * for a client too slow to keep.  Later writes fail.
+     */
+    public void abort(String reason) {
+        fail(new IOException(reason));
+    }
+
+    private void ensureOpen() throws IOException {
+        final IOException e = failure;
+        if (e != null) {
+            throw new IOException("async response failed: " + e.getMessage(), e);
+        }
+        if (closed) {
+            throw new IOException("async response complete");
+        }
+    }
+
+    private void schedule() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                asyncContext.start(drain);
+            } catch (RuntimeException e) {
+                draining.set(false);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Write queued chunks until there are none or (non-blocking) the
+     * output stream is not ready.  Caller must have set
+     * {@link #draining}.
+     */
+    private void drain() {
+        try {
+            final ServletOutputStream out = getOut();
+            while (true) {
+                ByteBuffer chunk;
+                while ((chunk = chunks.peek()) != null) {
+                    if (nonBlocking) {
+                        // set first, as onWritePossible may come as
+                        // soon as isReady() returns false
+                        awaitingWritable.set(true);
+                        if (!isReady() || !awaitingWritable.compareAndSet(true, false)) {
+                            return; // onWritePossible will resume
+                        }
+                    }
+                    chunks.poll();
+                    if (chunk == COMPLETE) {
+                        asyncContext.complete();
+                        return;
+                    }
+                    out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+                    sent(chunk.remaining());
+                }
+                // containers buffer small writes, blocking or not
+                if (nonBlocking) {
+                    awaitingWritable.set(true);
+                    if (!isReady() || !awaitingWritable.compareAndSet(true, false)) {
+                        return; // onWritePossible will resume, and flush
+                    }
+                }
+                out.flush();
+
+                draining.set(false);
+                if (chunks.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(new IOException(e));
+        }
+    }
+
+    private void sent(int len) {
+        if (queued.addAndGet(-len) <= lowWatermark) {
+            synchronized (this) {
+                if (!writable && queued.get() <= lowWatermark) {
+                    writable = true;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        chunks.clear();
+        queued.set(0);
+        synchronized (this) {
+            notifyAll();
+        }
+        try {
+            asyncContext.complete();
+        } catch (IllegalStateException ignored) {
+            // already complete
+        }
+    }
+
+    /**
+     * @return true if the queued bytes have not passed the high
+     *         watermark (or have since fallen to the low watermark)
+     */
+    public synchronized boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * Wait until {@link #isWritable()}.
+     *
+     * @return true if writable; false if still not after
+     *         {@code timeoutMillis}
+     * @throws IOException if sending to the client failed
+     */
+    public synchronized boolean awaitWritable(long timeoutMillis) throws IOException {
+        final long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        while (!writable && failure == null) {
+            final long remaining = (deadline - System.nanoTime()) / 1000000L;
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return writable;
+            }
+        }
+        ensureOpen();
+        return true;
+    }
+
+    /**
+     * @return the bytes queued but not yet sent
+     */
+    public long getQueuedBytes() {
+        return queued.get();
+    }
+
+}
@@ -0,0 +1,411 @@
+package rubylet.rack;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jcodings.Encoding;
+import org.jcodings.specific.ASCIIEncoding;
+import org.jcodings.specific.UTF8Encoding;
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyHash;
+import org.jruby.RubyModule;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyString;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * Parses query strings and cookies as {@code Rack::Utils} does, into
+ * the same hashes that {@code Rack::Request#GET} and
+ * {@code Rack::Request#cookies} would build.
+ *
+ * <p>{@link #parseNestedQuery(ByteList)} follows
+ * {@code Rack::Utils.parse_nested_query}: {@code a[b][]=c} style keys
+ * build nested hashes and arrays, with the same {@code TypeError}s for
+ * conflicting keys, and the same {@code RangeError}s past
+ * {@code Rack::Utils.key_space_limit} (per hash) and, if defined,
+ * {@code Rack::Utils.param_depth_limit}.
+ *
+ * <p>Threadsafe.
+ */
+public final class QueryParser {
+
+    private final Ruby runtime;
+
+    public QueryParser(Ruby runtime) {
+        this.runtime = runtime;
+    }
+
+    /**
+     * Keys and values of one hash, with the key space accounting of
+     * {@code Rack::Utils::KeySpaceConstrainedParams}.
+     */
+    private final class Params {
+
+        final Map<ByteList, Object> map = new LinkedHashMap<ByteList, Object>();
+
+        final int limit;
+
+        int size;
+
+        Params(int limit) {
+            this.limit = limit;
+        }
+
+        Object get(ByteList key) {
+            return map.get(key);
+        }
+
+        boolean containsKey(ByteList key) {
+            return map.containsKey(key);
+        }
+
+        void put(ByteList key, Object value) {
+            if (!map.containsKey(key)) {
+                size += charLength(key);
+                if (size > limit) {
+                    throw runtime.newRangeError("exceeded available parameter key space");
+                }
+            }
+            map.put(key, value);
+        }
+
+    }
+
+    /**
+     * Number of chars in UTF-8 {@code bytes}.
+     */
+    private static int charLength(ByteList bytes) {
+        final byte[] b = bytes.getUnsafeBytes();
+        int n = 0;
+        for (int i = bytes.getBegin(), end = i + bytes.getRealSize(); i < end; ++i) {
+            if ((b[i] & 0xc0) != 0x80) {
+                ++n;
+            }
+        }
+        return n;
+    }
+
+    private static boolean isAscii(ByteList bytes) {
+        final byte[] b = bytes.getUnsafeBytes();
+        for (int i = bytes.getBegin(), end = i + bytes.getRealSize(); i < end; ++i) {
+            if (b[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private RubyModule utils() {
+        return (RubyModule) runtime.getModule("Rack").getConstant("Utils");
+    }
+
+    private int keySpaceLimit(ThreadContext context) {
+        return RubyNumeric.num2int(utils().callMethod(context, "key_space_limit"));
+    }
+
+    private int paramDepthLimit(ThreadContext context) {
+        final RubyModule utils = utils();
+        if (utils.respondsTo("param_depth_limit")) {
+            return RubyNumeric.num2int(utils.callMethod(context, "param_depth_limit"));
+        } else {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Split {@code str} as Ruby's {@code str.split(/[seps] *\/n)}: at
+     * each separator and any spaces following it, dropping trailing
+     * empty fields.
+     */
+    private static List<ByteList> split(ByteList str, String seps) {
+        final List<ByteList> fields = new ArrayList<ByteList>();
+        final int len = str.length();
+        int start = 0;
+        int i = 0;
+        while (i < len) {
+            if (seps.indexOf(str.get(i)) >= 0) {
+                fields.add(str.makeShared(start, i - start));
+                ++i;
+                while (i < len && str.get(i) == ' ') {
+                    ++i;
+                }
+                start = i;
+            } else {
+                ++i;
+            }
+        }
+        fields.add(str.makeShared(start, len - start));
+
+        while (!fields.isEmpty() && fields.get(fields.size() - 1).length() == 0) {
+            fields.remove(fields.size() - 1);
+        }
+        return fields;
+    }
+
+    private static int hex(int b) {
+        return Character.digit(b, 16);
+    }
+
+    /**
+     * As {@code URI.decode_www_form_component}: {@code +} to space and
+     * {@code %XX} to the byte XX, tagged UTF-8.
+     *
+     * @return the decoded bytes, or null if there is a {@code %} not
+     *         followed by two hex digits
+     */
+    private static ByteList unescape(ByteList str) {
+        final int len = str.length();
+        final ByteList out = new ByteList(len);
+        out.setEncoding(UTF8Encoding.INSTANCE);
+        for (int i = 0; i < len; ++i) {
+            final int b = str.get(i);
+            if (b == '+') {
+                out.append(' ');
+            } else if (b == '%') {
+                if (i + 2 >= len || hex(str.get(i + 1)) < 0 || hex(str.get(i + 2)) < 0) {
+                    return null;
+                }
+                out.append((hex(str.get(i + 1)) << 4) | hex(str.get(i + 2)));
+                i += 2;
+            } else {
+                out.append(b);
+            }
+        }
+        return out;
+    }
+
+    private ByteList unescapeOrRaise(ByteList str) {
+        final ByteList out = unescape(str);
+        if (out == null) {
+            throw runtime.newArgumentError("invalid %-encoding (" + str + ")");
+        }
+        return out;
+    }
+
+    /**
+     * Split a field at the first '=', as {@code p.split('=', 2)}.
+     *
+     * @return key and value, either of which may be null
+     */
+    private static ByteList[] splitField(ByteList field) {
+        if (field.length() == 0) {
+            return new ByteList[2];
+        }
+        final int eq = field.indexOf('=');
+        if (eq < 0) {
+            return new ByteList[] { field, null };
+        }
+        return new ByteList[] {
+            field.makeShared(0, eq),
+            field.makeShared(eq + 1, field.length() - eq - 1)
+        };
+    }
+
+    /**
+     * Parse a query string as {@code Rack::Utils.parse_nested_query}.
+     */
+    public RubyHash parseNestedQuery(ByteList qs) {
+        final ThreadContext context = runtime.getCurrentContext();
+        final int limit = keySpaceLimit(context);
+        final int depth = paramDepthLimit(context);
+
+        final Params params = new Params(limit);
+        for (ByteList field : split(qs, "&;")) {
+            final ByteList[] kv = splitField(field);
+            final ByteList k = (kv[0] == null) ? null : unescapeOrRaise(kv[0]);
+            final IRubyObject v = (kv[1] == null)
+                    ? runtime.getNil()
+                    : RubyString.newStringNoCopy(runtime, unescapeOrRaise(kv[1]));
+            normalizeParams(params, k, v, depth);
+        }
+        return toHash(params);
+    }
+
+    /**
+     * Parse a {@code Cookie} header as {@code Rack::Request#cookies}:
+     * not nested, and the first value of any repeated name.  Names and
+     * values that are not validly escaped are left as they are.
+     */
+    public RubyHash parseCookies(ByteList cookie) {
+        final ThreadContext context = runtime.getCurrentContext();
+        final Params params = new Params(keySpaceLimit(context));
+
+        for (ByteList field : split(cookie, ";,")) {
+            if (field.length() == 0) {
+                continue;
+            }
+            final ByteList[] kv = splitField(field);
+            final ByteList k = unescapeCookie(kv[0]);
+            if (k == null || params.containsKey(k)) {
+                continue;
+            }
+            final ByteList v = unescapeCookie(kv[1]);
+            params.put(k, (v == null) ? runtime.getNil() : RubyString.newStringNoCopy(runtime, v));
+        }
+        return toHash(params);
+    }
+
+    private static ByteList unescapeCookie(ByteList str) {
+        if (str == null) {
+            return null;
+        }
+        final ByteList out = unescape(str);
+        if (out != null) {
+            return out;
+        }
+        final ByteList raw = str.dup();
+        raw.setEncoding(str.getEncoding());
+        return raw;
+    }
+
+    private static boolean isBracket(int b) {
+        return b == '[' || b == ']';
+    }
+
+    private String className(Object obj) {
+        if (obj instanceof Params) {
+            return "Rack::Utils::KeySpaceConstrainedParams";
+        } else if (obj instanceof List) {
+            return "Array";
+        } else {
+            return ((IRubyObject) obj).getMetaClass().getRealClass().getName();
+        }
+    }
+
+    /**
+     * Part of a param name.  As the regexp match in Rack (under JRuby),
+     * these are ASCII-8BIT unless they hold non-ASCII chars.
+     */
+    private ByteList newKey(ByteList name, int begin, int len) {
+        final ByteList key = new ByteList(name, begin, len);
+        key.setEncoding(isAscii(key) ? ASCIIEncoding.INSTANCE : UTF8Encoding.INSTANCE);
+        return key;
+    }
+
+    /**
+     * As {@code Rack::Utils.normalize_params}.
+     *
+     * @return {@code params}, or null where Rack returns nil
+     */
+    private Params normalizeParams(Params params, ByteList name, IRubyObject v, int depth) {
+        if (depth <= 0) {
+            throw runtime.newRangeError("exceeded available parameter depth");
+        }
+
+        // name =~ %r(\A[\[\]]*([^\[\]]+)\]*)
+        final int len = (name == null) ? 0 : name.length();
+        int i = 0;
+        while (i < len && isBracket(name.get(i))) {
+            ++i;
+        }
+        final int kStart = i;
+        while (i < len && !isBracket(name.get(i))) {
+            ++i;
+        }
+        if (i == kStart) {
+            return null;
+        }
+        final ByteList k = newKey(name, kStart, i - kStart);
+        while (i < len && name.get(i) == ']') {
+            ++i;
+        }
+        final ByteList after = newKey(name, i, len - i);
+        final int afterLen = after.length();
+
+        if (afterLen == 0) {
+            params.put(k, v);
+        } else if (afterLen == 2 && after.get(0) == '[' && after.get(1) == ']') {
+            arrayParam(params, k).add(v);
+        } else if (afterLen > 2 && after.get(0) == '[' && after.get(1) == ']') {
+            // after =~ %r(^\[\]\[([^\[\]]+)\]$) || after =~ %r(^\[\](.+)$)
+            ByteList childKey = newKey(after, 2, afterLen - 2);
+            if (after.get(2) == '[' && after.get(afterLen - 1) == ']' && afterLen > 4) {
+                boolean simple = true;
+                for (int j = 3; j < afterLen - 1; ++j) {
+                    if (isBracket(after.get(j))) {
+                        simple = false;
+                        break;
+                    }
+                }
+                if (simple) {
+                    childKey = newKey(after, 3, afterLen - 4);
+                }
+            }
+
+            final List<Object> ary = arrayParam(params, k);
+            final Object last = ary.isEmpty() ? null : ary.get(ary.size() - 1);
+            if (last instanceof Params && !((Params) last).containsKey(childKey)) {
+                normalizeParams((Params) last, childKey, v, depth - 1);
+            } else {
+                ary.add(nilIfNull(normalizeParams(new Params(params.limit), childKey, v, depth - 1)));
+            }
+        } else {
+            Object child = params.get(k);
+            if (child == null || isNil(child)) {
+                child = new Params(params.limit);
+                params.put(k, child);
+            }
+            if (!(child instanceof Params)) {
+                throw runtime.newTypeError("expected Hash (got " + className(child) + ") for param `" + k + "'");
+            }
+            params.put(k, nilIfNull(normalizeParams((Params) child, after, v, depth - 1)));
+        }
+
+        return params;
+    }
+
+    private boolean isNil(Object obj) {
+        return (obj instanceof IRubyObject) && ((IRubyObject) obj).isNil();
+    }
+
+    private Object nilIfNull(Object obj) {
+        return (obj == null) ? runtime.getNil() : obj;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object> arrayParam(Params params, ByteList k) {
+        Object ary = params.get(k);
+        if (ary == null || isNil(ary)) {
+            ary = new ArrayList<Object>();
+            params.put(k, ary);
+        }
+        if (!(ary instanceof List)) {
+            throw runtime.newTypeError("expected Array (got " + className(ary) + ") for param `" + k + "'");
+        }
+        return (List<Object>) ary;
+    }
+
+    private RubyHash toHash(Params params) {
+        final RubyHash hash = RubyHash.newHash(runtime);
+        for (Map.Entry<ByteList, Object> entry : params.map.entrySet()) {
+            final ByteList key = entry.getKey();
+            final Encoding enc = key.getEncoding();
+            final RubyString rbKey = RubyString.newStringNoCopy(runtime, key);
+            rbKey.associateEncoding(enc);
+            rbKey.setFrozen(true);
+            hash.fastASet(rbKey, toRuby(entry.getValue()));
+        }
+        return hash;
+    }
+
+    private IRubyObject toRuby(Object value) {
+        if (value instanceof Params) {
+            return toHash((Params) value);
+        } else if (value instanceof List) {
+            final List<?> list = (List<?>) value;
+            final RubyArray ary = RubyArray.newArray(runtime, list.size());
+            for (Object item : list) {
+                ary.append(toRuby(item));
+            }
+            return ary;
+        } else {
+            return (IRubyObject) value;
+        }
+    }
+
+}
@@ -1,12 +1,22 @@
 package rubylet.rack;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
 
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 
+import org.jruby.RubyArray;
 import org.jruby.RubyHash;
-import org.jruby.RubyHash.Visitor;
 import org.jruby.RubyModule;
 import org.jruby.RubyString;
 import org.jruby.runtime.Arity;
@@ -15,6 +25,7 @@ import org.jruby.runtime.BlockCallback;
 import org.jruby.runtime.CallBlock;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
 
 /**
  * Wrapper around an HttpServletResponse that can respond from a Rack
@@ -33,26 +44,140 @@ public final class ResponseHelper {
     
     private final Constants constants; 
     
+    /**
+     * Tomcat's sendfile request attributes.
+     */
+    private static final String TOMCAT_SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String TOMCAT_SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String TOMCAT_SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String TOMCAT_SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    
+    /**
+     * Request whose path is a file within the web application, for
+     * forwarding to the container's default servlet.
+     */
+    private static final class FileRequest extends HttpServletRequestWrapper {
+        
+        private final String path;
+        
+        FileRequest(HttpServletRequest req, String path) {
+            super(req);
+            this.path = path;
+        }
+        
+        @Override
+        public String getServletPath() {
+            return path;
+        }
+        
+        @Override
+        public String getPathInfo() {
+            return null;
+        }
+        
+        @Override
+        public String getRequestURI() {
+            return getContextPath() + path;
+        }
+        
+    }
+    
+    private final HttpServletRequest req;
+    
     private final HttpServletResponse resp;
     
     private final IRubyObject self;
     
     private final RubyModule imClass;
     
-    public ResponseHelper(HttpServletResponse resp, IRubyObject self, RubyModule imClass) {
+    private final int coalesceThreshold;
+    
+    private final WriteStats stats;
+    
+    private final Compression compression;
+    
+    private final ConditionalGet conditionalGet;
+    
+    /**
+     * True if {@code X-Sendfile} response headers are honored.
+     */
+    private final boolean sendfile;
+    
+    /**
+     * Compresses the body of this response, if it is being compressed.
+     */
+    private CompressingOutputStream compressor;
+    
+    /**
+     * @param req the request being responded to, needed to send files
+     *        with the container's sendfile support or default servlet;
+     *        may be null
+     * @param resp
+     * @param self
+     * @param imClass
+     * @param coalesceThreshold body parts smaller than this are
+     *        gathered into larger writes; see {@link CoalescingOutputStream}
+     * @param stats write counts are added to this, may be null
+     * @param compression settings for compressing the response body,
+     *        or null to never compress; ignored if {@code req} is null
+     * @param conditionalGet settings for tagging array bodies and
+     *        answering conditional GETs, or null to leave that to the
+     *        application; ignored if {@code req} is null
+     * @param sendfile if true, a file named by an {@code X-Sendfile}
+     *        response header is sent in place of the body; else the
+     *        header is passed to the client like any other
+     */
+    public ResponseHelper(HttpServletRequest req,
+                          HttpServletResponse resp,
+                          IRubyObject self,
+                          RubyModule imClass,
+                          int coalesceThreshold,
+                          WriteStats stats,
+                          Compression compression,
+                          ConditionalGet conditionalGet,
+                          boolean sendfile)
+    {
         this.constants = Constants.getInstance(self.getRuntime());
+        this.req = req;
         this.resp = resp;
         this.self = self;
         this.imClass = imClass;
+        this.coalesceThreshold = coalesceThreshold;
+        this.stats = stats;
+        this.compression = compression;
+        this.conditionalGet = conditionalGet;
+        this.sendfile = sendfile;
     }
     
+    /**
+     * Respond from a Rack response.  If the request is known and
+     * sendfile is enabled, a file to send named by an
+     * {@code X-Sendfile} header (as set by
+     * {@code Rack::Sendfile}) is served by the container's default
+     * servlet if it lies within the web application, otherwise from
+     * Java.  A 200 response whose body responds to {@code to_path} is
+     * sent from the file rather than through {@code each}, unless it
+     * is to be compressed.  If conditional GET is enabled, a matching
+     * request gets a 304 with no body.
+     */
     public void respond(ThreadContext context,
                         int status,
                         RubyHash headers,
                         IRubyObject body)
             throws IOException
     {
-        setHeaders(status, headers);
+        if (req != null && sendfile) {
+            final IRubyObject path =
+                    headers.delete(context, constants.X_SENDFILE, Block.NULL_BLOCK);
+            if (!path.isNil()) {
+                // Rack::Sendfile sets this to zero
+                headers.delete(context, constants.HEADER_CONTENT_LENGTH, Block.NULL_BLOCK);
+                setHeaders(status, headers);
+                sendFile(toFile(path));
+                close(context, body);
+                return;
+            }
+        }
         
         /*
          * Rails likes to manually chunk the response body.  Servlet container
@@ -62,13 +187,46 @@ public final class ResponseHelper {
          */
         final IRubyObject value =
                 headers.delete(context, constants.TRANSFER_ENCODING, Block.NULL_BLOCK);
-        if (!value.isNil() && value.toString().equals("chunked")) {
-            body = constants.cDechunkingBody
-                    .newInstance(context, body, Block.NULL_BLOCK);
+        final boolean chunked = !value.isNil() && value.toString().equals("chunked");
+        
+        final boolean array = isArrayOfStrings(body);
+        final long length = (array && !chunked) ? getLength((RubyArray) body) : -1;
+        
+        if (isNotModified(context, status, headers, array ? (RubyArray) body : null, length)) {
+            headers.delete(context, constants.HEADER_CONTENT_TYPE, Block.NULL_BLOCK);
+            headers.delete(context, constants.HEADER_CONTENT_LENGTH, Block.NULL_BLOCK);
+            setHeaders(HttpServletResponse.SC_NOT_MODIFIED, headers);
+            close(context, body);
+            return;
+        }
+        
+        startCompression(context, status, headers, length);
+        try {
+            if (compressor == null) {
+                final File file = getBodyFile(context, status, headers, body);
+                if (file != null) {
+                    setHeaders(status, headers);
+                    writeFile(file);
+                    close(context, body);
+                    return;
+                }
+            }
+            
+            setHeaders(status, headers);
+            if (array) {
+                writeArrayBody(status, (RubyArray) body, length, chunked);
+            } else {
+                each(context, body, false, chunked);
+            }
+            finish();
+        } finally {
+            release();
         }
 
-        writeBody(context, body);
-
+        close(context, body);
+    }
+    
+    private static void close(ThreadContext context, IRubyObject body) {
         if (body.respondsTo("close")) {
             try {
                 body.callMethod(context, "close");
@@ -78,19 +236,373 @@ public final class ResponseHelper {
         }
     }
     
+    /**
+     * A path from Ruby, relative to the Ruby current directory.
+     */
+    private File toFile(IRubyObject path) {
+        final File file = new File(path.asJavaString());
+        if (file.isAbsolute()) {
+            return file;
+        } else {
+            return new File(self.getRuntime().getCurrentDirectory(), file.getPath());
+        }
+    }
+    
+    /**
+     * The file to send in place of {@code body}, if {@code body}
+     * responds to {@code to_path}.  Only whole-file responses qualify:
+     * status 200 with no {@code Content-Length} or one equal to the
+     * file's length ({@code Rack::File}, for example, returns the whole
+     * file's path for range responses too).
+     * 
+     * @return the file, or null to write {@code body} as usual
+     */
+    private File getBodyFile(ThreadContext context,
+                             int status,
+                             RubyHash headers,
+                             IRubyObject body)
+    {
+        if (status != 200 || !body.respondsTo("to_path")) {
+            return null;
+        }
+        
+        final File file = toFile(body.callMethod(context, "to_path"));
+        if (!file.isFile()) {
+            return null;
+        }
+        
+        final IRubyObject contentLength = headers.op_aref(context, constants.HEADER_CONTENT_LENGTH);
+        if (!contentLength.isNil() &&
+                !contentLength.asJavaString().trim().equals(Long.toString(file.length())))
+        {
+            return null;
+        }
+        
+        return file;
+    }
+    
+    /**
+     * Send a file named by {@code X-Sendfile}: forward to the default
+     * servlet (which handles ranges and conditional requests) if the
+     * file is within the web application, otherwise write it from
+     * Java, or 404 if it is not there.
+     */
+    private void sendFile(File file) throws IOException {
+        if (!file.isFile()) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        
+        final String path = getWebappPath(file);
+        final RequestDispatcher dispatcher = (path == null)
+                ? null
+                : req.getServletContext().getNamedDispatcher("default");
+        if (dispatcher == null) {
+            writeFile(file);
+            return;
+        }
+        
+        try {
+            dispatcher.forward(new FileRequest(req, path), resp);
+        } catch (ServletException e) {
+            throw new IOException(e);
+        }
+    }
+    
+    /**
+     * @return the path of {@code file} within the web application, or
+     *         null if it is outside it or in {@code WEB-INF} or
+     *         {@code META-INF}, which the default servlet will not serve
+     */
+    private String getWebappPath(File file) throws IOException {
+        final String realRoot = req.getServletContext().getRealPath("/");
+        if (realRoot == null) {
+            return null;
+        }
+        
+        final String root = new File(realRoot).getCanonicalPath();
+        final String path = file.getCanonicalPath();
+        if (!path.startsWith(root) || path.length() <= root.length() ||
+                path.charAt(root.length()) != File.separatorChar)
+        {
+            return null;
+        }
+        
+        final String relative = path.substring(root.length()).replace(File.separatorChar, '/');
+        final String upper = relative.toUpperCase(Locale.ENGLISH);
+        if (upper.startsWith("/WEB-INF/") || upper.startsWith("/META-INF/")) {
+            return null;
+        }
+        return relative;
+    }
+    
+    private void setContentLength(long length) {
+        if (length <= Integer.MAX_VALUE) {
+            resp.setContentLength((int) length);
+        } else {
+            resp.setHeader("Content-Length", Long.toString(length));
+        }
+    }
+    
+    /**
+     * Write a whole file as the response body, with
+     * {@code Content-Length}.  The container's sendfile is used if it
+     * offers one (Tomcat's NIO and APR connectors), otherwise the file
+     * is copied by {@link FileChannel#transferTo}, without passing
+     * through Ruby.
+     */
+    private boolean isHead() {
+        return req != null && "HEAD".equals(req.getMethod());
+    }
+    
+    private void writeFile(File file) throws IOException {
+        final long length = file.length();
+        setContentLength(length);
+        
+        if (req != null) {
+            if ("HEAD".equals(req.getMethod())) {
+                return;
+            }
+            if (Boolean.TRUE.equals(req.getAttribute(TOMCAT_SENDFILE_SUPPORT))) {
+                req.setAttribute(TOMCAT_SENDFILE_FILENAME, file.getCanonicalPath());
+                req.setAttribute(TOMCAT_SENDFILE_START, Long.valueOf(0));
+                req.setAttribute(TOMCAT_SENDFILE_END, Long.valueOf(length));
+                return;
+            }
+        }
+        
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            final WritableByteChannel out = Channels.newChannel(resp.getOutputStream());
+            long pos = 0;
+            while (pos < length) {
+                final long n = channel.transferTo(pos, length - pos, out);
+                if (n <= 0) {
+                    break; // truncated since we looked
+                }
+                pos += n;
+            }
+            if (stats != null) {
+                stats.add(1, pos, 1);
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Commit the response and send anything written so far.  A
+     * compressed body is sync flushed first.
+     */
     public void flush() throws IOException {
+        if (compressor != null) {
+            compressor.flush();
+        }
         resp.flushBuffer();
     }
+    
+    /**
+     * Write bytes of a streamed body, and flush them as by
+     * {@link #flush()}.
+     */
+    public void writeFlush(byte[] b, int off, int len) throws IOException {
+        final OutputStream out = (compressor != null) ? compressor : resp.getOutputStream();
+        out.write(b, off, len);
+        flush();
+    }
+    
+    /**
+     * @return true if the body is compressed, so that its bytes are
+     *         not those written
+     */
+    public boolean isCompressing() {
+        return compressor != null;
+    }
+    
+    /**
+     * Set the status and headers of a response whose body will be
+     * streamed by {@link #writeBodyFlush}, deciding first whether to
+     * compress it.  {@link #finish()} must be called after the last
+     * part is written.
+     */
+    public void startStreaming(ThreadContext context, int status, RubyHash headers) throws IOException {
+        startCompression(context, status, headers, -1);
+        setHeaders(status, headers);
+    }
+    
+    /**
+     * End a compressed body, if any.
+     */
+    public void finish() throws IOException {
+        if (compressor != null) {
+            try {
+                compressor.close();
+            } finally {
+                compressor = null;
+            }
+        }
+    }
+    
+    /**
+     * Give up a compressed body without ending it, returning its
+     * deflater to the pool.
+     */
+    public void release() {
+        if (compressor != null) {
+            compressor.release();
+            compressor = null;
+        }
+    }
+    
+    /**
+     * Tag an array body of a GET or HEAD 200 response, unless the
+     * application gave an {@code ETag} or {@code Last-Modified} or
+     * {@code Cache-Control: no-cache} (as {@code Rack::ETag}), then
+     * check the request's conditions against the response validators.
+     * 
+     * @param array the body if an array of strings, else null
+     * @param length the total bytes of {@code array}, or -1
+     * @return true if the client's copy is current
+     */
+    private boolean isNotModified(ThreadContext context,
+                                  int status,
+                                  RubyHash headers,
+                                  RubyArray array,
+                                  long length)
+    {
+        if (conditionalGet == null || req == null || status != HttpServletResponse.SC_OK) {
+            return false;
+        }
+        final String method = req.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return false;
+        }
+        
+        String etag = getHeader(context, headers, constants.HEADER_ETAG);
+        final String lastModified = getHeader(context, headers, constants.HEADER_LAST_MODIFIED);
+        if (etag == null && lastModified == null && array != null &&
+                conditionalGet.isTaggable(length))
+        {
+            final String cacheControl = getHeader(context, headers, constants.HEADER_CACHE_CONTROL);
+            if (cacheControl == null || !cacheControl.contains("no-cache")) {
+                etag = ConditionalGet.etag(array, length);
+                headers.op_aset(context, constants.HEADER_ETAG, context.getRuntime().newString(etag));
+            }
+        }
+        
+        return ConditionalGet.isFresh(req, etag, lastModified);
+    }
+    
+    /**
+     * Decide whether to compress the response body, before its
+     * headers are set.  If the response could be compressed for some
+     * client, {@code Vary: Accept-Encoding} is added.  If it is to be
+     * compressed for this one, {@code Content-Length} is removed and
+     * a strong {@code ETag} is made weak, since the bytes sent are no
+     * longer those the application gave.
+     * 
+     * @param length the body length if known, else -1
+     */
+    private void startCompression(ThreadContext context,
+                                  int status,
+                                  RubyHash headers,
+                                  long length)
+            throws IOException
+    {
+        if (compression == null || req == null) {
+            return;
+        }
+        
+        if (length < 0) {
+            length = parseLength(getHeader(context, headers, constants.HEADER_CONTENT_LENGTH));
+        }
+        if (!compression.isCompressible(status,
+                                        getHeader(context, headers, constants.HEADER_CONTENT_TYPE),
+                                        getHeader(context, headers, constants.HEADER_CONTENT_ENCODING),
+                                        getHeader(context, headers, constants.HEADER_CACHE_CONTROL),
+                                        length))
+        {
+            return;
+        }
+        
+        addVary(context, headers);
+        
+        final String encoding = Compression.negotiate(req.getHeader("Accept-Encoding"));
+        if (encoding == null || "HEAD".equals(req.getMethod())) {
+            return;
+        }
+        
+        headers.delete(context, constants.HEADER_CONTENT_LENGTH, Block.NULL_BLOCK);
+        final String etag = getHeader(context, headers, constants.HEADER_ETAG);
+        if (etag != null && !etag.startsWith("W/")) {
+            headers.op_aset(context, constants.HEADER_ETAG, context.getRuntime().newString("W/" + etag));
+        }
+        
+        compressor = new CompressingOutputStream(resp.getOutputStream(),
+                                                 resp,
+                                                 encoding,
+                                                 compression.getPool(),
+                                                 (length < 0) ? compression.getMinSize() : 0);
+    }
+    
+    /**
+     * Add {@code Accept-Encoding} to the {@code Vary} header unless it
+     * (or {@code *}) is there already.
+     */
+    private void addVary(ThreadContext context, RubyHash headers) {
+        final String vary = getHeader(context, headers, constants.HEADER_VARY);
+        final String value;
+        if (vary == null || vary.trim().length() == 0) {
+            value = "Accept-Encoding";
+        } else {
+            final String lower = vary.toLowerCase(Locale.ENGLISH);
+            if (lower.contains("accept-encoding") || lower.trim().equals("*")) {
+                return;
+            }
+            value = vary + ", Accept-Encoding";
+        }
+        headers.op_aset(context, constants.HEADER_VARY, context.getRuntime().newString(value));
+    }
+    
+    /**
+     * @return the value of header {@code name}, or null
+     */
+    private static String getHeader(ThreadContext context, RubyHash headers, RubyString name) {
+        final IRubyObject value = headers.op_aref(context, name);
+        return value.isNil() ? null : value.asJavaString();
+    }
+    
+    /**
+     * @return {@code value} as a length, or -1 if null or not a number
+     */
+    private static long parseLength(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
     public void setHeaders(int status, RubyHash headers) {
         resp.setStatus(status);
+        constants.headerWriter.write(resp, headers);
+    }
     
-        headers.visitAll(new Visitor() {
-            @Override
-            public void visit(IRubyObject name, IRubyObject value) {
-                resp.setHeader(name.asJavaString(), value.asJavaString());
-            }
-        });
+    /**
+     * Write a body part directly from the bytes backing the string,
+     * without copying.  Parts that are not strings are converted with
+     * {@code to_s}.
+     */
+    static void write(OutputStream stream, IRubyObject part) throws IOException {
+        final RubyString str = (part instanceof RubyString)
+                ? (RubyString) part
+                : part.asString();
+        final ByteList bytes = str.getByteList();
+        stream.write(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
     }
     
     private static class Callback implements BlockCallback {
@@ -99,16 +611,15 @@ public final class ResponseHelper {
         
         private final boolean flush;
         
-        public Callback(HttpServletResponse resp, boolean flush) throws IOException {
-            this.stream = resp.getOutputStream();
+        public Callback(OutputStream stream, boolean flush) {
+            this.stream = stream;
             this.flush = flush;
         }
 
         @Override
         public IRubyObject call(ThreadContext context, IRubyObject[] args, Block block) {
-            final RubyString part = args[0].asString();
             try {
-                stream.write(part.getBytes());
+                write(stream, args[0]);
                 if (flush) { stream.flush(); }
             } catch (IOException e) {
                 throw context.getRuntime().newIOErrorFromException(e);
@@ -118,34 +629,144 @@ public final class ResponseHelper {
         
     }
     
+    /**
+     * @return true if {@code body} is a plain {@code Array} (not a
+     *         subclass, no singleton methods) holding only strings, so
+     *         that its parts may be written without calling {@code each}
+     */
+    private static boolean isArrayOfStrings(IRubyObject body) {
+        if (!(body instanceof RubyArray) || body.getMetaClass() != body.getRuntime().getArray()) {
+            return false;
+        }
+        
+        final RubyArray array = (RubyArray) body;
+        for (int i = 0, len = array.getLength(); i < len; ++i) {
+            if (!(array.eltInternal(i) instanceof RubyString)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @return true unless responses with {@code status} never have a
+     *         body (1xx, 204, 304)
+     */
+    private static boolean hasEntityBody(int status) {
+        return !(status < 200 || status == 204 || status == 304);
+    }
+    
+    /**
+     * @return the total bytes in an array of strings
+     */
+    private static long getLength(RubyArray body) {
+        long total = 0;
+        for (int i = 0, len = body.getLength(); i < len; ++i) {
+            total += ((RubyString) body.eltInternal(i)).getByteList().getRealSize();
+        }
+        return total;
+    }
+    
+    /**
+     * Write an array of strings from Java, setting
+     * {@code Content-Length} if the application did not and the body
+     * is not compressed, so that the container need not chunk the
+     * response.  Not for {@code HEAD}, whose empty body (as from
+     * {@code Rack::Head}) says nothing of the length.
+     * 
+     * @param length the total bytes in {@code body}, or -1 if
+     *        {@code chunked}
+     * @param chunked true if the parts are in chunked transfer coding,
+     *        to be decoded
+     */
+    private void writeArrayBody(int status, RubyArray body, long length, boolean chunked)
+            throws IOException
+    {
+        final int len = body.getLength();
+        
+        if (length >= 0 && compressor == null && hasEntityBody(status) && !isHead() &&
+                !resp.containsHeader("Content-Length"))
+        {
+            setContentLength(length);
+        }
+        
+        final CoalescingOutputStream stream = newOutputStream();
+        try {
+            final DechunkingOutputStream dechunker = chunked ? new DechunkingOutputStream(stream) : null;
+            final OutputStream out = chunked ? dechunker : stream;
+            for (int i = 0; i < len; ++i) {
+                write(out, body.eltInternal(i));
+            }
+            if (chunked) {
+                dechunker.checkComplete();
+            }
+            stream.close();
+        } finally {
+            stream.release();
+        }
+    }
+    
+    private CoalescingOutputStream newOutputStream() throws IOException {
+        final OutputStream out = (compressor != null) ? compressor : resp.getOutputStream();
+        return new CoalescingOutputStream(out, coalesceThreshold, stats);
+    }
+    
+    /**
+     * Write each part of {@code body} as yielded by {@code each}.
+     * 
+     * @param flush if true, flush after each part
+     * @param chunked if true, the parts are in chunked transfer coding,
+     *        to be decoded
+     */
+    private void each(ThreadContext context,
+                      IRubyObject body,
+                      boolean flush,
+                      boolean chunked) throws IOException
+    {
+        final CoalescingOutputStream stream = newOutputStream();
+        try {
+            final DechunkingOutputStream dechunker = chunked ? new DechunkingOutputStream(stream) : null;
+            final OutputStream out = chunked ? dechunker : stream;
+            body.callMethod(context,
+                            "each",
+                            ARGS_NONE,
+                            CallBlock.newCallClosure(self,
+                                                     imClass,
+                                                     Arity.ONE_ARGUMENT,
+                                                     new Callback(out, flush),
+                                                     context));
+            if (chunked) {
+                dechunker.checkComplete();
+            }
+            stream.close();
+        } finally {
+            stream.release();
+        }
+    }
+    
+    /**
+     * Write each part in {@code body}.  Small parts are coalesced into
+     * larger writes.
+     * 
+     * @param context
+     * @param body
+     * @throws IOException
+     */
     public void writeBody(ThreadContext context, IRubyObject body) throws IOException {
-        body.callMethod(context,
-                        "each",
-                        ARGS_NONE,
-                        CallBlock.newCallClosure(self,
-                                                 imClass,
-                                                 Arity.ONE_ARGUMENT,
-                                                 new Callback(resp, false),
-                                                 context));
+        each(context, body, false, false);
     }
 
     /**
      * Write each part in {@code body}, flushing the output stream after
-     * each part.
+     * each part.  A compressed body is sync flushed, so each part
+     * reaches the client whole.
      * 
      * @param context
      * @param body
      * @throws IOException
      */
     public void writeBodyFlush(ThreadContext context, IRubyObject body) throws IOException {
-        body.callMethod(context,
-                        "each",
-                        ARGS_NONE,
-                        CallBlock.newCallClosure(self,
-                                                 imClass,
-                                                 Arity.ONE_ARGUMENT,
-                                                 new Callback(resp, true),
-                                                 context));
+        each(context, body, true, false);
     }
 
 }
@@ -0,0 +1,224 @@
+package rubylet.rack;
+
+import java.io.IOException;
+
+import org.jcodings.specific.ASCIIEncoding;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyModule;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyObject;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * A Rack input stream ({@code rack.input}) backed by an
+ * {@link InputBuffer}, so it may be rewound.  Implements {@code gets},
+ * {@code read}, {@code each}, {@code rewind}, and {@code close} per the
+ * Rack spec.  Strings returned are ASCII-8BIT.
+ *
+ * <p>Not threadsafe.
+ */
+@JRubyClass(name = "Rubylet::Rack::RewindableInput")
+public final class RewindableInput extends RubyObject {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Size of each read from the buffer when reading to the end with
+     * no idea of how much remains.
+     */
+    private static final int READ_SIZE = 8 * 1024;
+
+    public static void create(Ruby runtime) {
+        final RubyModule rubylet = runtime.defineModule("Rubylet");
+        final RubyModule rack = rubylet.defineModuleUnder("Rack");
+        final RubyClass input = rack.defineClassUnder("RewindableInput",
+                                                      runtime.getObject(),
+                                                      runtime.getObject().getAllocator());
+        input.defineAnnotatedMethods(RewindableInput.class);
+    }
+
+    private final InputBuffer buffer;
+
+    /**
+     * Current read position in {@link #buffer}.
+     */
+    private long pos;
+
+    public RewindableInput(Ruby runtime, RubyClass klass, InputBuffer buffer) {
+        super(runtime, klass);
+        this.buffer = buffer;
+    }
+
+    public InputBuffer getBuffer() {
+        return buffer;
+    }
+
+    private RubyString newString(ByteList bytes) {
+        bytes.setEncoding(ASCIIEncoding.INSTANCE);
+        return RubyString.newStringNoCopy(getRuntime(), bytes);
+    }
+
+    private int checkedLength(long len) {
+        if (len > Integer.MAX_VALUE) {
+            throw getRuntime().newIOError("input too large to read into a string");
+        }
+        return (int) len;
+    }
+
+    /**
+     * Read from the current position into {@code bytes}.
+     *
+     * @param bytes bytes are appended to this
+     * @param len max number of bytes to read, or -1 to read to the end
+     * @return the number of bytes read
+     */
+    private long readInto(ByteList bytes, long len) throws IOException {
+        long total = 0;
+        while (len < 0 || total < len) {
+            long want = (len < 0) ? buffer.remainingHint(pos) : len - total;
+            if (want == 0) {
+                want = READ_SIZE;
+            }
+
+            final int size = bytes.getRealSize();
+            final int n0 = checkedLength(Math.min(want, Integer.MAX_VALUE - size));
+            bytes.ensure(size + n0);
+            final int n = buffer.read(pos,
+                                      bytes.getUnsafeBytes(),
+                                      bytes.getBegin() + size,
+                                      n0);
+            if (n < 0) {
+                break;
+            }
+            bytes.setRealSize(size + n);
+            pos += n;
+            total += n;
+        }
+        bytes.invalidate();
+        return total;
+    }
+
+    @JRubyMethod
+    public IRubyObject gets(ThreadContext context) {
+        try {
+            return getsInternal(context);
+        } catch (IOException e) {
+            throw getRuntime().newIOErrorFromException(e);
+        }
+    }
+
+    private IRubyObject getsInternal(ThreadContext context) throws IOException {
+        final long nl = buffer.indexOf((byte) '\n', pos);
+        final long end = (nl < 0) ? buffer.length() : nl + 1;
+        if (end <= pos) {
+            return context.nil;
+        }
+
+        final int len = checkedLength(end - pos);
+        final byte[] bytes = new byte[len];
+        int done = 0;
+        while (done < len) {
+            done += buffer.read(pos + done, bytes, done, len - done);
+        }
+        pos = end;
+        return newString(new ByteList(bytes, false));
+    }
+
+    @JRubyMethod
+    public IRubyObject read(ThreadContext context) {
+        return read(context, context.nil, context.nil);
+    }
+
+    @JRubyMethod
+    public IRubyObject read(ThreadContext context, IRubyObject length) {
+        return read(context, length, context.nil);
+    }
+
+    /**
+     * Like {@code IO#read}: with no length, read to the end, returning
+     * an empty string at the end; with a length, read up to that many
+     * bytes, returning nil at the end.  If {@code buffer} is given, its
+     * contents are replaced by the data read.
+     */
+    @JRubyMethod
+    public IRubyObject read(ThreadContext context, IRubyObject length, IRubyObject buffer) {
+        final long len;
+        if (length.isNil()) {
+            len = -1;
+        } else {
+            len = RubyNumeric.num2long(length);
+            if (len < 0) {
+                throw getRuntime().newArgumentError("negative length " + len + " given");
+            }
+        }
+
+        final RubyString str;
+        final ByteList bytes;
+        if (buffer.isNil()) {
+            str = null;
+            final long hint = (len < 0) ? this.buffer.remainingHint(pos) : len;
+            bytes = new ByteList(checkedLength(Math.min(Math.max(hint, 0), READ_SIZE * 8)));
+        } else {
+            str = buffer.convertToString();
+            str.modify();
+            bytes = str.getByteList();
+            bytes.setRealSize(0);
+        }
+
+        final long n;
+        try {
+            n = readInto(bytes, len);
+        } catch (IOException e) {
+            throw getRuntime().newIOErrorFromException(e);
+        }
+
+        final IRubyObject result;
+        if (str == null) {
+            result = newString(bytes);
+        } else {
+            str.setEncoding(ASCIIEncoding.INSTANCE);
+            str.clearCodeRange();
+            result = str;
+        }
+
+        return (n == 0 && len > 0) ? context.nil : result;
+    }
+
+    @JRubyMethod
+    public IRubyObject each(ThreadContext context, Block block) {
+        IRubyObject line;
+        while (!(line = gets(context)).isNil()) {
+            block.yield(context, line);
+        }
+        return this;
+    }
+
+    @JRubyMethod
+    public IRubyObject rewind(ThreadContext context) {
+        pos = 0;
+        return RubyFixnum.zero(getRuntime());
+    }
+
+    /**
+     * Release the buffer.  The underlying Servlet input stream is left
+     * to the container.
+     */
+    @JRubyMethod
+    public IRubyObject close(ThreadContext context) {
+        try {
+            buffer.close();
+        } catch (IOException e) {
+            throw getRuntime().newIOErrorFromException(e);
+        }
+        return context.nil;
+    }
+
+}
@@ -2,6 +2,8 @@ package rubylet.rack;
 
 import java.io.IOException;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
@@ -27,6 +29,202 @@ import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.Visibility;
 import org.jruby.runtime.builtin.IRubyObject;
 
+/**
+ * A Java Servlet that forwards requests to a Rack application.
+ *
+ * <p>Init parameters:
+ *
+ * <dl>
+ * <dt>rubylet.rackupFile</dt>
+ * <dd>rackup file used to load the app if none was given to the
+ * constructor (default {@code config.ru})</dd>
+ *
+ * <dt>rubylet.servletPath</dt>
+ * <dd>servlet path used to set {@code RAILS_RELATIVE_URL_ROOT}</dd>
+ *
+ * <dt>rubylet.headerValueCacheSize</dt>
+ * <dd>max number of cached values of {@code Accept*},
+ * {@code User-Agent}, and similar request headers (default 0,
+ * disabled)</dd>
+ *
+ * <dt>rubylet.inputBufferSize</dt>
+ * <dd>max bytes of a request body held in memory by
+ * {@code rack.input} before spilling into a temp file (default
+ * 65536)</dd>
+ *
+ * <dt>rubylet.streamingInput</dt>
+ * <dd>{@code true}, or a comma separated list of Servlet URL patterns
+ * ({@code /upload/*}, {@code *.csv}) matched against the path within
+ * the context.  Matching requests get a forward-only {@code rack.input}
+ * read directly from the request, without buffering.  Such input does
+ * not meet the Rack spec: {@code rewind} raises once anything has been
+ * read (default none)</dd>
+ *
+ * <dt>rubylet.parseMultipart</dt>
+ * <dd>{@code true}, or a comma separated list of Servlet URL patterns.
+ * Multipart bodies of matching requests are parsed in Java, writing
+ * uploads straight to their temp files, the first time
+ * {@code rack.request.form_hash} is looked up (as by
+ * {@code Rack::Request#POST}).  The raw body is then no longer
+ * available from {@code rack.input} (default none)</dd>
+ *
+ * <dt>rubylet.parseQuery</dt>
+ * <dd>if {@code true}, the query string and cookies are parsed in Java
+ * the first time {@code rack.request.query_hash} or
+ * {@code rack.request.cookie_hash} is looked up (as by
+ * {@code Rack::Request#GET} and {@code #cookies}), into the same
+ * hashes Rack would build (default false)</dd>
+ *
+ * <dt>rubylet.inflateInput</dt>
+ * <dd>{@code true}, or a comma separated list of Servlet URL patterns.
+ * Bodies of matching requests sent with {@code Content-Encoding: gzip}
+ * or {@code deflate} are inflated as they are read, and
+ * {@code HTTP_CONTENT_ENCODING} and {@code CONTENT_LENGTH} are left out
+ * of the environment (default none)</dd>
+ *
+ * <dt>rubylet.maxInflatedInputSize</dt>
+ * <dd>max bytes of an inflated request body; reading past this raises
+ * {@code IOError}, or -1 for no limit (default 16777216)</dd>
+ *
+ * <dt>rubylet.writeCoalesceThreshold</dt>
+ * <dd>response body parts smaller than this many bytes are gathered
+ * into a per-thread buffer and written to the container in larger
+ * blocks; larger parts are written directly.  0 disables coalescing
+ * (default 1024)</dd>
+ *
+ * <dt>rubylet.sendfile</dt>
+ * <dd>if {@code true}, {@code sendfile.type} is set to
+ * {@code X-Sendfile} in the environment, so {@code Rack::Sendfile}
+ * hands files to the servlet rather than reading them in Ruby.  Files
+ * within the web application are served by the container's default
+ * servlet (with ranges and conditional requests); others are sent
+ * from Java.  An {@code X-Sendfile} response header is honored only
+ * if this is set; otherwise it is sent to the client like any other
+ * header (default false)</dd>
+ *
+ * <dt>rubylet.compress</dt>
+ * <dd>if {@code true}, response bodies are compressed with gzip or
+ * deflate as they are written, if the client accepts it.  Bodies
+ * already encoded, marked {@code Cache-Control: no-transform}, or of
+ * other types are left alone, as are those of fewer than
+ * {@code rubylet.compressMinSize} bytes.  Streamed async responses are
+ * sync flushed after each part (default false)</dd>
+ *
+ * <dt>rubylet.compressTypes</dt>
+ * <dd>comma separated media types to compress (default
+ * {@code text/html}, {@code text/plain}, {@code text/css},
+ * {@code text/javascript}, {@code text/xml}, and JavaScript, JSON,
+ * XML, Atom, RSS, and SVG {@code application} types)</dd>
+ *
+ * <dt>rubylet.compressMinSize</dt>
+ * <dd>min bytes of a body to compress (default 1024)</dd>
+ *
+ * <dt>rubylet.compressLevel</dt>
+ * <dd>zlib compression level, 1 (fastest) to 9 (smallest)
+ * (default 6)</dd>
+ *
+ * <dt>rubylet.etag</dt>
+ * <dd>if {@code true}, array bodies of GET and HEAD 200 responses
+ * that have no {@code ETag}, {@code Last-Modified}, or
+ * {@code Cache-Control: no-cache} are given a weak {@code ETag} from
+ * their length and CRC32, and any GET or HEAD 200 response whose
+ * {@code ETag} or {@code Last-Modified} satisfies the request's
+ * {@code If-None-Match} and {@code If-Modified-Since} is answered with
+ * a 304 and no body, as by {@code Rack::ETag} and
+ * {@code Rack::ConditionalGet} (default false)</dd>
+ *
+ * <dt>rubylet.etagMaxSize</dt>
+ * <dd>max bytes of an array body to tag (default 1048576)</dd>
+ *
+ * <dt>rubylet.microcache</dt>
+ * <dd>{@code true}, or a comma separated list of Servlet URL patterns.
+ * Responses to matching {@code GET} and {@code HEAD} requests that the
+ * application marks {@code Cache-Control: public} with {@code max-age}
+ * or {@code s-maxage} are cached in memory, keyed on method, URL, and
+ * the request headers named by {@code Vary}, and served from Java
+ * without calling the application until they expire.  The cache is
+ * available to the application as {@code rubylet.microcache} in the
+ * environment, for {@code purge(uri)} and {@code purge_all}; see
+ * {@link Microcache} (default none)</dd>
+ *
+ * <dt>rubylet.microcacheMaxSize</dt>
+ * <dd>max total bytes of cached responses; least recently used
+ * responses are dropped first (default 67108864)</dd>
+ *
+ * <dt>rubylet.microcacheMaxEntrySize</dt>
+ * <dd>max bytes of a body to cache (default 1048576)</dd>
+ *
+ * <dt>rubylet.coalesceRequests</dt>
+ * <dd>{@code true}, or a comma separated list of Servlet URL patterns.
+ * While a matching {@code GET} or {@code HEAD} request is in the
+ * application, identical requests (same method, URL, credentials, and
+ * {@code rubylet.coalesceHeaders}) wait for it and are sent a copy of
+ * its response, unless that response sets a cookie or is
+ * {@code private} or {@code no-store}; see {@link SingleFlight}
+ * (default none)</dd>
+ *
+ * <dt>rubylet.coalesceHeaders</dt>
+ * <dd>comma separated request headers that must also match (default
+ * {@code Accept}, {@code Accept-Encoding}, {@code Accept-Language})</dd>
+ *
+ * <dt>rubylet.coalesceTimeout</dt>
+ * <dd>max milliseconds a request waits for an identical one before
+ * calling the application itself (default 5000)</dd>
+ *
+ * <dt>rubylet.coalesceMaxSize</dt>
+ * <dd>max bytes of a body to share (default 1048576)</dd>
+ *
+ * <dt>rubylet.asyncQueue</dt>
+ * <dd>if {@code true}, bodies written through {@code async.callback}
+ * are queued and sent to the client off the calling thread, through a
+ * Servlet 3.1 {@code WriteListener} where the container has one; see
+ * {@link OutboundQueue}.  The callback's {@code writable?} reports
+ * whether too much is queued (default false)</dd>
+ *
+ * <dt>rubylet.asyncHighWatermark</dt>
+ * <dd>queued bytes above which an async response is not writable
+ * (default 262144)</dd>
+ *
+ * <dt>rubylet.asyncLowWatermark</dt>
+ * <dd>queued bytes at or below which it is writable again (default
+ * 65536)</dd>
+ *
+ * <dt>rubylet.asyncWriteTimeout</dt>
+ * <dd>max milliseconds a callback call waits for an unwritable
+ * response to drain before raising {@code IOError}; 0 to never wait
+ * (default 0)</dd>
+ *
+ * <dt>rubylet.asyncTimeout</dt>
+ * <dd>milliseconds before an async response is completed, unless the
+ * application sets the callback's {@code timeout=}; 0 for none
+ * (default the container's)</dd>
+ *
+ * <dt>rubylet.asyncTimerTick</dt>
+ * <dd>milliseconds per tick of the {@link HashedWheelTimer} that
+ * drives async timeouts and heartbeats in place of the container's
+ * timeouts; timeouts fire up to one tick late.  0 leaves timeouts to
+ * the container, without heartbeats (default 100)</dd>
+ *
+ * <dt>rubylet.preRead</dt>
+ * <dd>{@code true}, or a comma separated list of Servlet URL patterns.
+ * Matching requests with bodies have the whole body read, without
+ * blocking where the container has a Servlet 3.1 {@code ReadListener},
+ * before the application is called, so that slow uploads do not hold a
+ * Ruby thread; see {@link BodyPreReader}.  The body is buffered as for
+ * {@code rubylet.inputBufferSize} (default none)</dd>
+ *
+ * <dt>rubylet.preReadTypes</dt>
+ * <dd>comma separated media types to pre-read (default all)</dd>
+ *
+ * <dt>rubylet.preReadMaxSize</dt>
+ * <dd>max bytes of a pre-read body; larger bodies are refused with 413
+ * (default 16777216)</dd>
+ *
+ * <dt>rubylet.preReadTimeout</dt>
+ * <dd>max milliseconds to receive a pre-read body before answering
+ * with 408 (default 60000)</dd>
+ * </dl>
+ */
 @JRubyClass(name = "Rubylet::Rack::Servlet")
 public final class Servlet extends RubyObject implements javax.servlet.Servlet {
     
@@ -52,7 +250,66 @@ public final class Servlet extends RubyObject implements javax.servlet.Servlet {
     };
 
     private final Constants constants;
-    private final EnvironmentBuilder envBuilder;
+    private EnvironmentBuilder envBuilder;
+    
+    private int writeCoalesceThreshold = CoalescingOutputStream.DEFAULT_THRESHOLD;
+    
+    /**
+     * True if {@code X-Sendfile} response headers are honored.
+     */
+    private boolean sendfile;
+    
+    private final WriteStats writeStats = new WriteStats();
+    
+    /**
+     * Response compression settings, or null if disabled.
+     */
+    private Compression compression;
+    
+    /**
+     * Conditional GET settings, or null if disabled.
+     */
+    private ConditionalGet conditionalGet;
+    
+    /**
+     * Response cache, or null if disabled.
+     */
+    private Microcache microcache;
+    
+    private String[] microcachePatterns;
+    
+    /**
+     * Request coalescing, or null if disabled.
+     */
+    private SingleFlight singleFlight;
+    
+    private String[] singleFlightPatterns;
+    
+    /**
+     * Queued async output settings, or null if disabled.
+     */
+    private AsyncOutput asyncOutput;
+    
+    /**
+     * Request body pre-reading, or null if disabled.
+     */
+    private BodyPreReader bodyPreReader;
+    
+    /**
+     * Timeout of async responses, or -1 for the container's.
+     */
+    private long asyncTimeout = -1;
+    
+    /**
+     * Tick of the async timer, or 0 if disabled.
+     */
+    private long asyncTimerTick = HashedWheelTimer.DEFAULT_TICK_MILLIS;
+    
+    /**
+     * Created by {@link #init}; its thread starts with the first
+     * timeout or heartbeat.  Null if disabled.
+     */
+    private HashedWheelTimer asyncTimer;
     
     private IRubyObject app;
     private ServletConfig servletConfig;
@@ -61,7 +318,6 @@ public final class Servlet extends RubyObject implements javax.servlet.Servlet {
         super(runtime, klass);
         
         constants = Constants.getInstance(runtime);
-        envBuilder = new EnvironmentBuilder(runtime);
     }
     
     @JRubyMethod(optional = 1, visibility = Visibility.PRIVATE)
@@ -75,6 +331,59 @@ public final class Servlet extends RubyObject implements javax.servlet.Servlet {
     @Override
     public void init(ServletConfig config) throws ServletException {
         this.servletConfig = config;
+        this.envBuilder = new EnvironmentBuilder(getRuntime(), config);
+        
+        final String threshold = config.getInitParameter("rubylet.writeCoalesceThreshold");
+        if (threshold != null) {
+            writeCoalesceThreshold = Integer.parseInt(threshold.trim());
+        }
+        
+        sendfile = "true".equals(config.getInitParameter("rubylet.sendfile"));
+        
+        if ("true".equals(config.getInitParameter("rubylet.compress"))) {
+            compression = newCompression(config);
+        }
+        
+        if ("true".equals(config.getInitParameter("rubylet.etag"))) {
+            final String maxSize = config.getInitParameter("rubylet.etagMaxSize");
+            conditionalGet = new ConditionalGet((maxSize == null)
+                                                ? ConditionalGet.DEFAULT_MAX_SIZE
+                                                : Integer.parseInt(maxSize.trim()));
+        }
+        
+        microcachePatterns = EnvironmentBuilder.patterns(config.getInitParameter("rubylet.microcache"));
+        if (microcachePatterns.length > 0) {
+            microcache = newMicrocache(config);
+        }
+        
+        singleFlightPatterns = EnvironmentBuilder.patterns(config.getInitParameter("rubylet.coalesceRequests"));
+        if (singleFlightPatterns.length > 0) {
+            singleFlight = newSingleFlight(config);
+        }
+        
+        if ("true".equals(config.getInitParameter("rubylet.asyncQueue"))) {
+            asyncOutput = newAsyncOutput(config);
+        }
+        
+        final String asyncTimeoutParam = config.getInitParameter("rubylet.asyncTimeout");
+        if (asyncTimeoutParam != null) {
+            asyncTimeout = Long.parseLong(asyncTimeoutParam.trim());
+        }
+        
+        final String tick = config.getInitParameter("rubylet.asyncTimerTick");
+        if (tick != null) {
+            asyncTimerTick = Long.parseLong(tick.trim());
+        }
+        if (asyncTimerTick > 0) {
+            asyncTimer = new HashedWheelTimer("rubylet-async-timer-" + config.getServletName(),
+                                              asyncTimerTick,
+                                              HashedWheelTimer.DEFAULT_WHEEL_SIZE);
+        }
+        
+        final String[] preReadPatterns = EnvironmentBuilder.patterns(config.getInitParameter("rubylet.preRead"));
+        if (preReadPatterns.length > 0) {
+            bodyPreReader = newBodyPreReader(config, preReadPatterns);
+        }
 
         setRelativeRoot();
         
@@ -84,6 +393,72 @@ public final class Servlet extends RubyObject implements javax.servlet.Servlet {
         }
     }
     
+    private static Compression newCompression(ServletConfig config) {
+        final String types = config.getInitParameter("rubylet.compressTypes");
+        final String minSize = config.getInitParameter("rubylet.compressMinSize");
+        final String level = config.getInitParameter("rubylet.compressLevel");
+        return new Compression((types == null) ? Compression.DEFAULT_TYPES : types,
+                               (minSize == null)
+                                       ? Compression.DEFAULT_MIN_SIZE
+                                       : Integer.parseInt(minSize.trim()),
+                               (level == null)
+                                       ? Compression.DEFAULT_LEVEL
+                                       : Integer.parseInt(level.trim()));
+    }
+
+    private static Microcache newMicrocache(ServletConfig config) {
+        final String maxSize = config.getInitParameter("rubylet.microcacheMaxSize");
+        final String maxEntrySize = config.getInitParameter("rubylet.microcacheMaxEntrySize");
+        return new Microcache((maxSize == null)
+                                      ? Microcache.DEFAULT_MAX_SIZE
+                                      : Long.parseLong(maxSize.trim()),
+                              (maxEntrySize == null)
+                                      ? Microcache.DEFAULT_MAX_ENTRY_SIZE
+                                      : Integer.parseInt(maxEntrySize.trim()));
+    }
+
+    private static SingleFlight newSingleFlight(ServletConfig config) {
+        final String headers = config.getInitParameter("rubylet.coalesceHeaders");
+        final String timeout = config.getInitParameter("rubylet.coalesceTimeout");
+        final String maxSize = config.getInitParameter("rubylet.coalesceMaxSize");
+        return new SingleFlight((headers == null) ? SingleFlight.DEFAULT_HEADERS : headers,
+                                (timeout == null)
+                                        ? SingleFlight.DEFAULT_TIMEOUT_MILLIS
+                                        : Long.parseLong(timeout.trim()),
+                                (maxSize == null)
+                                        ? SingleFlight.DEFAULT_MAX_SIZE
+                                        : Integer.parseInt(maxSize.trim()));
+    }
+
+    private static AsyncOutput newAsyncOutput(ServletConfig config) {
+        final String high = config.getInitParameter("rubylet.asyncHighWatermark");
+        final String low = config.getInitParameter("rubylet.asyncLowWatermark");
+        final String timeout = config.getInitParameter("rubylet.asyncWriteTimeout");
+        return new AsyncOutput((high == null)
+                                       ? AsyncOutput.DEFAULT_HIGH_WATERMARK
+                                       : Integer.parseInt(high.trim()),
+                               (low == null)
+                                       ? AsyncOutput.DEFAULT_LOW_WATERMARK
+                                       : Integer.parseInt(low.trim()),
+                               (timeout == null)
+                                       ? AsyncOutput.DEFAULT_WRITE_TIMEOUT_MILLIS
+                                       : Long.parseLong(timeout.trim()));
+    }
+
+    private BodyPreReader newBodyPreReader(ServletConfig config, String[] patterns) {
+        final String maxSize = config.getInitParameter("rubylet.preReadMaxSize");
+        final String timeout = config.getInitParameter("rubylet.preReadTimeout");
+        return new BodyPreReader(patterns,
+                                 config.getInitParameter("rubylet.preReadTypes"),
+                                 (maxSize == null)
+                                         ? BodyPreReader.DEFAULT_MAX_SIZE
+                                         : Long.parseLong(maxSize.trim()),
+                                 (timeout == null)
+                                         ? BodyPreReader.DEFAULT_TIMEOUT_MILLIS
+                                         : Long.parseLong(timeout.trim()),
+                                 envBuilder);
+    }
+
     /**
      * Set RAILS_RELATIVE_URL_ROOT env var in the Ruby runtime so Rails
      * will correctly detect any context path under which the app
@@ -149,21 +524,164 @@ public final class Servlet extends RubyObject implements javax.servlet.Servlet {
             throws ServletException, IOException
     {
         final HttpServletRequest req = (HttpServletRequest) _req;
-        final HttpServletResponse resp = (HttpServletResponse) _resp;
-
+        HttpServletResponse resp = (HttpServletResponse) _resp;
+        
+        if (bodyPreReader != null && isAsyncSupported(req) && bodyPreReader.isPreRead(req)) {
+            // called again once the body is read
+            bodyPreReader.start(req, resp);
+            return;
+        }
+        
+        final boolean cacheable = microcache != null && Microcache.isCacheable(req) &&
+                EnvironmentBuilder.matchesAny(microcachePatterns, req);
+        if (cacheable && microcache.serve(req, resp, conditionalGet != null)) {
+            return;
+        }
+        
+        SingleFlight.Call call = null;
+        if (singleFlight != null && SingleFlight.isCoalescable(req) &&
+                EnvironmentBuilder.matchesAny(singleFlightPatterns, req))
+        {
+            call = singleFlight.begin(req);
+            if (!call.isLeader()) {
+                if (singleFlight.await(call, req, resp, conditionalGet != null)) {
+                    return;
+                }
+                call = null;
+            }
+        }
+        
+        CapturingResponse capture = null;
+        if (cacheable || call != null) {
+            final int maxSize = Math.max(cacheable ? microcache.getMaxEntrySize() : 0,
+                                         (call != null) ? singleFlight.getMaxSize() : 0);
+            resp = capture = new CapturingResponse(resp, maxSize);
+        }
+        
+        CapturedResponse captured = null;
+        try {
+            serviceApp(req, resp);
+            if (capture != null) {
+                captured = capture.capture("HEAD".equals(req.getMethod()));
+            }
+        } finally {
+            // release waiting requests even if the application failed
+            if (call != null) {
+                singleFlight.complete(call, captured);
+            }
+            if (cacheable) {
+                microcache.put(req, captured);
+            }
+        }
+    }
+    
+    /**
+     * Call the application with a new environment for {@code req}.
+     * If the response is asynchronous, this returns once it has
+     * started, and the response is captured as incomplete.
+     */
+    private void serviceApp(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         final Ruby runtime = getRuntime();
         final ThreadContext context = runtime.getCurrentContext();
-        final RubyHash env = envBuilder.newEnvironmentHash(req);
+        final Environment env = envBuilder.newEnvironmentHash(req);
+        if (microcache != null) {
+            env.put(constants.RUBYLET_MICROCACHE, microcache);
+        }
 
-        if (isAsyncSupported(req)) {
-            env.put(constants.ASYNC_CALLBACK,
-                    new AsyncCallback(runtime, constants.cAsyncCallback, req));
-            callAppMaybeAsync(context, req, resp, env);
-        } else {
-            callApp(context, req, resp, env);
+        try {
+            if (isAsyncSupported(req)) {
+                env.put(constants.ASYNC_CALLBACK,
+                        new AsyncCallback(runtime,
+                                          constants.cAsyncCallback,
+                                          req,
+                                          writeCoalesceThreshold,
+                                          writeStats,
+                                          compression,
+                                          conditionalGet,
+                                          asyncOutput,
+                                          asyncTimer,
+                                          asyncTimeout));
+                callAppMaybeAsync(context, req, resp, env);
+            } else {
+                callApp(context, req, resp, env);
+            }
+        } finally {
+            closeWhenComplete(req, env);
+        }
+        
+        if (resp instanceof CapturingResponse && isAsyncSupported(req) && req.isAsyncStarted()) {
+            ((CapturingResponse) resp).abandon();
         }
     }
     
+    /**
+     * Close {@code env} now, or if an asynchronous response was
+     * started, once that response is complete.
+     */
+    private void closeWhenComplete(HttpServletRequest req, final Environment env)
+            throws IOException
+    {
+        if (isAsyncSupported(req) && req.isAsyncStarted()) {
+            try {
+                req.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) throws IOException {
+                        env.close();
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {}
+
+                    @Override
+                    public void onError(AsyncEvent event) {}
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {}
+                });
+                return;
+            } catch (IllegalStateException e) {
+                // already complete
+            }
+        }
+        env.close();
+    }
+    
+    private ResponseHelper newResponseHelper(HttpServletRequest req, HttpServletResponse resp) {
+        return new ResponseHelper(req,
+                                  resp,
+                                  this,
+                                  getMetaClass(),
+                                  writeCoalesceThreshold,
+                                  writeStats,
+                                  compression,
+                                  conditionalGet,
+                                  sendfile);
+    }
+    
+    /**
+     * @return the response cache, or null if
+     *         {@code rubylet.microcache} is not set
+     */
+    public Microcache getMicrocache() {
+        return microcache;
+    }
+    
+    /**
+     * @return request coalescing, or null if
+     *         {@code rubylet.coalesceRequests} is not set
+     */
+    public SingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+    
+    /**
+     * @return counts of response body writes, for tuning
+     *         {@code rubylet.writeCoalesceThreshold}
+     */
+    public WriteStats getWriteStats() {
+        return writeStats;
+    }
+    
     private boolean isAsyncSupported(HttpServletRequest req) {
         return (req.getServletContext().getEffectiveMajorVersion() >= 3 &&
                 req.isAsyncSupported());
@@ -186,7 +704,7 @@ public final class Servlet extends RubyObject implements javax.servlet.Servlet {
         final RubyHash headers = ary.entry(1).convertToHash();
         final IRubyObject body = ary.entry(2);
 
-        final ResponseHelper wrappedResp = new ResponseHelper(resp, this, getMetaClass());
+        final ResponseHelper wrappedResp = newResponseHelper(req, resp);
         wrappedResp.respond(context, status, headers, body);
     }
 
@@ -243,7 +761,7 @@ public final class Servlet extends RubyObject implements javax.servlet.Servlet {
                     final RubyHash headers = ary.entry(1).convertToHash();
                     final IRubyObject body = ary.entry(2);
                     
-                    final ResponseHelper wrappedResp = new ResponseHelper(resp, this, getMetaClass());
+                    final ResponseHelper wrappedResp = newResponseHelper(req, resp);
                     wrappedResp.respond(context, status, headers, body);
                 }
             }
@@ -259,7 +777,9 @@ public final class Servlet extends RubyObject implements javax.servlet.Servlet {
 
     @Override
     public void destroy() {
-        // no-op
+        if (asyncTimer != null) {
+            asyncTimer.stop();
+        }
     }
     
 }
@@ -0,0 +1,262 @@
+package rubylet.rack;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Coalesces identical concurrent {@code GET} and {@code HEAD}
+ * requests: while one request (the leader) is in the application,
+ * others with the same signature wait for it, then are sent the same
+ * status, headers, and body bytes.
+ *
+ * <p>A request's signature is its method, URL, {@code Cookie} and
+ * {@code Authorization}, and the values of the configured headers, so
+ * requests are never coalesced across different credentials.  Only
+ * responses of cacheable status (200, 203, 301, 404, 410) are shared,
+ * so a leader's {@code 304} is never sent to a request that did not
+ * ask for one.  A response with {@code Set-Cookie}, or with
+ * {@code Cache-Control} {@code private} or {@code no-store}, or that
+ * could not be captured, is not shared either; waiting requests then
+ * call the application themselves, as do any that wait longer than
+ * the timeout.
+ *
+ * <p>Threadsafe.
+ */
+public final class SingleFlight {
+
+    public static final String DEFAULT_HEADERS = "Accept,Accept-Encoding,Accept-Language";
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    public static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+
+    private static final String[] CREDENTIAL_HEADERS = { "Cookie", "Authorization" };
+
+    /**
+     * One request in the application, and those waiting on it.
+     */
+    public static final class Call {
+
+        private final String key;
+
+        /**
+         * The call this one waits on, or null if this is the leader.
+         */
+        private final Call leader;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile CapturedResponse response;
+
+        private Call(String key, Call leader) {
+            this.key = key;
+            this.leader = leader;
+        }
+
+        /**
+         * @return true if this request is to call the application
+         */
+        public boolean isLeader() {
+            return leader == null;
+        }
+
+    }
+
+    private final ConcurrentHashMap<String, Call> calls = new ConcurrentHashMap<String, Call>();
+
+    private final String[] headers;
+
+    private final long timeoutMillis;
+
+    private final int maxSize;
+
+    private final AtomicLong leaders = new AtomicLong();
+
+    private final AtomicLong shared = new AtomicLong();
+
+    private final AtomicLong unshared = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * @param headers comma separated names of request headers that are
+     *        part of the signature
+     * @param timeoutMillis max time a request waits for its leader
+     * @param maxSize responses with larger bodies are not shared
+     */
+    public SingleFlight(String headers, long timeoutMillis, int maxSize) {
+        final List<String> names = new ArrayList<String>();
+        for (String name : headers.split(",")) {
+            final String n = name.trim();
+            if (n.length() > 0) {
+                names.add(n);
+            }
+        }
+        for (String name : CREDENTIAL_HEADERS) {
+            names.add(name);
+        }
+        this.headers = names.toArray(new String[names.size()]);
+        this.timeoutMillis = timeoutMillis;
+        this.maxSize = maxSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return true if {@code req} may be coalesced ({@code GET} and
+     *         {@code HEAD})
+     */
+    public static boolean isCoalescable(HttpServletRequest req) {
+        final String method = req.getMethod();
+        return "GET".equals(method) || "HEAD".equals(method);
+    }
+
+    private String signature(HttpServletRequest req) {
+        final StringBuilder sig = new StringBuilder(128);
+        sig.append(req.getMethod()).append(' ').append(req.getRequestURL());
+        final String query = req.getQueryString();
+        if (query != null) {
+            sig.append('?').append(query);
+        }
+        for (String name : headers) {
+            final String value = req.getHeader(name);
+            if (value != null) {
+                sig.append('\n').append(name).append(": ").append(value);
+            }
+        }
+        return sig.toString();
+    }
+
+    /**
+     * Join the call in progress for requests like {@code req}, or
+     * start one, led by {@code req}.  A leader must later
+     * {@link #complete} its call.
+     */
+    public Call begin(HttpServletRequest req) {
+        final String key = signature(req);
+        final Call call = new Call(key, null);
+        final Call existing = calls.putIfAbsent(key, call);
+        if (existing == null) {
+            leaders.incrementAndGet();
+            return call;
+        }
+        return new Call(key, existing);
+    }
+
+    /**
+     * Wait for the leader of {@code call}, then send its response.
+     *
+     * @param conditional see {@link CapturedResponse#respond}
+     * @return true if the response was sent; false if the leader's
+     *         response cannot be shared or did not come in time, and
+     *         the application must be called
+     */
+    public boolean await(Call call,
+                         HttpServletRequest req,
+                         HttpServletResponse resp,
+                         boolean conditional)
+            throws IOException
+    {
+        final Call leader = call.leader;
+        try {
+            if (!leader.done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        final CapturedResponse response = leader.response;
+        if (response == null) {
+            unshared.incrementAndGet();
+            return false;
+        }
+        shared.incrementAndGet();
+        response.respond(req, resp, conditional, -1);
+        return true;
+    }
+
+    /**
+     * End the call led by this request, releasing any waiting.
+     *
+     * @param captured the response, or null if there was none to
+     *        share
+     */
+    public void complete(Call call, CapturedResponse captured) {
+        if (captured != null && captured.getBodySize() <= maxSize && isShareable(captured)) {
+            call.response = captured;
+        }
+        calls.remove(call.key, call);
+        call.done.countDown();
+    }
+
+    private static boolean isShareable(CapturedResponse captured) {
+        if (!Microcache.isCacheableStatus(captured.getStatus()) ||
+                captured.containsHeader("Set-Cookie"))
+        {
+            return false;
+        }
+        final String cacheControl = captured.getHeaders("Cache-Control");
+        if (cacheControl != null) {
+            final String cc = cacheControl.toLowerCase(Locale.ENGLISH);
+            if (cc.contains("private") || cc.contains("no-store")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of requests that called the application with
+     *         others free to wait on them
+     */
+    public long getLeaders() {
+        return leaders.get();
+    }
+
+    /**
+     * @return the number of requests sent a leader's response
+     */
+    public long getShared() {
+        return shared.get();
+    }
+
+    /**
+     * @return the number of waiting requests that called the
+     *         application because the leader's response was not
+     *         shareable
+     */
+    public long getUnshared() {
+        return unshared.get();
+    }
+
+    /**
+     * @return the number of waiting requests that gave up on the
+     *         leader
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SingleFlight[leaders=" + getLeaders() +
+                ", shared=" + getShared() +
+                ", unshared=" + getUnshared() +
+                ", timeouts=" + getTimeouts() + "]";
+    }
+
+}
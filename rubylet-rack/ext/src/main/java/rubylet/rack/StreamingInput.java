@@ -0,0 +1,297 @@
+package rubylet.rack;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.jcodings.specific.ASCIIEncoding;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyModule;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyObject;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * A forward-only Rack input stream ({@code rack.input}) reading
+ * directly from the Servlet input stream.  Nothing is kept once it has
+ * been read, so unlike {@link RewindableInput} this does not meet the
+ * Rack spec: {@code rewind} is a no-op before anything has been read
+ * and raises {@code Errno::ESPIPE} afterwards, as for a pipe.
+ *
+ * <p>Only a small read-ahead buffer is used, to find line ends for
+ * {@code gets}; large reads go directly from the stream into the
+ * result string.
+ *
+ * <p>Not threadsafe.
+ */
+@JRubyClass(name = "Rubylet::Rack::StreamingInput")
+public final class StreamingInput extends RubyObject {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    public static void create(Ruby runtime) {
+        final RubyModule rubylet = runtime.defineModule("Rubylet");
+        final RubyModule rack = rubylet.defineModuleUnder("Rack");
+        final RubyClass input = rack.defineClassUnder("StreamingInput",
+                                                      runtime.getObject(),
+                                                      runtime.getObject().getAllocator());
+        input.defineAnnotatedMethods(StreamingInput.class);
+    }
+
+    private final InputStream in;
+
+    /**
+     * Read-ahead buffer; unread data is {@code buf[start, end)}.
+     */
+    private byte[] buf;
+
+    private int start;
+
+    private int end;
+
+    /**
+     * Number of bytes returned to the application.
+     */
+    private long consumed;
+
+    private boolean eof;
+
+    public StreamingInput(Ruby runtime, RubyClass klass, InputStream in) {
+        super(runtime, klass);
+        this.in = in;
+    }
+
+    /**
+     * Take the underlying stream for reading elsewhere, if nothing has
+     * been read from it yet.  This input is then empty.
+     *
+     * @return the stream, or null if anything has been read
+     */
+    public InputStream detach() {
+        if (eof || consumed > 0 || buf != null) {
+            return null;
+        }
+        eof = true;
+        return in;
+    }
+
+    private RubyString newString(ByteList bytes) {
+        bytes.setEncoding(ASCIIEncoding.INSTANCE);
+        return RubyString.newStringNoCopy(getRuntime(), bytes);
+    }
+
+    /**
+     * Read more from the stream into the read-ahead buffer, making
+     * room as needed.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        if (buf == null) {
+            buf = new byte[BUFFER_SIZE];
+        } else if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, end - start);
+            end -= start;
+            start = 0;
+        } else if (end == buf.length) {
+            // a line longer than the buffer
+            final byte[] tmp = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, tmp, 0, end);
+            buf = tmp;
+        }
+
+        final int n = in.read(buf, end, buf.length - end);
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        end += n;
+        return true;
+    }
+
+    /**
+     * Copy up to {@code len} bytes into {@code dst}, from the read-ahead
+     * buffer if it holds anything, otherwise directly from the stream.
+     *
+     * @return the number of bytes copied, or -1 at the end of the stream
+     */
+    private int read(byte[] dst, int off, int len) throws IOException {
+        final int n;
+        if (start < end) {
+            n = Math.min(len, end - start);
+            System.arraycopy(buf, start, dst, off, n);
+            start += n;
+        } else if (eof) {
+            return -1;
+        } else {
+            n = in.read(dst, off, len);
+            if (n < 0) {
+                eof = true;
+                return -1;
+            }
+        }
+        consumed += n;
+        return n;
+    }
+
+    /**
+     * Read into {@code bytes}.
+     *
+     * @param bytes bytes are appended to this
+     * @param len max number of bytes to read, or -1 to read to the end
+     * @return the number of bytes read
+     */
+    private long readInto(ByteList bytes, long len) throws IOException {
+        long total = 0;
+        while (len < 0 || total < len) {
+            final int size = bytes.getRealSize();
+            final int want = (int) Math.min((len < 0) ? BUFFER_SIZE : len - total,
+                                            Integer.MAX_VALUE - size);
+            if (want == 0) {
+                throw getRuntime().newIOError("input too large to read into a string");
+            }
+            bytes.ensure(size + want);
+            final int n = read(bytes.getUnsafeBytes(), bytes.getBegin() + size, want);
+            if (n < 0) {
+                break;
+            }
+            bytes.setRealSize(size + n);
+            total += n;
+        }
+        bytes.invalidate();
+        return total;
+    }
+
+    @JRubyMethod
+    public IRubyObject gets(ThreadContext context) {
+        try {
+            return getsInternal(context);
+        } catch (IOException e) {
+            throw getRuntime().newIOErrorFromException(e);
+        }
+    }
+
+    private IRubyObject getsInternal(ThreadContext context) throws IOException {
+        int scanned = start;
+        while (true) {
+            for (int i = scanned; i < end; ++i) {
+                if (buf[i] == '\n') {
+                    return takeLine(i + 1);
+                }
+            }
+
+            final int offset = end - start;
+            if (!fill()) {
+                return (start < end) ? takeLine(end) : context.nil;
+            }
+            scanned = start + offset;
+        }
+    }
+
+    private RubyString takeLine(int lineEnd) {
+        final int len = lineEnd - start;
+        final byte[] bytes = new byte[len];
+        System.arraycopy(buf, start, bytes, 0, len);
+        start = lineEnd;
+        consumed += len;
+        return newString(new ByteList(bytes, false));
+    }
+
+    @JRubyMethod
+    public IRubyObject read(ThreadContext context) {
+        return read(context, context.nil, context.nil);
+    }
+
+    @JRubyMethod
+    public IRubyObject read(ThreadContext context, IRubyObject length) {
+        return read(context, length, context.nil);
+    }
+
+    /**
+     * Like {@code IO#read}: with no length, read to the end, returning
+     * an empty string at the end; with a length, read up to that many
+     * bytes, returning nil at the end.  If {@code buffer} is given, its
+     * contents are replaced by the data read.
+     */
+    @JRubyMethod
+    public IRubyObject read(ThreadContext context, IRubyObject length, IRubyObject buffer) {
+        final long len;
+        if (length.isNil()) {
+            len = -1;
+        } else {
+            len = RubyNumeric.num2long(length);
+            if (len < 0) {
+                throw getRuntime().newArgumentError("negative length " + len + " given");
+            }
+        }
+
+        final RubyString str;
+        final ByteList bytes;
+        if (buffer.isNil()) {
+            str = null;
+            bytes = new ByteList((int) Math.min((len < 0) ? BUFFER_SIZE : len, BUFFER_SIZE * 8));
+        } else {
+            str = buffer.convertToString();
+            str.modify();
+            bytes = str.getByteList();
+            bytes.setRealSize(0);
+        }
+
+        final long n;
+        try {
+            n = readInto(bytes, len);
+        } catch (IOException e) {
+            throw getRuntime().newIOErrorFromException(e);
+        }
+
+        final IRubyObject result;
+        if (str == null) {
+            result = newString(bytes);
+        } else {
+            str.setEncoding(ASCIIEncoding.INSTANCE);
+            str.clearCodeRange();
+            result = str;
+        }
+
+        return (n == 0 && len > 0) ? context.nil : result;
+    }
+
+    @JRubyMethod
+    public IRubyObject each(ThreadContext context, Block block) {
+        IRubyObject line;
+        while (!(line = gets(context)).isNil()) {
+            block.yield(context, line);
+        }
+        return this;
+    }
+
+    /**
+     * A no-op if nothing has been read, otherwise raises
+     * {@code Errno::ESPIPE}.
+     */
+    @JRubyMethod
+    public IRubyObject rewind(ThreadContext context) {
+        if (consumed > 0) {
+            throw getRuntime().newErrnoESPIPEError("rack.input is not rewindable");
+        }
+        return RubyFixnum.zero(getRuntime());
+    }
+
+    /**
+     * No-op.  The Servlet input stream is left to the container.
+     */
+    @JRubyMethod
+    public IRubyObject close(ThreadContext context) {
+        return context.nil;
+    }
+
+}
@@ -0,0 +1,78 @@
+package rubylet.rack;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of response body writes, for tuning
+ * {@code rubylet.writeCoalesceThreshold}: the number of body parts
+ * written by applications, the number of bytes, and the number of
+ * writes made to the Servlet output stream.  Parts and bytes per write
+ * show how well small parts are being coalesced.
+ *
+ * <p>Threadsafe.
+ */
+public final class WriteStats {
+
+    private final AtomicLong parts = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * Add the counts of one response, or one part of an asynchronous
+     * response.
+     */
+    public void add(long parts, long bytes, long writes) {
+        if (parts > 0) {
+            this.parts.addAndGet(parts);
+        }
+        if (bytes > 0) {
+            this.bytes.addAndGet(bytes);
+        }
+        if (writes > 0) {
+            this.writes.addAndGet(writes);
+        }
+    }
+
+    /**
+     * @return the number of body parts written
+     */
+    public long getParts() {
+        return parts.get();
+    }
+
+    /**
+     * @return the number of body bytes written
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the number of writes to the Servlet output stream
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public double getPartsPerWrite() {
+        final long w = getWrites();
+        return (w == 0) ? 0 : (double) getParts() / w;
+    }
+
+    public double getBytesPerWrite() {
+        final long w = getWrites();
+        return (w == 0) ? 0 : (double) getBytes() / w;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteStats[parts=" + getParts() +
+                ", bytes=" + getBytes() +
+                ", writes=" + getWrites() +
+                ", partsPerWrite=" + String.format("%.1f", getPartsPerWrite()) +
+                ", bytesPerWrite=" + String.format("%.1f", getBytesPerWrite()) + "]";
+    }
+
+}
@@ -0,0 +1,29 @@
+require 'spec_helper'
+require 'mini_aether'
+
+MiniAether.setup do
+  jar 'javax.servlet:javax.servlet-api:3.0.1'
+end
+
+require 'java'
+require 'jruby'
+require 'rack'
+require 'rubylet/rack/ext'
+
+module Rubylet::Rack
+  # A Java stream returning at most +step+ bytes per read, so that
+  # reads straddle any internal buffer boundaries.
+  class TrickleStream < java.io.InputStream
+    def initialize(str, step = 7)
+      super()
+      @in = java.io.ByteArrayInputStream.new(str.to_java_bytes)
+      @step = step
+    end
+
+    def read(*args)
+      return @in.read if args.empty?
+      bytes, off, len = args
+      @in.read(bytes, off || 0, [len || bytes.length, @step].min)
+    end
+  end
+end
@@ -0,0 +1,121 @@
+require 'servlet_spec_helper'
+
+module Rubylet::Rack
+
+  describe 'AsyncCallback' do
+    include ServletHelpers
+
+    before do
+      @callback = nil
+      @app = lambda do |env|
+        @callback = env['async.callback']
+        @callback.call([200, { 'Content-Type' => 'text/plain' }, ['hi']])
+        throw :async
+      end
+    end
+
+    def start(params = {})
+      @servlet = new_servlet(@app, { 'rubylet.asyncTimerTick' => '10' }.merge(params))
+      @req = Fake::Request.new(:async => true)
+      @resp = serve_with(@servlet, @req)
+      @req.async_context
+    end
+
+    after do
+      @servlet.destroy if @servlet
+    end
+
+    it 'completes the response once timed out' do
+      ctx = start('rubylet.asyncTimeout' => '100')
+      ctx.timeout.must_equal 0
+      sleep 0.05
+      ctx.completed?.must_equal false
+      wait_for { ctx.completed? }.must_equal true
+      @resp.body.must_equal 'hi'
+    end
+
+    it 'calls on_timeout before completing' do
+      ctx = start
+      @callback.on_timeout { @callback.call([0, {}, [ctx.completed? ? 'late' : 'bye']]) }
+      @callback.timeout = 0.05
+      wait_for { ctx.completed? }.must_equal true
+      @resp.body.must_equal 'hibye'
+      ctx.completions.must_equal 1
+    end
+
+    it 'restarts the timeout when set again' do
+      ctx = start
+      @callback.timeout = 0.1
+      sleep 0.05
+      @callback.timeout = 0.3
+      sleep 0.15
+      ctx.completed?.must_equal false
+      wait_for { ctx.completed? }.must_equal true
+    end
+
+    it 'has no timeout once set to nil' do
+      ctx = start('rubylet.asyncTimeout' => '50')
+      @callback.timeout = nil
+      sleep 0.2
+      ctx.completed?.must_equal false
+    end
+
+    it 'does not time out once complete' do
+      ctx = start
+      timed_out = false
+      @callback.on_timeout { timed_out = true }
+      @callback.timeout = 0.05
+      @callback.call(Rubylet::ASYNC_COMPLETE)
+      sleep 0.15
+      timed_out.must_equal false
+      ctx.completions.must_equal 1
+    end
+
+    it 'leaves the timeout to the container without the timer' do
+      ctx = start('rubylet.asyncTimerTick' => '0', 'rubylet.asyncTimeout' => '5000')
+      ctx.timeout.must_equal 5000
+      timed_out = false
+      @callback.on_timeout { timed_out = true }
+      ctx.listeners.each { |l| l.onTimeout(Java::JavaxServlet::AsyncEvent.new(ctx)) }
+      timed_out.must_equal true
+      ctx.completed?.must_equal true
+    end
+
+    it 'writes a heartbeat while idle' do
+      start
+      @callback.heartbeat(0.03, ':')
+      wait_for { @resp.body.count(':') >= 2 }.must_equal true
+      @resp.body.must_match(/\Ahi:+\z/)
+    end
+
+    it 'writes no heartbeat while busy' do
+      start
+      @callback.heartbeat(0.1, ':')
+      5.times do
+        @callback.call([0, {}, ['.']])
+        sleep 0.03
+      end
+      @resp.body.must_equal 'hi.....'
+    end
+
+    it 'stops the heartbeat when set to nil or complete' do
+      start
+      @callback.heartbeat(0.03, ':')
+      wait_for { @resp.body.include?(':') }
+      @callback.heartbeat(nil)
+      sleep 0.05
+      body = @resp.body
+      sleep 0.1
+      @resp.body.must_equal body
+      @callback.heartbeat(0.03)
+      @callback.call(Rubylet::ASYNC_COMPLETE)
+      sleep 0.1
+      @resp.body.must_equal body
+    end
+
+    it 'has no heartbeat without the timer' do
+      start('rubylet.asyncTimerTick' => '0')
+      proc { @callback.heartbeat(1) }.must_raise NotImplementedError
+    end
+  end
+end
@@ -0,0 +1,167 @@
+require 'servlet_spec_helper'
+
+module Rubylet::Rack
+
+  describe 'CapturingResponse' do
+    before do
+      @resp = Fake::Response.new
+      @capturing = Java::RubyletRack::CapturingResponse.new(@resp, 16)
+    end
+
+    def write(str)
+      @capturing.getOutputStream.write(str.to_java_bytes)
+    end
+
+    it 'captures what it passes through' do
+      @capturing.setStatus(404)
+      @capturing.setContentType('text/plain')
+      @capturing.addHeader('X-Thing', 'a')
+      @capturing.addHeader('X-Thing', 'b')
+      @capturing.setIntHeader('X-Count', 2)
+      write('hello')
+      @resp.getStatus.must_equal 404
+      @resp.body.must_equal 'hello'
+      captured = @capturing.capture(false)
+      captured.status.must_equal 404
+      captured.getHeader('Content-Type').must_equal 'text/plain'
+      captured.getHeaders('X-Thing').must_equal 'a, b'
+      captured.getHeader('X-Count').must_equal '2'
+      captured.bodySize.must_equal 5
+    end
+
+    it 'captures a body matching its Content-Length' do
+      @capturing.setContentLength(5)
+      write('hello')
+      @capturing.capture(false).bodySize.must_equal 5
+    end
+
+    it 'does not capture a body not matching its Content-Length' do
+      @capturing.setHeader('Content-Length', '100')
+      write('hello')
+      @capturing.capture(false).must_be_nil
+    end
+
+    it 'captures a HEAD whatever its Content-Length' do
+      @capturing.setHeader('Content-Length', '100')
+      @capturing.capture(true).bodySize.must_equal 0
+    end
+
+    it 'does not capture a body larger than its limit' do
+      write('x' * 10)
+      write('x' * 10)
+      @resp.body.must_equal 'x' * 20
+      @capturing.capture(false).must_be_nil
+    end
+
+    it 'does not capture errors or redirects' do
+      @capturing.sendError(500)
+      @capturing.capture(false).must_be_nil
+      @resp.errors.must_equal [500]
+
+      capturing = Java::RubyletRack::CapturingResponse.new(Fake::Response.new, 16)
+      capturing.sendRedirect('/elsewhere')
+      capturing.capture(false).must_be_nil
+    end
+
+    it 'does not capture a body written through getWriter' do
+      writer = @capturing.getWriter
+      writer.print('hello')
+      writer.flush
+      @resp.body.must_equal 'hello'
+      @capturing.capture(false).must_be_nil
+    end
+
+    it 'does not capture date headers' do
+      @capturing.setDateHeader('Last-Modified', 0)
+      @capturing.capture(false).must_be_nil
+    end
+
+    it 'does not capture once abandoned' do
+      write('hello')
+      @capturing.abandon
+      @capturing.capture(false).must_be_nil
+    end
+
+    it 'forgets what was reset' do
+      @capturing.setStatus(500)
+      @capturing.setHeader('X-Thing', 'a')
+      write('oops')
+      @capturing.reset
+      write('hello')
+      captured = @capturing.capture(false)
+      captured.status.must_equal 200
+      captured.containsHeader('X-Thing').must_equal false
+      captured.bodySize.must_equal 5
+    end
+  end
+
+  describe 'CapturedResponse' do
+    before do
+      headers = {
+        'Content-Type' => 'text/plain',
+        'Content-Length' => '5',
+        'ETag' => '"abc"',
+        'Cache-Control' => 'public, max-age=60'
+      }
+      @captured = Java::RubyletRack::CapturedResponse.new(200,
+                                                          headers.keys.to_java(:string),
+                                                          headers.values.to_java(:string),
+                                                          java.nio.ByteBuffer.wrap('hello'.to_java_bytes))
+    end
+
+    def respond(req, conditional = true, age = 3)
+      resp = Fake::Response.new
+      @captured.respond(req, resp, conditional, age)
+      resp
+    end
+
+    it 'sends its status, headers, body and age' do
+      resp = respond(Fake::Request.new)
+      resp.getStatus.must_equal 200
+      resp.getContentType.must_equal 'text/plain'
+      resp.getHeader('Content-Length').must_equal '5'
+      resp.getHeader('ETag').must_equal '"abc"'
+      resp.getHeader('Age').must_equal '3'
+      resp.body.must_equal 'hello'
+    end
+
+    it 'sends it again' do
+      respond(Fake::Request.new).body.must_equal 'hello'
+      resp = respond(Fake::Request.new, false, -1)
+      resp.body.must_equal 'hello'
+      resp.containsHeader('Age').must_equal false
+    end
+
+    it 'sends no body to a HEAD' do
+      resp = respond(Fake::Request.new(:method => 'HEAD'))
+      resp.getHeader('Content-Length').must_equal '5'
+      resp.body.must_equal ''
+    end
+
+    it 'sends a 304 without entity headers to a fresh conditional request' do
+      req = Fake::Request.new(:headers => { 'If-None-Match' => '"abc"' })
+      resp = respond(req)
+      resp.getStatus.must_equal 304
+      resp.getHeader('ETag').must_equal '"abc"'
+      resp.containsHeader('Content-Type').must_equal false
+      resp.containsHeader('Content-Length').must_equal false
+      resp.body.must_equal ''
+    end
+
+    it 'sends the whole response unless conditional' do
+      req = Fake::Request.new(:headers => { 'If-None-Match' => '"abc"' })
+      respond(req, false).getStatus.must_equal 200
+      req = Fake::Request.new(:headers => { 'If-None-Match' => '"other"' })
+      respond(req).body.must_equal 'hello'
+    end
+
+    it 'copies its body off heap' do
+      direct = @captured.toDirect
+      direct.bodySize.must_equal 5
+      direct.toDirect.must_be_same_as direct
+      resp = Fake::Response.new
+      direct.writeTo(resp, true, -1)
+      resp.body.must_equal 'hello'
+    end
+  end
+end
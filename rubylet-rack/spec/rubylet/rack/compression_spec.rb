@@ -0,0 +1,221 @@
+require 'servlet_spec_helper'
+
+module Rubylet::Rack
+  module Unzipping
+    LOREM = ('lorem ipsum dolor sit amet ' * 200).freeze
+
+    def read_all(stream)
+      out = java.io.ByteArrayOutputStream.new
+      buf = Java::byte[1024].new
+      while (n = stream.read(buf)) >= 0
+        out.write(buf, 0, n)
+      end
+      String.from_java_bytes(out.toByteArray)
+    end
+
+    def gunzip(bytes)
+      read_all(java.util.zip.GZIPInputStream.new(java.io.ByteArrayInputStream.new(bytes)))
+    end
+
+    def inflate(bytes)
+      read_all(java.util.zip.InflaterInputStream.new(java.io.ByteArrayInputStream.new(bytes)))
+    end
+  end
+
+  describe 'Compression' do
+    def negotiate(accept_encoding)
+      Java::RubyletRack::Compression.negotiate(accept_encoding)
+    end
+
+    it 'prefers gzip' do
+      negotiate('gzip').must_equal 'gzip'
+      negotiate('deflate, gzip').must_equal 'gzip'
+      negotiate('x-gzip').must_equal 'gzip'
+      negotiate('GZIP;q=0.5, deflate;q=0.5').must_equal 'gzip'
+    end
+
+    it 'chooses deflate when valued more or alone' do
+      negotiate('deflate').must_equal 'deflate'
+      negotiate('gzip;q=0.5, deflate').must_equal 'deflate'
+      negotiate('gzip;q=0, deflate;q=0.1').must_equal 'deflate'
+    end
+
+    it 'takes * for codings not listed' do
+      negotiate('*').must_equal 'gzip'
+      negotiate('*;q=0.1').must_equal 'gzip'
+      negotiate('gzip;q=0, *').must_equal 'deflate'
+      negotiate('identity, *;q=0').must_be_nil
+      negotiate('gzip, *;q=0').must_equal 'gzip'
+    end
+
+    it 'chooses neither when neither is acceptable' do
+      negotiate(nil).must_be_nil
+      negotiate('').must_be_nil
+      negotiate('identity').must_be_nil
+      negotiate('br, compress').must_be_nil
+      negotiate('gzip;q=0, deflate;q=0').must_be_nil
+      negotiate('gzip;q=bad').must_be_nil
+    end
+
+    it 'compresses configured types of compressible responses' do
+      compression = Java::RubyletRack::Compression.new('text/html, Application/JSON', 100, 6)
+      compression.isCompressible('text/html; charset=utf-8').must_equal true
+      compression.isCompressible('application/json').must_equal true
+      compression.isCompressible('image/png').must_equal false
+      compression.isCompressible(nil).must_equal false
+      compression.isCompressible(200, 'text/html', nil, nil, -1).must_equal true
+      compression.isCompressible(200, 'text/html', 'identity', 'public', 100).must_equal true
+      compression.isCompressible(200, 'text/html', nil, nil, 99).must_equal false
+      compression.isCompressible(200, 'text/html', 'gzip', nil, -1).must_equal false
+      compression.isCompressible(200, 'text/html', nil, 'no-transform', -1).must_equal false
+      [204, 206, 304].each do |status|
+        compression.isCompressible(status, 'text/html', nil, nil, -1).must_equal false
+      end
+    end
+  end
+
+  describe 'CompressingOutputStream' do
+    include Unzipping
+
+    before do
+      @pool = Java::RubyletRack::DeflaterPool.new(6, 2)
+      @resp = Fake::Response.new
+      @bytes = java.io.ByteArrayOutputStream.new
+    end
+
+    def compressor(encoding, min_size = 0)
+      Java::RubyletRack::CompressingOutputStream.new(@bytes, @resp, encoding, @pool, min_size)
+    end
+
+    def write(stream, str)
+      stream.write(str.to_java_bytes)
+    end
+
+    # Inflate a raw deflate stream, which need not be finished.
+    def inflate_raw(bytes, offset)
+      inflater = java.util.zip.Inflater.new(true)
+      inflater.setInput(bytes, offset, bytes.length - offset)
+      buf = Java::byte[4096].new
+      n = inflater.inflate(buf)
+      inflater.end
+      String.from_java_bytes(java.util.Arrays.copyOf(buf, n))
+    end
+
+    body = Unzipping::LOREM
+
+    it 'gzips' do
+      stream = compressor('gzip')
+      write(stream, body[0, 1000])
+      write(stream, body[1000..-1])
+      stream.close
+      @resp.getHeader('Content-Encoding').must_equal 'gzip'
+      @bytes.size.must_be :<, body.size / 10
+      gunzip(@bytes.toByteArray).must_equal body
+    end
+
+    it 'deflates' do
+      stream = compressor('deflate')
+      write(stream, body)
+      stream.close
+      @resp.getHeader('Content-Encoding').must_equal 'deflate'
+      inflate(@bytes.toByteArray).must_equal body
+    end
+
+    it 'sends everything written so far on flush' do
+      stream = compressor('gzip')
+      write(stream, 'first part ')
+      stream.flush
+      inflate_raw(@bytes.toByteArray, 10).must_equal 'first part '
+      write(stream, 'second part')
+      stream.flush
+      inflate_raw(@bytes.toByteArray, 10).must_equal 'first part second part'
+      stream.close
+      gunzip(@bytes.toByteArray).must_equal 'first part second part'
+    end
+
+    it 'sends a body shorter than its minimum uncompressed' do
+      stream = compressor('gzip', 100)
+      write(stream, 'hello')
+      write(stream, ' world')
+      @bytes.size.must_equal 0
+      stream.close
+      String.from_java_bytes(@bytes.toByteArray).must_equal 'hello world'
+      @resp.getHeader('Content-Length').must_equal '11'
+      @resp.containsHeader('Content-Encoding').must_equal false
+    end
+
+    it 'compresses a body reaching its minimum' do
+      stream = compressor('gzip', 100)
+      write(stream, body[0, 50])
+      write(stream, body[50..-1])
+      stream.close
+      @resp.getHeader('Content-Encoding').must_equal 'gzip'
+      @resp.containsHeader('Content-Length').must_equal false
+      gunzip(@bytes.toByteArray).must_equal body
+    end
+
+    it 'refuses writes once closed' do
+      stream = compressor('gzip')
+      stream.close
+      proc { write(stream, 'late') }.must_raise Java::JavaIo::IOException
+    end
+  end
+
+  describe 'ResponseHelper compression' do
+    include ServletHelpers
+    include Unzipping
+
+    body = Unzipping::LOREM
+
+    def app(headers = {}, body = Unzipping::LOREM)
+      lambda { |env| [200, { 'Content-Type' => 'text/html' }.merge(headers), [body]] }
+    end
+
+    def serve_compressed(app, headers = { 'Accept-Encoding' => 'gzip' }, method = 'GET')
+      serve(app, Fake::Request.new(:method => method, :headers => headers), 'rubylet.compress' => 'true')
+    end
+
+    it 'compresses for a client accepting it' do
+      resp = serve_compressed(app('ETag' => '"abc"'))
+      resp.getHeader('Content-Encoding').must_equal 'gzip'
+      resp.getHeader('Vary').must_equal 'Accept-Encoding'
+      resp.getHeader('ETag').must_equal 'W/"abc"'
+      resp.containsHeader('Content-Length').must_equal false
+      gunzip(resp.body.to_java_bytes).must_equal body
+    end
+
+    it 'varies but does not compress for a client not accepting it' do
+      resp = serve_compressed(app('ETag' => '"abc"'), {})
+      resp.containsHeader('Content-Encoding').must_equal false
+      resp.getHeader('Vary').must_equal 'Accept-Encoding'
+      resp.getHeader('ETag').must_equal '"abc"'
+      resp.getHeader('Content-Length').must_equal body.size.to_s
+      resp.body.must_equal body
+    end
+
+    it 'varies but does not compress a HEAD' do
+      resp = serve_compressed(app, { 'Accept-Encoding' => 'gzip' }, 'HEAD')
+      resp.containsHeader('Content-Encoding').must_equal false
+      resp.getHeader('Vary').must_equal 'Accept-Encoding'
+    end
+
+    it 'adds to the Vary given' do
+      serve_compressed(app('Vary' => 'Cookie')).getHeader('Vary').must_equal 'Cookie, Accept-Encoding'
+      serve_compressed(app('Vary' => 'accept-encoding')).getHeader('Vary').must_equal 'accept-encoding'
+      serve_compressed(app('Vary' => '*')).getHeader('Vary').must_equal '*'
+    end
+
+    it 'keeps a weak ETag' do
+      serve_compressed(app('ETag' => 'W/"abc"')).getHeader('ETag').must_equal 'W/"abc"'
+    end
+
+    it 'leaves alone what it may not compress' do
+      resp = serve_compressed(app({ 'ETag' => '"abc"' }, 'short'))
+      resp.containsHeader('Content-Encoding').must_equal false
+      resp.containsHeader('Vary').must_equal false
+      resp.getHeader('ETag').must_equal '"abc"'
+      resp = serve_compressed(app('Content-Type' => 'image/png'))
+      resp.containsHeader('Content-Encoding').must_equal false
+    end
+  end
+end
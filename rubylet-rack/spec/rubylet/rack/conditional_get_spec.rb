@@ -0,0 +1,143 @@
+require 'servlet_spec_helper'
+require 'zlib'
+
+module Rubylet::Rack
+  # A body that is not an array, and knows if it was closed.
+  class ClosableBody
+    def initialize(*parts)
+      @parts = parts
+      @closed = false
+    end
+
+    def each(&block)
+      @parts.each(&block)
+    end
+
+    def close
+      @closed = true
+    end
+
+    def closed?
+      @closed
+    end
+  end
+
+  describe 'ConditionalGet' do
+    def fresh?(headers, etag, last_modified = nil)
+      Java::RubyletRack::ConditionalGet.isFresh(Fake::Request.new(:headers => headers), etag, last_modified)
+    end
+
+    def etag(body)
+      Java::RubyletRack::ConditionalGet.etag(body, body.join.bytesize)
+    end
+
+    modified = 'Tue, 01 Jan 2013 00:00:00 GMT'
+    earlier = 'Mon, 31 Dec 2012 00:00:00 GMT'
+    later = 'Wed, 02 Jan 2013 00:00:00 GMT'
+
+    it 'tags a body by its length and CRC' do
+      etag(['hello', ' world']).must_equal %Q{W/"b-#{Zlib.crc32('hello world').to_s(16)}"}
+    end
+
+    it 'tags the bytes, however they are split' do
+      etag(['hello', ' world']).must_equal etag(['hel', 'lo wo', 'rld'])
+      etag(['hello', ' world']).wont_equal etag(['hello', ' World'])
+      etag(['--hello'[2..-1]]).must_equal etag(['hello'])
+    end
+
+    it 'tags bodies up to its size' do
+      get = Java::RubyletRack::ConditionalGet.new(10)
+      get.isTaggable(10).must_equal true
+      get.isTaggable(11).must_equal false
+      get.isTaggable(0).must_equal false
+    end
+
+    it 'is not fresh without conditions' do
+      fresh?({}, '"abc"', modified).must_equal false
+    end
+
+    it 'compares entity tags weakly' do
+      fresh?({ 'If-None-Match' => '"abc"' }, '"abc"').must_equal true
+      fresh?({ 'If-None-Match' => 'W/"abc"' }, '"abc"').must_equal true
+      fresh?({ 'If-None-Match' => '"abc"' }, 'W/"abc"').must_equal true
+      fresh?({ 'If-None-Match' => '"xyz", W/"abc"' }, '"abc"').must_equal true
+      fresh?({ 'If-None-Match' => '*' }, '"abc"').must_equal true
+      fresh?({ 'If-None-Match' => '"xyz"' }, '"abc"').must_equal false
+      fresh?({ 'If-None-Match' => '"ABC"' }, '"abc"').must_equal false
+      fresh?({ 'If-None-Match' => '*' }, nil).must_equal false
+    end
+
+    it 'compares modification dates' do
+      fresh?({ 'If-Modified-Since' => modified }, nil, modified).must_equal true
+      fresh?({ 'If-Modified-Since' => later }, nil, modified).must_equal true
+      fresh?({ 'If-Modified-Since' => earlier }, nil, modified).must_equal false
+      fresh?({ 'If-Modified-Since' => 'yesterday' }, nil, modified).must_equal false
+      fresh?({ 'If-Modified-Since' => modified }, nil, nil).must_equal false
+    end
+
+    it 'needs every condition given to hold' do
+      fresh?({ 'If-None-Match' => '"abc"', 'If-Modified-Since' => modified }, '"abc"', modified).must_equal true
+      fresh?({ 'If-None-Match' => '"abc"', 'If-Modified-Since' => earlier }, '"abc"', modified).must_equal false
+      fresh?({ 'If-None-Match' => '"xyz"', 'If-Modified-Since' => modified }, '"abc"', modified).must_equal false
+    end
+  end
+
+  describe 'ResponseHelper conditional GET' do
+    include ServletHelpers
+
+    def serve_tagged(app, headers = {}, method = 'GET')
+      serve(app, Fake::Request.new(:method => method, :headers => headers), 'rubylet.etag' => 'true')
+    end
+
+    def app(headers = {}, body = ['hello', ' world'], status = 200)
+      lambda { |env| [status, { 'Content-Type' => 'text/plain' }.merge(headers), body] }
+    end
+
+    tag = %Q{W/"b-#{Zlib.crc32('hello world').to_s(16)}"}
+
+    it 'tags an array body' do
+      resp = serve_tagged(app)
+      resp.getStatus.must_equal 200
+      resp.getHeader('ETag').must_equal tag
+      resp.body.must_equal 'hello world'
+    end
+
+    it 'sends a 304 without entity headers or body to a fresh request' do
+      resp = serve_tagged(app, 'If-None-Match' => tag)
+      resp.getStatus.must_equal 304
+      resp.getHeader('ETag').must_equal tag
+      resp.containsHeader('Content-Type').must_equal false
+      resp.containsHeader('Content-Length').must_equal false
+      resp.body.must_equal ''
+    end
+
+    it 'closes the body it does not send' do
+      body = ClosableBody.new('hello')
+      resp = serve_tagged(app({ 'ETag' => '"abc"' }, body), 'If-None-Match' => '"abc"')
+      resp.getStatus.must_equal 304
+      body.closed?.must_equal true
+    end
+
+    it 'checks the validators the app gave' do
+      modified = 'Tue, 01 Jan 2013 00:00:00 GMT'
+      resp = serve_tagged(app('Last-Modified' => modified), 'If-Modified-Since' => modified)
+      resp.getStatus.must_equal 304
+      resp.containsHeader('ETag').must_equal false
+      resp = serve_tagged(app('ETag' => '"abc"'), 'If-None-Match' => tag)
+      resp.getStatus.must_equal 200
+      resp.getHeader('ETag').must_equal '"abc"'
+    end
+
+    it 'does not tag a no-cache response' do
+      resp = serve_tagged(app('Cache-Control' => 'no-cache'), 'If-None-Match' => '*')
+      resp.getStatus.must_equal 200
+      resp.containsHeader('ETag').must_equal false
+    end
+
+    it 'answers only a GET or HEAD of a 200' do
+      serve_tagged(app, { 'If-None-Match' => tag }, 'HEAD').getStatus.must_equal 304
+      serve_tagged(app, { 'If-None-Match' => tag }, 'POST').getStatus.must_equal 200
+      serve_tagged(app({ 'ETag' => tag }, ['gone'], 404), 'If-None-Match' => tag).getStatus.must_equal 404
+    end
+  end
+end
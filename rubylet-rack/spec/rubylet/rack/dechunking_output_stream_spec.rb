@@ -0,0 +1,99 @@
+require 'ext_spec_helper'
+
+module Rubylet::Rack
+
+  describe 'DechunkingOutputStream' do
+
+    data = ['some', 'data', "\n in chunks.", 'x' * 70000]
+
+    def chunk(strs, last = "0\r\n\r\n")
+      strs.map do |str|
+        str.bytesize.to_s(16) + "\r\n" + str + "\r\n"
+      end.join + last
+    end
+
+    # Write +parts+ through a dechunking stream, checking it is
+    # complete, and return what came out.
+    def dechunk(*parts)
+      out = java.io.ByteArrayOutputStream.new
+      stream = Java::RubyletRack::DechunkingOutputStream.new(out)
+      parts.each do |part|
+        bytes = part.to_java_bytes
+        stream.write(bytes, 0, bytes.length)
+      end
+      stream.checkComplete
+      String.from_java_bytes(out.toByteArray)
+    end
+
+    def split(str, size)
+      str.scan(/.{1,#{size}}/m)
+    end
+
+    it 'de-chunks a chunked body' do
+      dechunk(chunk(data)).must_equal data.join
+    end
+
+    it 'de-chunks a body split across writes in any way' do
+      body = chunk(data)
+      [1, 2, 3, 5, 7, 100, 5000].each do |size|
+        [size, dechunk(*split(body, size))].must_equal [size, data.join]
+      end
+    end
+
+    it 'de-chunks a byte at a time with the single byte write' do
+      out = java.io.ByteArrayOutputStream.new
+      stream = Java::RubyletRack::DechunkingOutputStream.new(out)
+      chunk(['hello', ' world']).each_byte { |b| stream.write(b) }
+      stream.checkComplete
+      String.from_java_bytes(out.toByteArray).must_equal 'hello world'
+    end
+
+    it 'discards chunk extensions' do
+      body = "4;name=value\r\nsome\r\n4 ; a=1;b=\"x\"\r\ndata\r\n0;last\r\n\r\n"
+      [1, 3, body.bytesize].each do |size|
+        dechunk(*split(body, size)).must_equal 'somedata'
+      end
+    end
+
+    it 'discards trailers' do
+      body = chunk(['some', 'data'], "0\r\nX-Trailer: 1\r\nX-Other: two\r\n\r\n")
+      [1, 3, body.bytesize].each do |size|
+        dechunk(*split(body, size)).must_equal 'somedata'
+      end
+    end
+
+    it 'discards anything after the last chunk' do
+      dechunk(chunk(['some']), 'garbage').must_equal 'some'
+    end
+
+    it 'accepts bare LF line endings' do
+      dechunk("4\nsome\n4\ndata\n0\n\n").must_equal 'somedata'
+    end
+
+    it 'accepts upper and lower case hex sizes' do
+      dechunk("A\r\n0123456789\r\na\r\n0123456789\r\n0\r\n\r\n").must_equal '0123456789' * 2
+    end
+
+    it 'forgives a missing final CRLF' do
+      dechunk("4\r\nsome\r\n0\r\n").must_equal 'some'
+    end
+
+    it 'passes through a body that is not chunked' do
+      dechunk('not chunked', ' at all').must_equal 'not chunked at all'
+      dechunk.must_equal ''
+    end
+
+    it 'fails on a malformed body' do
+      e = proc { dechunk("4\r\nsome\r\nzz\r\n") }.must_raise Java::JavaIo::IOException
+      e.message.must_match(/malformed/)
+      proc { dechunk("4\r\nsomething\r\n0\r\n\r\n") }.must_raise Java::JavaIo::IOException
+    end
+
+    it 'fails on a body cut off before the last chunk' do
+      e = proc { dechunk(chunk(['some', 'data'], '')) }.must_raise Java::JavaIo::IOException
+      e.message.must_match(/last chunk/)
+      proc { dechunk("4\r\nso") }.must_raise Java::JavaIo::IOException
+      proc { dechunk("0\r\nX-Trailer: 1") }.must_raise Java::JavaIo::IOException
+    end
+  end
+end
@@ -0,0 +1,89 @@
+require 'ext_spec_helper'
+require 'thread'
+
+module Rubylet::Rack
+
+  describe 'HashedWheelTimer' do
+    # 10ms ticks, so one turn of the wheel is 80ms.
+    before do
+      @name = "spec-timer-#{object_id}"
+      @timer = Java::RubyletRack::HashedWheelTimer.new(@name, 10, 8)
+    end
+
+    after do
+      @timer.stop
+    end
+
+    def schedule(delay_millis, &block)
+      @timer.schedule(java.lang.Runnable.impl { block.call }, delay_millis)
+    end
+
+    def thread_started?
+      java.lang.Thread.getAllStackTraces.keySet.any? { |t| t.getName == @name }
+    end
+
+    it 'starts its thread on the first schedule' do
+      thread_started?.must_equal false
+      schedule(1000) { }
+      thread_started?.must_equal true
+    end
+
+    it 'runs a task once its delay has passed' do
+      done = Queue.new
+      start = Time.now
+      timeout = schedule(50) { done << Time.now }
+      (done.pop - start).must_be :>=, 0.05
+      timeout.isExpired.must_equal true
+      @timer.pending.must_equal 0
+    end
+
+    it 'runs tasks in deadline order, over more than one turn' do
+      order = Queue.new
+      [120, 30, 250, 60].each { |delay| schedule(delay) { order << delay } }
+      start = Time.now
+      Array.new(4) { order.pop }.must_equal [30, 60, 120, 250]
+      (Time.now - start).must_be :>=, 0.24
+    end
+
+    it 'does not run a task cancelled before it reached the wheel' do
+      ran = false
+      timeout = schedule(20) { ran = true }
+      timeout.cancel.must_equal true
+      timeout.cancel.must_equal false
+      timeout.isCancelled.must_equal true
+      @timer.pending.must_equal 0
+      sleep 0.1
+      ran.must_equal false
+    end
+
+    it 'does not run a task cancelled in the wheel' do
+      ran = false
+      timeout = schedule(100) { ran = true }
+      sleep 0.05
+      timeout.cancel.must_equal true
+      sleep 0.1
+      ran.must_equal false
+    end
+
+    it 'cannot cancel an expired task' do
+      done = Queue.new
+      timeout = schedule(10) { done << true }
+      done.pop
+      timeout.cancel.must_equal false
+      timeout.isCancelled.must_equal false
+    end
+
+    it 'counts tasks that fail and runs the rest' do
+      done = Queue.new
+      schedule(10) { raise 'oops' }
+      schedule(30) { done << true }
+      done.pop.must_equal true
+      @timer.failures.must_equal 1
+    end
+
+    it 'refuses tasks once stopped' do
+      @timer.stop
+      proc { schedule(10) { } }.must_raise Java::JavaLang::IllegalStateException
+    end
+  end
+end
@@ -0,0 +1,91 @@
+require 'ext_spec_helper'
+require 'stringio'
+require 'zlib'
+
+module Rubylet::Rack
+
+  describe 'InflatingInputStream' do
+
+    data = (1..2000).map { |i| "line #{i} of some compressible text\n" }.join
+
+    before :each do
+      @pool = Java::RubyletRack::InflaterPool.new(2)
+    end
+
+    def gzip(str, opts = {})
+      io = StringIO.new(''.force_encoding('BINARY'))
+      gz = Zlib::GzipWriter.new(io)
+      gz.orig_name = opts[:name] if opts[:name]
+      gz.comment = opts[:comment] if opts[:comment]
+      gz.write(str)
+      gz.close
+      io.string
+    end
+
+    def raw_deflate(str)
+      deflate = Zlib::Deflate.new(Zlib::DEFAULT_COMPRESSION, -Zlib::MAX_WBITS)
+      deflate.deflate(str, Zlib::FINISH).tap { deflate.close }
+    end
+
+    def inflate(compressed, gzip, limit = -1)
+      stream = Java::RubyletRack::InflatingInputStream.new(TrickleStream.new(compressed, 100),
+                                                           gzip,
+                                                           @pool,
+                                                           limit)
+      out = java.io.ByteArrayOutputStream.new
+      buf = Java::byte[1000].new
+      while (n = stream.read(buf, 0, buf.length)) >= 0
+        out.write(buf, 0, n)
+      end
+      stream.close
+      String.from_java_bytes(out.toByteArray)
+    end
+
+    it 'inflates gzip' do
+      inflate(gzip(data), true).must_equal data
+    end
+
+    it 'inflates gzip with a name and comment' do
+      inflate(gzip(data, :name => 'data.txt', :comment => 'some text'), true).must_equal data
+    end
+
+    it 'inflates concatenated gzip members as one' do
+      inflate(gzip(data) + gzip('and more'), true).must_equal data + 'and more'
+    end
+
+    it 'inflates an empty gzip body' do
+      inflate(gzip(''), true).must_equal ''
+    end
+
+    it 'inflates zlib deflate' do
+      inflate(Zlib::Deflate.deflate(data), false).must_equal data
+    end
+
+    it 'inflates raw deflate' do
+      inflate(raw_deflate(data), false).must_equal data
+    end
+
+    it 'fails on a corrupt gzip trailer' do
+      compressed = gzip(data)
+      compressed[-5] = (compressed[-5].ord ^ 0xff).chr
+      proc { inflate(compressed, true) }.must_raise Java::JavaUtilZip::ZipException
+    end
+
+    it 'fails on a truncated body' do
+      compressed = gzip(data)
+      proc { inflate(compressed[0, compressed.bytesize / 2], true) }.
+        must_raise Java::JavaIo::EOFException
+    end
+
+    it 'inflates up to the limit' do
+      inflate(gzip(data), true, data.bytesize).must_equal data
+      inflate(raw_deflate(data), false, data.bytesize).must_equal data
+    end
+
+    it 'fails beyond the limit' do
+      e = proc { inflate(gzip(data), true, data.bytesize - 1) }.must_raise Java::JavaIo::IOException
+      e.message.must_match(/larger than/)
+      proc { inflate(Zlib::Deflate.deflate(data), false, 100) }.must_raise Java::JavaIo::IOException
+    end
+  end
+end
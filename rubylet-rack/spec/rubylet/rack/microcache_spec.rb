@@ -0,0 +1,164 @@
+require 'servlet_spec_helper'
+
+module Rubylet::Rack
+
+  describe 'Microcache' do
+    def static(name, type, arg)
+      method = Java::RubyletRack::Microcache.java_class.to_java.getDeclaredMethod(name, type)
+      method.accessible = true
+      method.invoke(nil, arg)
+    end
+
+    def ttl(cache_control)
+      static('getTimeToLive', java.lang.String.java_class, cache_control)
+    end
+
+    def cacheable_status?(status)
+      static('isCacheableStatus', Java::int, status.to_java(:int))
+    end
+
+    def captured(body, headers = {}, status = 200)
+      headers = { 'Cache-Control' => 'public, max-age=60' }.merge(headers)
+      Java::RubyletRack::CapturedResponse.new(status,
+                                              headers.keys.to_java(:string),
+                                              headers.values.to_java(:string),
+                                              java.nio.ByteBuffer.wrap(body.to_java_bytes))
+    end
+
+    def request(path = '/news', headers = {})
+      path, query = path.split('?', 2)
+      Fake::Request.new(:path => path, :query => query, :headers => headers)
+    end
+
+    # The body served from the cache for +req+, or nil on a miss.
+    def serve(req)
+      resp = Fake::Response.new
+      @cache.serve(req, resp, false) ? resp.body : nil
+    end
+
+    # The size the cache counts for +captured+ stored under +req+.
+    def entry_size(req, captured)
+      key = "#{req.getMethod} #{req.getRequestURL}#{req.getQueryString && '?' + req.getQueryString}"
+      captured.getBodySize + captured.getHeaderSize + 2 * key.length
+    end
+
+    before do
+      @cache = Java::RubyletRack::Microcache.new(1024 * 1024, 1024)
+    end
+
+    it 'parses the time to live from Cache-Control' do
+      ttl(nil).must_equal 0
+      ttl('public, max-age=60').must_equal 60
+      ttl('PUBLIC, Max-Age=60').must_equal 60
+      ttl('public, max-age="30"').must_equal 30
+      ttl('public, s-maxage=10, max-age=60').must_equal 10
+      ttl('max-age=60, public, s-maxage=0').must_equal 0
+    end
+
+    it 'allows no caching unless public' do
+      ttl('max-age=60').must_equal 0
+      ttl('public, max-age=60, private').must_equal 0
+      ttl('public, max-age=60, private="Set-Cookie"').must_equal 0
+      ttl('public, max-age=60, no-cache').must_equal 0
+      ttl('public, max-age=60, no-store').must_equal 0
+      ttl('public').must_equal 0
+      ttl('public, max-age=soon').must_equal 0
+      ttl('public, max-age=-5').must_equal 0
+    end
+
+    it 'caches only some statuses' do
+      [200, 203, 301, 404, 410].each { |s| cacheable_status?(s).must_equal true }
+      [201, 204, 206, 302, 304, 500, 503].each { |s| cacheable_status?(s).must_equal false }
+    end
+
+    it 'serves a stored response' do
+      serve(request).must_be_nil
+      @cache.put(request, captured('hello'))
+      serve(request).must_equal 'hello'
+      serve(request('/news?page=2')).must_be_nil
+      @cache.hits.must_equal 1
+      @cache.misses.must_equal 2
+      @cache.stores.must_equal 1
+    end
+
+    it 'does not store what it may not' do
+      @cache.put(request, nil)
+      @cache.put(request, captured('hello', 'Set-Cookie' => 'a=b'))
+      @cache.put(request, captured('hello', 'Cache-Control' => 'private, max-age=60'))
+      @cache.put(request, captured('hello', 'Vary' => 'Accept, *'))
+      @cache.put(request, captured('hello', {}, 500))
+      @cache.put(request, captured('x' * 1025))
+      serve(request).must_be_nil
+      @cache.count.must_equal 0
+      @cache.size.must_equal 0
+    end
+
+    it 'keeps a variant per value of the Vary headers' do
+      gzip = request('/news', 'Accept-Encoding' => 'gzip')
+      plain = request('/news', 'Accept-Encoding' => 'identity')
+      @cache.put(gzip, captured('zipped', 'Vary' => 'Accept-Encoding'))
+      @cache.put(plain, captured('plain', 'Vary' => 'accept-encoding'))
+      @cache.count.must_equal 2
+      serve(request('/news', 'Accept-Encoding' => 'gzip')).must_equal 'zipped'
+      serve(request('/news', 'accept-encoding' => 'identity')).must_equal 'plain'
+      serve(request('/news', 'Accept-Encoding' => 'br')).must_be_nil
+      serve(request('/news')).must_be_nil
+    end
+
+    it 'replaces a variant with the same values' do
+      @cache.put(request, captured('old'))
+      @cache.put(request, captured('new'))
+      serve(request).must_equal 'new'
+      @cache.count.must_equal 1
+      @cache.size.must_equal entry_size(request, captured('new'))
+    end
+
+    it 'starts over when Vary changes' do
+      gzip = request('/news', 'Accept-Encoding' => 'gzip', 'Accept' => 'text/html')
+      @cache.put(gzip, captured('zipped', 'Vary' => 'Accept-Encoding'))
+      @cache.put(gzip, captured('html', 'Vary' => 'Accept'))
+      @cache.count.must_equal 1
+      serve(gzip).must_equal 'html'
+    end
+
+    it 'evicts the least recently used to stay within its size' do
+      one = captured('x' * 100)
+      max = entry_size(request('/a'), one) * 2
+      @cache = Java::RubyletRack::Microcache.new(max, 1024)
+      @cache.put(request('/a'), one)
+      @cache.put(request('/b'), one)
+      @cache.size.must_equal max
+      serve(request('/a')).wont_be_nil
+      @cache.put(request('/c'), one)
+      serve(request('/b')).must_be_nil
+      serve(request('/a')).wont_be_nil
+      serve(request('/c')).wont_be_nil
+      @cache.evictions.must_equal 1
+      @cache.count.must_equal 2
+      @cache.size.must_equal max
+    end
+
+    it 'does not store a response larger than the cache' do
+      @cache = Java::RubyletRack::Microcache.new(50, 1024)
+      @cache.put(request, captured('x' * 100))
+      @cache.count.must_equal 0
+    end
+
+    it 'purges a path with or without its query' do
+      @cache.put(request('/news'), captured('a'))
+      @cache.put(request('/news?page=2'), captured('b'))
+      @cache.put(Fake::Request.new(:method => 'HEAD', :path => '/news'), captured(''))
+      @cache.put(request('/other'), captured('c'))
+      @cache.purge('/news?page=2').must_equal 1
+      serve(request('/news')).must_equal 'a'
+      @cache.purge('/news').must_equal 2
+      serve(request('/news')).must_be_nil
+      @cache.count.must_equal 1
+      @cache.size.must_equal entry_size(request('/other'), captured('c'))
+      @cache.purgeAll
+      @cache.count.must_equal 0
+      @cache.size.must_equal 0
+      @cache.purges.must_equal 4
+    end
+  end
+end
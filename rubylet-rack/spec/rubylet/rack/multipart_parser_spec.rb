@@ -0,0 +1,112 @@
+require 'ext_spec_helper'
+require 'rack/multipart'
+require 'stringio'
+
+module Rubylet::Rack
+
+  describe 'MultipartParser' do
+
+    MultipartParser = Java::RubyletRack::MultipartParser
+
+    BOUNDARY = 'AaB03x'
+
+    def part(name, value, filename = nil, type = nil)
+      head = "--#{BOUNDARY}\r\nContent-Disposition: form-data; name=\"#{name}\""
+      head << "; filename=\"#{filename}\"" if filename
+      head << "\r\n"
+      head << "Content-Type: #{type}\r\n" if type
+      (head << "\r\n" << value.dup.force_encoding('BINARY') << "\r\n").force_encoding('BINARY')
+    end
+
+    def body(*parts)
+      (parts.join + "--#{BOUNDARY}--\r\n").force_encoding('BINARY')
+    end
+
+    # Compare uploads by their contents rather than their tempfiles.
+    def summarize(value)
+      case value
+      when Hash
+        if file = value[:tempfile]
+          file.rewind
+          value.merge(:tempfile => file.read)
+        else
+          Hash[value.map { |k, v| [k, summarize(v)] }]
+        end
+      when Array
+        value.map { |v| summarize(v) }
+      else
+        value
+      end
+    end
+
+    def rack_parse(data)
+      env = {
+        'CONTENT_TYPE' => "multipart/form-data; boundary=#{BOUNDARY}",
+        'CONTENT_LENGTH' => data.bytesize.to_s,
+        'rack.input' => StringIO.new(data)
+      }
+      summarize(::Rack::Multipart.parse_multipart(env))
+    rescue EOFError
+      :eof
+    end
+
+    def java_parse(data)
+      parser = MultipartParser.new(JRuby.runtime, TrickleStream.new(data, 1000), BOUNDARY, nil)
+      summarize(parser.parse)
+    rescue Java::JavaIo::EOFException
+      :eof
+    end
+
+    def must_parse_as_rack(data)
+      expected = rack_parse(data)
+      java_parse(data).must_equal expected
+      expected
+    end
+
+    it 'parses fields as Rack does' do
+      must_parse_as_rack(body(part('a', '1'), part('b', 'two words'))).
+        must_equal('a' => '1', 'b' => 'two words')
+    end
+
+    it 'parses nested params as Rack does' do
+      must_parse_as_rack(body(part('user[name]', 'bob'),
+                              part('user[tags][]', 'x'),
+                              part('user[tags][]', 'y'),
+                              part('rows[][id]', '1'),
+                              part('rows[][id]', '2')))
+    end
+
+    it 'parses uploads as Rack does' do
+      must_parse_as_rack(body(part('f1', 'hello', 'C:\\path\\to\\file.txt', 'text/plain'),
+                              part('f2', '', '', 'application/octet-stream'),
+                              part('f3', 'x', 'a%20b+c.txt', 'text/plain')))
+    end
+
+    it 'parses uploads holding near-boundaries as Rack does' do
+      data = (0..255).map(&:chr).join * 500 +
+        "\r\n--#{BOUNDARY}x" + "\r\n--AaB0" + "\r\n\r\n--"
+      must_parse_as_rack(body(part('f', data, 'up.bin', 'application/octet-stream'),
+                              part('after', 'yes')))
+    end
+
+    it 'skips a preamble as Rack does' do
+      must_parse_as_rack("junk preamble\r\n" + body(part('a', "\r\n-- not the boundary\r\n")))
+    end
+
+    it 'parses an empty body as Rack does' do
+      must_parse_as_rack("--#{BOUNDARY}--\r\n")
+    end
+
+    it 'fails on a body cut short as Rack does' do
+      data = "--#{BOUNDARY}\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nabc"
+      must_parse_as_rack(data).must_equal :eof
+    end
+
+    it 'finds the boundary' do
+      MultipartParser.getBoundary("multipart/form-data; boundary=#{BOUNDARY}").must_equal BOUNDARY
+      MultipartParser.getBoundary("multipart/form-data; boundary=\"#{BOUNDARY}\"").must_equal BOUNDARY
+      MultipartParser.getBoundary('application/x-www-form-urlencoded').must_be_nil
+      MultipartParser.getBoundary(nil).must_be_nil
+    end
+  end
+end
@@ -0,0 +1,271 @@
+require 'servlet_spec_helper'
+
+module Rubylet::Rack
+  # Runs the drains an OutboundQueue starts only when told to.
+  class ManualAsyncContext < Fake::AsyncContext
+    attr_reader :events
+
+    def initialize(*args)
+      super
+      @drains = []
+      @events = []
+    end
+
+    def start(runnable)
+      @drains << runnable
+    end
+
+    def drains
+      @drains.size
+    end
+
+    def run_drains
+      @drains.shift.run until @drains.empty?
+    end
+
+    def complete
+      @events << :complete
+      super
+    end
+  end
+
+  # An output stream calling back on each write and flush.
+  class HookedOutput < Fake::Output
+    attr_accessor :on_write, :on_flush
+
+    def write(*args)
+      super
+      on_write.call if on_write
+    end
+
+    def flush
+      super
+      on_flush.call if on_flush
+    end
+  end
+
+  # A Servlet 3.1 output stream, ready only when told.
+  class ReadyOutput < HookedOutput
+    attr_accessor :ready, :on_ready
+    attr_reader :listener
+
+    def initialize
+      super
+      @ready = true
+    end
+
+    def isReady
+      hook, @on_ready = @on_ready, nil
+      hook.call if hook
+      @ready
+    end
+
+    def setWriteListener(listener)
+      @listener = listener
+    end
+  end
+
+  describe 'OutboundQueue' do
+    def new_queue(out, high = 10, low = 5)
+      @resp = Fake::Response.new(out)
+      @ctx = ManualAsyncContext.new(Fake::Request.new, @resp)
+      queue = Java::RubyletRack::OutboundQueue.java_class.to_java
+      ctor = queue.getDeclaredConstructor(Java::JavaxServlet::AsyncContext.java_class, Java::int, Java::int)
+      ctor.accessible = true
+      ctor.newInstance(@ctx, high.to_java(:int), low.to_java(:int))
+    end
+
+    def write(queue, str)
+      queue.write(str.to_java_bytes)
+    end
+
+    describe 'draining by AsyncContext#start' do
+      before do
+        skip 'Servlet 3.1 output is non-blocking' if Java::RubyletRack::OutboundQueue.isNonBlockingSupported
+        @out = HookedOutput.new
+        @queue = new_queue(@out)
+      end
+
+      it 'sends nothing until flushed' do
+        write(@queue, 'abc')
+        @ctx.drains.must_equal 0
+        @queue.flush
+        @ctx.run_drains
+        @out.string.must_equal 'abc'
+        @out.flushes.must_equal 1
+      end
+
+      it 'starts one drainer at a time' do
+        write(@queue, 'a')
+        @queue.flush
+        write(@queue, 'b')
+        @queue.flush
+        @ctx.drains.must_equal 1
+        @ctx.run_drains
+        @out.string.must_equal 'ab'
+      end
+
+      it 'keeps draining chunks queued as the drainer finished' do
+        queue = @queue
+        @out.on_flush = lambda do
+          @out.on_flush = nil
+          write(queue, 'b')
+          queue.flush
+        end
+        write(@queue, 'a')
+        @queue.flush
+        @ctx.run_drains
+        @out.string.must_equal 'ab'
+        @out.flushes.must_equal 2
+      end
+
+      it 'writes a shared buffer from its position' do
+        buffer = java.nio.ByteBuffer.wrap('--hello'.to_java_bytes)
+        buffer.position(2)
+        @queue.writeShared(buffer)
+        @queue.flush
+        @ctx.run_drains
+        @out.string.must_equal 'hello'
+        buffer.position.must_equal 2
+      end
+
+      it 'is not writable from the high watermark down to the low' do
+        writable = []
+        queue = @queue
+        @out.on_write = lambda { writable << queue.writable? }
+        write(@queue, 'x' * 7)
+        @queue.writable?.must_equal true
+        write(@queue, 'x' * 5)
+        @queue.writable?.must_equal false
+        @queue.queued_bytes.must_equal 12
+        @queue.flush
+        @ctx.run_drains
+        writable.must_equal [false, true]
+        @queue.queued_bytes.must_equal 0
+      end
+
+      it 'waits for writable' do
+        write(@queue, 'x' * 12)
+        @queue.awaitWritable(10).must_equal false
+        @queue.flush
+        drainer = Thread.new { sleep 0.1; @ctx.run_drains }
+        @queue.awaitWritable(5000).must_equal true
+        drainer.join
+      end
+
+      it 'completes after sending what was queued' do
+        @out.on_write = lambda { @ctx.events << :write }
+        write(@queue, 'a')
+        @queue.flush
+        @queue.complete
+        @ctx.drains.must_equal 1
+        @ctx.completed?.must_equal false
+        @ctx.run_drains
+        @ctx.events.must_equal [:write, :complete]
+        @out.string.must_equal 'a'
+      end
+
+      it 'refuses writes once completed' do
+        @queue.complete
+        @queue.complete
+        @ctx.run_drains
+        @ctx.completions.must_equal 1
+        proc { write(@queue, 'a') }.must_raise Java::JavaIo::IOException
+      end
+
+      it 'discards what was queued on abort' do
+        write(@queue, 'x' * 12)
+        @queue.flush
+        @queue.abort('too slow')
+        @ctx.completions.must_equal 1
+        @queue.queued_bytes.must_equal 0
+        @ctx.run_drains
+        @out.string.must_equal ''
+        e = proc { write(@queue, 'a') }.must_raise Java::JavaIo::IOException
+        e.message.must_match(/too slow/)
+      end
+
+      it 'wakes writers waiting for writable on abort' do
+        write(@queue, 'x' * 12)
+        waiter = Thread.new do
+          begin
+            @queue.awaitWritable(5000)
+          rescue Java::JavaIo::IOException => e
+            e
+          end
+        end
+        sleep 0.1
+        @queue.abort('too slow')
+        waiter.value.must_be_kind_of Java::JavaIo::IOException
+      end
+    end
+
+    describe 'draining by WriteListener' do
+      before do
+        skip 'needs the Servlet 3.1 API' unless Java::RubyletRack::OutboundQueue.isNonBlockingSupported
+        @out = ReadyOutput.new
+        @queue = new_queue(@out)
+      end
+
+      it 'waits for onWritePossible while not ready' do
+        @out.ready = false
+        write(@queue, 'a')
+        @queue.flush
+        @ctx.run_drains
+        @out.string.must_equal ''
+        write(@queue, 'b')
+        @queue.flush
+        @ctx.drains.must_equal 0
+        @out.ready = true
+        @out.listener.onWritePossible
+        @out.string.must_equal 'ab'
+        @out.flushes.must_equal 1
+      end
+
+      it 'hands off to onWritePossible called before isReady returns false' do
+        @out.ready = false
+        @out.on_ready = lambda do
+          @out.ready = true
+          @out.listener.onWritePossible
+          @out.ready = false
+        end
+        write(@queue, 'a')
+        @queue.flush
+        @ctx.run_drains
+        @out.string.must_equal 'a'
+      end
+
+      it 'writes each chunk once when onWritePossible races a ready drain' do
+        @out.on_ready = lambda { @out.listener.onWritePossible }
+        write(@queue, 'a')
+        write(@queue, 'b')
+        @queue.flush
+        @ctx.run_drains
+        @out.string.must_equal 'ab'
+      end
+
+      it 'ignores onWritePossible while a drain is running' do
+        @out.on_write = lambda do
+          @out.on_write = nil
+          @out.listener.onWritePossible
+        end
+        write(@queue, 'a')
+        write(@queue, 'b')
+        @queue.flush
+        @ctx.run_drains
+        @out.string.must_equal 'ab'
+      end
+
+      it 'fails on onError' do
+        write(@queue, 'a')
+        @out.ready = false
+        @queue.flush
+        @ctx.run_drains
+        @out.listener.onError(Java::JavaIo::IOException.new('reset'))
+        @ctx.completions.must_equal 1
+        @queue.queued_bytes.must_equal 0
+        proc { write(@queue, 'b') }.must_raise Java::JavaIo::IOException
+      end
+    end
+  end
+end
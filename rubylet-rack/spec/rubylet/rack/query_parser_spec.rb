@@ -0,0 +1,80 @@
+require 'ext_spec_helper'
+require 'rack/request'
+require 'rack/utils'
+
+module Rubylet::Rack
+
+  describe 'QueryParser' do
+
+    QUERIES = ['', 'a=1', 'a=1&b=2;c=3', 'a', 'a=', '=x', '&&a=1&&', 'a=1&a=2',
+               'a[]=1&a[]=2', 'a[b]=1&a[c]=2', 'a[b][c][d]=1',
+               'a[][b]=1&a[][c]=2&a[][b]=3', 'a[][b][c]=1',
+               'x[y][][z]=1&x[y][][w]=2', 'foo+bar=baz%20qux',
+               'caf%C3%A9=%E2%9C%93', 'x=%FF%FE', 'a%5Bb%5D=1', '[]=1', '[a]=1',
+               'a]=1', 'a[b]c=1', 'a[[b]]=1', 'a=1;  b=2', 'a[]', 'a[b]',
+               'a[][]=1&a[][]=2']
+
+    FAILING_QUERIES = ['bad=%ZZ', 'a=1&a[b]=2', 'a[]=1&a[b]=2', 'a[b]=1&a[]=2']
+
+    COOKIES = ['', 'a=1', 'a=1; b=2', 'a=1;b=2,c=3', 'a=1; a=2', 'a=%ZZ',
+               'sess=abc%3D%3D; theme=dark', '=x', 'novalue', 'a=b=c',
+               'x=caf%C3%A9', 'c[x]=1']
+
+    before :each do
+      @parser = Java::RubyletRack::QueryParser.new(JRuby.runtime)
+    end
+
+    def bytes(str)
+      JRuby.reference(str).getByteList
+    end
+
+    def outcome
+      yield
+    rescue => e
+      e.class
+    end
+
+    # Encodings of non-ASCII keys and values, which == would miss.
+    # ASCII-only strings look up the same in either encoding.
+    def encodings(value)
+      case value
+      when Hash then value.map { |k, v| [encodings(k), encodings(v)] }
+      when Array then value.map { |v| encodings(v) }
+      when String then value.ascii_only? ? :ascii : value.encoding
+      else value.class
+      end
+    end
+
+    it 'parses queries as Rack does' do
+      QUERIES.each do |qs|
+        expected = ::Rack::Utils.parse_nested_query(qs)
+        actual = @parser.parseNestedQuery(bytes(qs))
+        [qs, actual].must_equal [qs, expected]
+        [qs, encodings(actual)].must_equal [qs, encodings(expected)]
+      end
+    end
+
+    it 'fails on queries as Rack does' do
+      FAILING_QUERIES.each do |qs|
+        expected = outcome { ::Rack::Utils.parse_nested_query(qs) }
+        actual = outcome { @parser.parseNestedQuery(bytes(qs)) }
+        expected.must_be_kind_of Class
+        [qs, actual].must_equal [qs, expected]
+      end
+    end
+
+    it 'limits the key space as Rack does' do
+      qs = ('k' * (::Rack::Utils.key_space_limit + 1)) + '=1'
+      expected = outcome { ::Rack::Utils.parse_nested_query(qs) }
+      outcome { @parser.parseNestedQuery(bytes(qs)) }.must_equal expected
+    end
+
+    it 'parses cookies as Rack does' do
+      COOKIES.each do |cookie|
+        expected = ::Rack::Request.new('HTTP_COOKIE' => cookie).cookies
+        actual = @parser.parseCookies(bytes(cookie))
+        [cookie, actual].must_equal [cookie, expected]
+      end
+    end
+  end
+end
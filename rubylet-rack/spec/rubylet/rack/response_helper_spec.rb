@@ -0,0 +1,33 @@
+require 'servlet_spec_helper'
+require 'rack/head'
+
+module Rubylet::Rack
+
+  describe 'ResponseHelper' do
+    include ServletHelpers
+
+    app = lambda { |env| [200, { 'Content-Type' => 'text/plain' }, ['hello', ' world']] }
+
+    it 'sets Content-Length for an array body' do
+      resp = serve(app)
+      resp.getHeader('Content-Length').must_equal '11'
+      resp.body.must_equal 'hello world'
+    end
+
+    it 'leaves an application Content-Length alone' do
+      resp = serve(lambda { |env| [200, { 'Content-Length' => '11' }, ['hello', ' world']] })
+      resp.getHeaders('Content-Length').must_equal ['11']
+    end
+
+    it 'sets no Content-Length for the empty body of a HEAD' do
+      resp = serve(::Rack::Head.new(app), Fake::Request.new(:method => 'HEAD'))
+      resp.containsHeader('Content-Length').must_equal false
+      resp.body.must_equal ''
+    end
+
+    it 'sets no Content-Length for a body without one' do
+      resp = serve(lambda { |env| [204, {}, []] })
+      resp.containsHeader('Content-Length').must_equal false
+    end
+  end
+end
@@ -0,0 +1,113 @@
+require 'ext_spec_helper'
+
+module Rubylet::Rack
+
+  describe RewindableInput do
+
+    lines = (1..200).map { |i| "line #{i} " + ('x' * (i % 37)) + "\n" }
+    data = lines.join + 'no newline at the end'
+
+    def input(str, limit, content_length = -1)
+      @buffer = Java::RubyletRack::InputBuffer.new(TrickleStream.new(str),
+                                                   content_length,
+                                                   limit,
+                                                   nil)
+      io = Java::RubyletRack::RewindableInput.new(JRuby.runtime,
+                                                  RewindableInput,
+                                                  @buffer)
+      # unwrap the Java proxy to the Ruby object it already is
+      java.util.Collections.singletonList(io).get(0)
+    end
+
+    after :each do
+      @io.close if @io
+    end
+
+    it 'reads across the spill point' do
+      @io = input(data, 64)
+      @io.read.must_equal data
+      @buffer.spilled?.must_equal true
+    end
+
+    it 'stays in memory under the limit' do
+      @io = input(data, data.bytesize)
+      @io.read.must_equal data
+      @buffer.spilled?.must_equal false
+    end
+
+    it 'reads in pieces across the spill point' do
+      @io = input(data, 64)
+      read = ''
+      while part = @io.read(33)
+        read << part
+      end
+      read.must_equal data
+      @io.read(1).must_be_nil
+      @io.read.must_equal ''
+    end
+
+    it 'reads into a given buffer' do
+      @io = input(data, 64)
+      buf = 'garbage'
+      read = ''
+      while @io.read(100, buf)
+        read << buf
+      end
+      read.must_equal data
+      buf.must_equal ''
+    end
+
+    it 'gets lines across the spill point' do
+      @io = input(data, 64)
+      got = []
+      while line = @io.gets
+        got << line
+      end
+      got.must_equal lines + ['no newline at the end']
+    end
+
+    it 'yields lines to each across the spill point' do
+      @io = input(data, 64)
+      got = []
+      @io.each { |line| got << line }
+      got.join.must_equal data
+      got.size.must_equal lines.size + 1
+    end
+
+    it 'rewinds after spilling midway through a read' do
+      @io = input(data, 64)
+      @io.read(50).must_equal data[0, 50]
+      @buffer.spilled?.must_equal false
+      @io.gets.must_equal data[50..-1][/\A[^\n]*\n/]
+      @io.read
+      @buffer.spilled?.must_equal true
+
+      @io.rewind
+      @io.read.must_equal data
+      @io.rewind
+      @io.gets.must_equal lines.first
+    end
+
+    it 'rewinds a body of known length over the limit' do
+      @io = input(data, 64, data.bytesize)
+      @io.read(10).must_equal data[0, 10]
+      @io.rewind
+      @io.read.must_equal data
+    end
+
+    it 'returns binary strings' do
+      bin = (0..255).map(&:chr).join.force_encoding('BINARY') * 4
+      @io = input(bin, 64)
+      @io.read(10).encoding.must_equal Encoding::ASCII_8BIT
+      @io.rewind
+      @io.read.must_equal bin
+    end
+
+    it 'raises once closed' do
+      @io = input(data, 64)
+      @io.close
+      proc { @io.read }.must_raise IOError
+      @io = nil
+    end
+  end
+end
@@ -0,0 +1,115 @@
+require 'servlet_spec_helper'
+require 'thread'
+
+module Rubylet::Rack
+  # An app whose first call blocks until released; every call
+  # answers with the headers given and its call number as the body.
+  class BlockingApp
+    attr_reader :entered
+
+    def initialize(headers = {}, status = 200)
+      @headers = headers
+      @status = status
+      @calls = java.util.concurrent.atomic.AtomicInteger.new
+      @entered = Queue.new
+      @release = Queue.new
+    end
+
+    def call(env)
+      n = @calls.incrementAndGet
+      if n == 1
+        @entered << true
+        @release.pop
+      end
+      [@status, { 'Content-Type' => 'text/plain' }.merge(@headers), ["call #{n}"]]
+    end
+
+    def calls
+      @calls.get
+    end
+
+    def release
+      @release << true
+    end
+  end
+
+  describe 'SingleFlight' do
+    include ServletHelpers
+
+    def coalescing(app, params = {})
+      new_servlet(app, { 'rubylet.coalesceRequests' => 'true' }.merge(params))
+    end
+
+    # Serve +first+ and then +second+ while +first+ is in the app.
+    def serve_both(servlet, app, first = Fake::Request.new, second = Fake::Request.new)
+      leader = Thread.new { serve_with(servlet, first) }
+      app.entered.pop
+      waiter = Thread.new { serve_with(servlet, second) }
+      sleep 0.2 # until waiting on the leader
+      app.release
+      [leader.value, waiter.value]
+    end
+
+    it 'sends the leader response to an identical request' do
+      app = BlockingApp.new('Cache-Control' => 'public, max-age=60')
+      servlet = coalescing(app)
+      leader, waiter = serve_both(servlet, app)
+      app.calls.must_equal 1
+      leader.body.must_equal 'call 1'
+      waiter.body.must_equal 'call 1'
+      waiter.getStatus.must_equal 200
+      waiter.getHeader('Cache-Control').must_equal 'public, max-age=60'
+      servlet.getSingleFlight.shared.must_equal 1
+    end
+
+    it 'does not share a response setting a cookie' do
+      app = BlockingApp.new('Set-Cookie' => 'session=1')
+      servlet = coalescing(app)
+      leader, waiter = serve_both(servlet, app)
+      app.calls.must_equal 2
+      waiter.body.must_equal 'call 2'
+      servlet.getSingleFlight.unshared.must_equal 1
+    end
+
+    it 'does not share a private response' do
+      app = BlockingApp.new('Cache-Control' => 'private, max-age=60')
+      servlet = coalescing(app)
+      leader, waiter = serve_both(servlet, app)
+      app.calls.must_equal 2
+      waiter.body.must_equal 'call 2'
+    end
+
+    it 'does not share a 304 with a request that did not ask for one' do
+      app = BlockingApp.new({}, 304)
+      servlet = coalescing(app)
+      conditional = Fake::Request.new(:headers => { 'If-None-Match' => '"abc"' })
+      leader, waiter = serve_both(servlet, app, conditional)
+      app.calls.must_equal 2
+      leader.getStatus.must_equal 304
+      servlet.getSingleFlight.shared.must_equal 0
+      servlet.getSingleFlight.unshared.must_equal 1
+    end
+
+    it 'calls the app itself once tired of waiting' do
+      app = BlockingApp.new
+      servlet = coalescing(app, 'rubylet.coalesceTimeout' => '100')
+      leader = Thread.new { serve_with(servlet) }
+      app.entered.pop
+      serve_with(servlet).body.must_equal 'call 2'
+      servlet.getSingleFlight.timeouts.must_equal 1
+      app.release
+      leader.value.body.must_equal 'call 1'
+    end
+
+    it 'does not coalesce requests with different credentials' do
+      app = BlockingApp.new
+      servlet = coalescing(app)
+      leader = Thread.new { serve_with(servlet, Fake::Request.new(:headers => { 'Cookie' => 'a=1' })) }
+      app.entered.pop
+      serve_with(servlet, Fake::Request.new(:headers => { 'Cookie' => 'a=2' })).body.must_equal 'call 2'
+      app.release
+      leader.value.body.must_equal 'call 1'
+      servlet.getSingleFlight.leaders.must_equal 2
+    end
+  end
+end
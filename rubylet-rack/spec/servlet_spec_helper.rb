@@ -0,0 +1,262 @@
+require 'ext_spec_helper'
+require 'rubylet/rack'
+
+module Rubylet::Rack
+  # Just enough of the Servlet API to serve requests from specs.
+  module Fake
+    class Context
+      include Java::JavaxServlet::ServletContext
+
+      def initialize(major_version = 3)
+        @major_version = major_version
+      end
+
+      def getEffectiveMajorVersion; @major_version; end
+      def getServerInfo; 'fake/1.0'; end
+      def getContextPath; ''; end
+      def getInitParameter(name); nil; end
+      def getAttribute(name); nil; end
+      def getMimeType(name); nil; end
+      def log(*args); end
+    end
+
+    class Input < Java::JavaxServlet::ServletInputStream
+      def initialize(str)
+        super()
+        @in = java.io.ByteArrayInputStream.new(str.to_java_bytes)
+      end
+
+      def read(*args)
+        args.empty? ? @in.read : @in.read(*args)
+      end
+    end
+
+    class Request
+      include Java::JavaxServletHttp::HttpServletRequest
+
+      attr_reader :async_context
+
+      # Options are :method, :path, :query, :headers, :body and
+      # :async (true to support async responses).
+      def initialize(opts = {})
+        @method = opts[:method] || 'GET'
+        @path = opts[:path] || '/'
+        @query = opts[:query]
+        @headers = opts[:headers] || { 'Host' => 'example.com' }
+        @body = opts[:body] || ''
+        @async = opts[:async]
+        @context = Context.new(@async ? 3 : 2)
+        @attributes = {}
+      end
+
+      def getServletContext; @context; end
+      def getMethod; @method; end
+      def getPathInfo; @path; end
+      def getQueryString; @query; end
+      def getRequestURI; @path; end
+      def getRequestURL; java.lang.StringBuffer.new("http://example.com#{@path}"); end
+      def getScheme; 'http'; end
+      def getRemoteAddr; '127.0.0.1'; end
+      def getRemoteHost; 'localhost'; end
+      def getRemotePort; 4242; end
+      def getRemoteUser; nil; end
+      def getContextPath; ''; end
+      def getServletPath; ''; end
+      def getServerName; 'example.com'; end
+      def getServerPort; 80; end
+      def getProtocol; 'HTTP/1.1'; end
+      def getPathTranslated; nil; end
+      def getCharacterEncoding; nil; end
+      def getContentType; getHeader('Content-Type'); end
+      def getContentLength; (getHeader('Content-Length') || -1).to_i; end
+      def getInputStream; @input ||= Input.new(@body); end
+      def getAttribute(name); @attributes[name]; end
+      def setAttribute(name, value); @attributes[name] = value; end
+      def removeAttribute(name); @attributes.delete(name); end
+
+      def getHeaderNames
+        java.util.Collections.enumeration(@headers.keys)
+      end
+
+      def getHeader(name)
+        key = @headers.keys.find { |k| k.casecmp(name) == 0 }
+        key && @headers[key]
+      end
+
+      def getHeaders(name)
+        value = getHeader(name)
+        java.util.Collections.enumeration(value ? [value] : [])
+      end
+
+      def getIntHeader(name)
+        (getHeader(name) || -1).to_i
+      end
+
+      def getDateHeader(name)
+        value = getHeader(name)
+        value ? java.util.Date.parse(value) : -1
+      end
+
+      def isAsyncSupported; !!@async; end
+      def isAsyncStarted; !@async_context.nil?; end
+      def getAsyncContext; @async_context; end
+
+      def startAsync(*args)
+        @async_context = AsyncContext.new(self, @response)
+      end
+
+      # Servlet.service passes the response; startAsync needs it.
+      def response=(response)
+        @response = response
+      end
+    end
+
+    class AsyncContext
+      include Java::JavaxServlet::AsyncContext
+
+      attr_reader :listeners, :completions, :timeout
+
+      def initialize(request, response)
+        @request = request
+        @response = response
+        @listeners = []
+        @completions = 0
+        @timeout = 30000
+        @threads = []
+      end
+
+      def getRequest; @request; end
+      def getResponse; @response; end
+      def hasOriginalRequestAndResponse; true; end
+      def addListener(listener, *args); @listeners << listener; end
+      def getTimeout; @timeout; end
+      def setTimeout(timeout); @timeout = timeout; end
+
+      def start(runnable)
+        thread = java.lang.Thread.new(runnable)
+        @threads << thread
+        thread.start
+      end
+
+      def complete
+        @completions += 1
+        @listeners.each { |l| l.onComplete(Java::JavaxServlet::AsyncEvent.new(self)) }
+      end
+
+      def completed?
+        @completions > 0
+      end
+    end
+
+    class Output < Java::JavaxServlet::ServletOutputStream
+      attr_reader :flushes
+
+      def initialize
+        super()
+        @bytes = java.io.ByteArrayOutputStream.new
+        @flushes = 0
+      end
+
+      def write(*args)
+        @bytes.write(*args)
+      end
+
+      def flush
+        @flushes += 1
+      end
+
+      def string
+        String.from_java_bytes(@bytes.toByteArray)
+      end
+    end
+
+    class Response
+      include Java::JavaxServletHttp::HttpServletResponse
+
+      attr_reader :headers, :out, :errors
+
+      def initialize(out = Output.new)
+        @status = 200
+        @headers = {}
+        @out = out
+        @errors = []
+        @committed = false
+      end
+
+      def getStatus; @status; end
+      def setStatus(status, *args); @status = status; end
+      def sendError(status, *args); @status = status; @errors << status; @committed = true; end
+      def sendRedirect(location); @status = 302; setHeader('Location', location); end
+      def getHeader(name); values = @headers[key(name)]; values && values.first; end
+      def getHeaders(name); @headers[key(name)] || []; end
+      def getHeaderNames; @headers.keys; end
+      def containsHeader(name); @headers.key?(key(name)); end
+      def setHeader(name, value); @headers[key(name)] = [value.to_s]; end
+      def addHeader(name, value); (@headers[key(name)] ||= []) << value.to_s; end
+      def setIntHeader(name, value); setHeader(name, value); end
+      def addIntHeader(name, value); addHeader(name, value); end
+      def setDateHeader(name, value); setHeader(name, value); end
+      def addDateHeader(name, value); addHeader(name, value); end
+      def setContentType(type); setHeader('Content-Type', type); end
+      def getContentType; getHeader('Content-Type'); end
+      def setContentLength(length); setHeader('Content-Length', length); end
+      def setCharacterEncoding(encoding); end
+      def getCharacterEncoding; 'ISO-8859-1'; end
+      def getOutputStream; @out; end
+      def getWriter; java.io.PrintWriter.new(@out); end
+      def flushBuffer; @committed = true; end
+      def isCommitted; @committed; end
+      def getBufferSize; 8192; end
+      def setBufferSize(size); end
+      def resetBuffer; @out = Output.new; end
+      def reset; @headers.clear; @status = 200; resetBuffer; end
+
+      def body
+        @out.string
+      end
+
+      private
+
+      def key(name)
+        @headers.keys.find { |k| k.casecmp(name) == 0 } || name
+      end
+    end
+  end
+
+  module ServletHelpers
+    def new_servlet(app, params = {})
+      config = Java::JavaxServlet::ServletConfig.impl do |name, *args|
+        case name.to_s
+        when 'getInitParameter' then params[args.first]
+        when 'getInitParameterNames' then java.util.Collections.enumeration(params.keys)
+        when 'getServletContext' then Fake::Context.new
+        when 'getServletName' then 'spec'
+        end
+      end
+      servlet = Servlet.new(app).to_java(Java::JavaxServlet::Servlet)
+      servlet.init(config)
+      servlet
+    end
+
+    # Serve +req+ with a new servlet for +app+, returning the response.
+    def serve(app, req = Fake::Request.new, params = {})
+      serve_with(new_servlet(app, params), req)
+    end
+
+    def serve_with(servlet, req = Fake::Request.new)
+      resp = Fake::Response.new
+      req.response = resp
+      servlet.service(req, resp)
+      resp
+    end
+
+    # Wait up to +seconds+ for the block to return true.
+    def wait_for(seconds = 5)
+      (seconds * 50).to_i.times do
+        return true if yield
+        sleep 0.02
+      end
+      yield
+    end
+  end
+end